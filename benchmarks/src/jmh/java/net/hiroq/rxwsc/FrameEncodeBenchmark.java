@@ -0,0 +1,68 @@
+package net.hiroq.rxwsc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outbound frame encoding: building whole frames for String and byte[], and writing a
+ * zero-copy frame the way the writer thread does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FrameEncodeBenchmark {
+    @Param({"16", "1024", "65536"})
+    public int payloadSize;
+
+    private HybiParser mParser;
+    private String mText;
+    private byte[] mBytes;
+    private final byte[] mScratch = new byte[8192];
+
+    private static final OutputStream NULL = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup
+    public void setup() {
+        mParser = new HybiParser(new RxWebSocketClient());
+        StringBuilder text = new StringBuilder(payloadSize);
+        mBytes = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; i++) {
+            text.append((char) ('a' + i % 26));
+            mBytes[i] = (byte) i;
+        }
+        mText = text.toString();
+    }
+
+    @Benchmark
+    public byte[] frameString() {
+        return mParser.frame(mText);
+    }
+
+    @Benchmark
+    public byte[] frameBytes() {
+        return mParser.frame(mBytes);
+    }
+
+    @Benchmark
+    public int writeZeroCopy() throws IOException {
+        return mParser.frame(mBytes, 0, mBytes.length, false).writeTo(NULL, mScratch);
+    }
+}
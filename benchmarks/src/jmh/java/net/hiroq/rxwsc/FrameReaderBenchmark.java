@@ -0,0 +1,166 @@
+package net.hiroq.rxwsc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares FrameReader with the former byte-by-byte read loop of HybiParser#start.
+ * Score is frames/sec, gc.alloc.rate.norm is bytes allocated per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FrameReaderBenchmark {
+    private static final int FRAMES = 1000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param({"16", "256", "4096"})
+    public int payloadSize;
+
+    @Param({"false", "true"})
+    public boolean masked;
+
+    private byte[] mData;
+
+    @Setup
+    public void setup() {
+        byte[] payload = new byte[payloadSize];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) ('a' + i % 26);
+        }
+        byte[] mask = {0x12, 0x34, 0x56, 0x78};
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int n = 0; n < FRAMES; n++) {
+            int flag = masked ? 128 : 0;
+            out.write(0x81);
+            if (payload.length <= 125) {
+                out.write(flag | payload.length);
+            } else {
+                out.write(flag | 126);
+                out.write(payload.length >>> 8);
+                out.write(payload.length & 255);
+            }
+            if (masked) {
+                out.write(mask, 0, 4);
+                for (int i = 0; i < payload.length; i++) {
+                    out.write(payload[i] ^ mask[i % 4]);
+                }
+            } else {
+                out.write(payload, 0, payload.length);
+            }
+        }
+        mData = out.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void frameReader(final Blackhole blackhole) throws IOException {
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(mData), new FrameReader.Callback() {
+            @Override
+            public void onFrame(int header, byte[] payload, int offset, int length) {
+                blackhole.consume(new String(payload, offset, length, UTF_8));
+            }
+        });
+        try {
+            reader.run();
+        } catch (EOFException e) {
+            // end of data
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void legacyReader(Blackhole blackhole) throws IOException {
+        LegacyReader reader = new LegacyReader(new HybiParser.HappyDataInputStream(new ByteArrayInputStream(mData)));
+        try {
+            reader.run(blackhole);
+        } catch (EOFException e) {
+            // end of data
+        }
+    }
+
+    /**
+     * Read loop of HybiParser#start before FrameReader was introduced.
+     */
+    private static class LegacyReader {
+        private final HybiParser.HappyDataInputStream mStream;
+        private int mStage;
+        private boolean mMasked;
+        private int mLengthSize;
+        private int mLength;
+        private byte[] mMask = new byte[0];
+        private byte[] mPayload = new byte[0];
+
+        LegacyReader(HybiParser.HappyDataInputStream stream) {
+            mStream = stream;
+        }
+
+        void run(Blackhole blackhole) throws IOException {
+            DataInputStream stream = mStream;
+            while (true) {
+                if (stream.available() == -1) {
+                    break;
+                }
+                switch (mStage) {
+                    case 0:
+                        stream.readByte();
+                        mMask = new byte[0];
+                        mPayload = new byte[0];
+                        mStage = 1;
+                        break;
+                    case 1:
+                        byte data = stream.readByte();
+                        mMasked = (data & 128) == 128;
+                        mLength = (data & 127);
+                        if (mLength <= 125) {
+                            mStage = mMasked ? 3 : 4;
+                        } else {
+                            mLengthSize = (mLength == 126) ? 2 : 8;
+                            mStage = 2;
+                        }
+                        break;
+                    case 2:
+                        byte[] length = mStream.readBytes(mLengthSize);
+                        long value = 0;
+                        for (int i = 0; i < length.length; i++) {
+                            value += (length[i] & 0xFF) << ((length.length - 1 - i) * 8);
+                        }
+                        mLength = (int) value;
+                        mStage = mMasked ? 3 : 4;
+                        break;
+                    case 3:
+                        mMask = mStream.readBytes(4);
+                        mStage = 4;
+                        break;
+                    case 4:
+                        mPayload = mStream.readBytes(mLength);
+                        if (mMask.length != 0) {
+                            for (int i = 0; i < mPayload.length; i++) {
+                                mPayload[i] = (byte) (mPayload[i] ^ mMask[i % 4]);
+                            }
+                        }
+                        blackhole.consume(new String(mPayload, "UTF-8"));
+                        mStage = 0;
+                        break;
+                }
+            }
+        }
+    }
+}
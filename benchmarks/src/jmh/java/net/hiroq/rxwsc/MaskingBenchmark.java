@@ -0,0 +1,72 @@
+package net.hiroq.rxwsc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares Masker and MaskKeyGenerator with the former byte loop and Math.random() keys.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MaskingBenchmark {
+    @State(Scope.Thread)
+    public static class Payload {
+        @Param({"16", "128", "1024", "16384", "131072", "1048576"})
+        public int size;
+
+        byte[] data;
+        byte[] mask = {0x12, 0x34, 0x56, 0x78};
+
+        @Setup
+        public void setup() {
+            data = new byte[size];
+            for (int i = 0; i < size; i++) {
+                data[i] = (byte) i;
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        MaskKeyGenerator generator = new MaskKeyGenerator();
+    }
+
+    @Benchmark
+    public byte[] legacyMask(Payload payload) {
+        byte[] data = payload.data;
+        byte[] mask = payload.mask;
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (data[i] ^ mask[i % 4]);
+        }
+        return data;
+    }
+
+    @Benchmark
+    public int wordMask(Payload payload) {
+        return Masker.mask(payload.data, 0, payload.data.length, 0x12345678);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] legacyKey() {
+        return new byte[]{
+                (byte) Math.floor(Math.random() * 256), (byte) Math.floor(Math.random() * 256),
+                (byte) Math.floor(Math.random() * 256), (byte) Math.floor(Math.random() * 256)
+        };
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int generatorKey(Connection connection) {
+        return connection.generator.next();
+    }
+}
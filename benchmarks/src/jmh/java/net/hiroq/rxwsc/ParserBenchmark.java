@@ -0,0 +1,97 @@
+package net.hiroq.rxwsc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inbound text messages through HybiParser, from raw frames to emitted events.
+ * Each message is split into the given number of fragments.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParserBenchmark {
+    private static final int MESSAGES = 256;
+
+    @Param({"16", "1024", "65536"})
+    public int payloadSize;
+
+    @Param({"false", "true"})
+    public boolean masked;
+
+    @Param({"1", "4"})
+    public int fragments;
+
+    private byte[] mData;
+
+    /**
+     * Client which only hands events to the blackhole.
+     */
+    private static class Sink extends RxWebSocketClient {
+        private final Blackhole mBlackhole;
+
+        Sink(Blackhole blackhole) {
+            mBlackhole = blackhole;
+        }
+
+        @Override
+        void emitterOnNext(Event event) {
+            mBlackhole.consume(event);
+        }
+
+        @Override
+        void emitterOnError(Throwable e) {
+            // end of data
+        }
+
+        @Override
+        void emitterOnCompleted() {
+        }
+    }
+
+    @Setup
+    public void setup() {
+        byte[] payload = new byte[payloadSize];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) ('a' + i % 26);
+        }
+        byte[] mask = {0x12, 0x34, 0x56, 0x78};
+        int fragmentSize = (payloadSize + fragments - 1) / fragments;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] header = new byte[OutboundFrame.MAX_HEADER_SIZE];
+        for (int n = 0; n < MESSAGES; n++) {
+            for (int offset = 0, i = 0; i < fragments; i++, offset += fragmentSize) {
+                int length = Math.max(0, Math.min(fragmentSize, payloadSize - offset));
+                boolean fin = i == fragments - 1;
+                int opcode = (i == 0) ? 1 : HybiParser.OP_CONTINUATION;
+                int key = 0x12345678;
+                int headerLength = HybiParser.header(header, fin, opcode, length, masked, key);
+                out.write(header, 0, headerLength);
+                for (int j = 0; j < length; j++) {
+                    out.write(masked ? payload[offset + j] ^ mask[j % 4] : payload[offset + j]);
+                }
+            }
+        }
+        mData = out.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void parse(Blackhole blackhole) throws IOException {
+        new HybiParser(new Sink(blackhole)).start(new ByteArrayInputStream(mData));
+    }
+}
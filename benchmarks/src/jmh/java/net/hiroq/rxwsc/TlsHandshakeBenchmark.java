@@ -0,0 +1,138 @@
+package net.hiroq.rxwsc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Connect latency of wss against a local TLS server: a resumed handshake on the cached
+ * TlsContext, a full one, and a full one on a new SSLContext as done before it was cached.
+ * Each operation connects, handshakes, reads one byte (which also takes the TLS 1.3
+ * session ticket) and closes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TlsHandshakeBenchmark {
+    private static final String HOST = "localhost";
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+
+    private SSLServerSocket mServer;
+    private Thread mServerThread;
+    private TrustManager[] mTrustManagers;
+    private TlsContext mContext;
+    private int mPort;
+
+    @Setup
+    public void setup() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        InputStream in = getClass().getResourceAsStream("/benchmark.jks");
+        try {
+            keyStore.load(in, PASSWORD);
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(keyStore, PASSWORD);
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(keyStore);
+        mTrustManagers = trust.getTrustManagers();
+
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keys.getKeyManagers(), null, null);
+        mServer = (SSLServerSocket) serverContext.getServerSocketFactory()
+                .createServerSocket(0, 50, InetAddress.getByName(HOST));
+        mPort = mServer.getLocalPort();
+        mServerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "TlsHandshakeBenchmark-server");
+        mServerThread.setDaemon(true);
+        mServerThread.start();
+
+        mContext = new TlsContext(mTrustManagers);
+        mContext.prewarm(HOST, mPort);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mServer.close();
+        mServerThread.join();
+    }
+
+    private void serve() {
+        while (!mServer.isClosed()) {
+            try {
+                SSLSocket socket = (SSLSocket) mServer.accept();
+                try {
+                    socket.setTcpNoDelay(true);
+                    socket.getOutputStream().write(1);
+                    socket.getOutputStream().flush();
+                    while (socket.getInputStream().read() != -1) {
+                        // until client closes
+                    }
+                } catch (IOException e) {
+                    // client went away
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // closed by tearDown
+            }
+        }
+    }
+
+    private SSLSocket connect(TlsContext context) throws Exception {
+        return (SSLSocket) context.get().getSocketFactory().createSocket(HOST, mPort);
+    }
+
+    private int exchange(SSLSocket socket) throws IOException {
+        try {
+            // without it delayed ACKs of loopback dominate the handshake
+            socket.setTcpNoDelay(true);
+            socket.startHandshake();
+            return socket.getInputStream().read();
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public int resumedHandshake() throws Exception {
+        return exchange(connect(mContext));
+    }
+
+    @Benchmark
+    public int fullHandshake() throws Exception {
+        SSLSocket socket = connect(mContext);
+        int read = exchange(socket);
+        // forget the session so that the next connect can not resume it
+        socket.getSession().invalidate();
+        return read;
+    }
+
+    @Benchmark
+    public int fullHandshakeNewContext() throws Exception {
+        return exchange(connect(new TlsContext(mTrustManagers)));
+    }
+}
@@ -0,0 +1,394 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import rx.Producer;
+import rx.Subscriber;
+import rx.exceptions.Exceptions;
+import rx.exceptions.MissingBackpressureException;
+
+/**
+ * Delivers Events to a Subscriber only as far as it has requested them.
+ * <p>
+ * Events which can not be delivered yet wait in a queue. What happens when the queue
+ * holds {@code capacity} messages depends on {@link RxWebSocketClient.BackpressureMode}.
+ * With PAUSE the emitting reader thread is blocked, so the socket is not read any further
+ * and TCP flow control pushes back on the server. With BUFFER a message arriving at a full
+ * queue fails the stream with a {@link MissingBackpressureException}, as onBackpressureBuffer(capacity)
+ * does. CONNECT and DISCONNECT are never dropped.
+ * An event loop must not be blocked, so with a {@link FlowControl} PAUSE queues the message
+ * and asks the connection to stop reading instead.
+ * Pooled events which are dropped or discarded are released here.
+ */
+final class BackpressureEmitter implements Producer {
+    /**
+     * Stops and restarts reading of a non-blocking connection.
+     */
+    interface FlowControl {
+        /**
+         * The queue is full. Called on the thread emitting events.
+         */
+        void pause();
+
+        /**
+         * The queue has room again. Called on the thread requesting events.
+         */
+        void resume();
+    }
+
+    private final Subscriber<? super RxWebSocketClient.Event> mSubscriber;
+    private final RxWebSocketClient.BackpressureMode mMode;
+    private final int mCapacity;
+
+    /**
+     * Guards the state below
+     */
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotFull = mLock.newCondition();
+
+    private final ArrayDeque<RxWebSocketClient.Event> mQueue = new ArrayDeque<RxWebSocketClient.Event>();
+    private int mMessages;
+    private long mDropped;
+
+    private long mRequested;
+    private boolean mEmitting;
+    private boolean mMissed;
+    private boolean mDone;
+    private Throwable mError;
+    private boolean mCancelled;
+
+    private FlowControl mFlowControl;
+    private boolean mPaused;
+
+    BackpressureEmitter(Subscriber<? super RxWebSocketClient.Event> subscriber,
+                        RxWebSocketClient.BackpressureMode mode, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mSubscriber = subscriber;
+        mMode = mode;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Pause reading through flowControl instead of blocking the emitting thread.
+     * Replaced on reconnect; the new connection starts unpaused.
+     *
+     * @param flowControl may be null
+     */
+    void setFlowControl(FlowControl flowControl) {
+        mLock.lock();
+        try {
+            mFlowControl = flowControl;
+            mPaused = false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private static boolean isMessage(RxWebSocketClient.Event event) {
+        return event.getType() == RxWebSocketClient.EventType.MESSAGE_STRING
+                || event.getType() == RxWebSocketClient.EventType.MESSAGE_BINARY
+                || event.getType() == RxWebSocketClient.EventType.MESSAGE_CHUNK;
+    }
+
+    @Override
+    public void request(long n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("n >= 0 required but it was " + n);
+        }
+        if (n == 0) {
+            return;
+        }
+        mLock.lock();
+        try {
+            long requested = mRequested + n;
+            mRequested = (requested < 0) ? Long.MAX_VALUE : requested;
+        } finally {
+            mLock.unlock();
+        }
+        drain();
+    }
+
+    /**
+     * Queue event and deliver it if there is demand.
+     * With PAUSE, a message blocks the caller while the queue is full.
+     *
+     * @param event
+     */
+    void onNext(RxWebSocketClient.Event event) {
+        offer(event);
+        drain();
+    }
+
+    /**
+     * Queue event without delivering it, so a caller holding a lock of its own can keep events in order
+     * and {@link #drain()} after unlocking. CONNECT and DISCONNECT never block here.
+     *
+     * @param event
+     */
+    void offer(RxWebSocketClient.Event event) {
+        FlowControl pause = null;
+        boolean overflow = false;
+        mLock.lock();
+        try {
+            if (mCancelled || mDone) {
+                event.release();
+                return;
+            }
+            if (isMessage(event)) {
+                if (mMessages >= mCapacity) {
+                    switch (mMode) {
+                        case PAUSE:
+                            if (mFlowControl != null) {
+                                break;
+                            }
+                            while (mMessages >= mCapacity && !mCancelled) {
+                                try {
+                                    mNotFull.await();
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                    event.release();
+                                    return;
+                                }
+                            }
+                            if (mCancelled) {
+                                event.release();
+                                return;
+                            }
+                            break;
+                        case DROP:
+                            mDropped++;
+                            event.release();
+                            return;
+                        case LATEST:
+                            removeOldestMessage();
+                            mDropped++;
+                            break;
+                        case BUFFER:
+                            overflow = true;
+                            break;
+                    }
+                }
+                if (!overflow) {
+                    mMessages++;
+                    if (mMode == RxWebSocketClient.BackpressureMode.PAUSE && mFlowControl != null
+                            && mMessages >= mCapacity && !mPaused) {
+                        mPaused = true;
+                        pause = mFlowControl;
+                    }
+                }
+            }
+            if (overflow) {
+                overflow(event);
+            } else {
+                mQueue.add(event);
+            }
+        } finally {
+            mLock.unlock();
+        }
+        if (pause != null) {
+            pause.pause();
+        }
+    }
+
+    void onError(Throwable e) {
+        end(e);
+        drain();
+    }
+
+    void onCompleted() {
+        end(null);
+        drain();
+    }
+
+    /**
+     * End the stream after the queued events without delivering anything, like {@link #offer}.
+     *
+     * @param error null to complete
+     */
+    void end(Throwable error) {
+        mLock.lock();
+        try {
+            if (mDone) {
+                return;
+            }
+            mError = error;
+            mDone = true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Discard queued events and release a blocked reader.
+     */
+    void cancel() {
+        mLock.lock();
+        try {
+            mCancelled = true;
+            RxWebSocketClient.Event event;
+            while ((event = mQueue.poll()) != null) {
+                event.release();
+            }
+            mMessages = 0;
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * BUFFER queue is full: discard what is queued and fail without waiting for requests.
+     * Called with mLock held.
+     */
+    private void overflow(RxWebSocketClient.Event event) {
+        event.release();
+        RxWebSocketClient.Event queued;
+        while ((queued = mQueue.poll()) != null) {
+            queued.release();
+        }
+        mMessages = 0;
+        mError = new MissingBackpressureException("more than " + mCapacity + " messages queued");
+        mDone = true;
+    }
+
+    /**
+     * Get number of messages dropped by DROP or LATEST.
+     *
+     * @return
+     */
+    long getDropped() {
+        mLock.lock();
+        try {
+            return mDropped;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void removeOldestMessage() {
+        Iterator<RxWebSocketClient.Event> iterator = mQueue.iterator();
+        while (iterator.hasNext()) {
+            RxWebSocketClient.Event event = iterator.next();
+            if (isMessage(event)) {
+                iterator.remove();
+                event.release();
+                mMessages--;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Deliver queued events as far as requested. Runs on one thread at a time.
+     */
+    void drain() {
+        mLock.lock();
+        try {
+            if (mEmitting) {
+                mMissed = true;
+                return;
+            }
+            mEmitting = true;
+        } finally {
+            mLock.unlock();
+        }
+
+        while (true) {
+            RxWebSocketClient.Event event = null;
+            Throwable error = null;
+            boolean complete = false;
+            FlowControl resume = null;
+
+            mLock.lock();
+            try {
+                if (mCancelled || mSubscriber.isUnsubscribed()) {
+                    mEmitting = false;
+                    return;
+                }
+                if (mRequested > 0 && !mQueue.isEmpty()) {
+                    event = mQueue.poll();
+                    if (isMessage(event)) {
+                        mMessages--;
+                        mNotFull.signalAll();
+                        if (mPaused && mMessages < mCapacity) {
+                            mPaused = false;
+                            resume = mFlowControl;
+                        }
+                    }
+                    if (mRequested != Long.MAX_VALUE) {
+                        mRequested--;
+                    }
+                } else if (mDone && mQueue.isEmpty()) {
+                    error = mError;
+                    complete = true;
+                    mCancelled = true;
+                } else if (mMissed) {
+                    mMissed = false;
+                    continue;
+                } else {
+                    mEmitting = false;
+                    return;
+                }
+            } finally {
+                mLock.unlock();
+            }
+
+            if (resume != null) {
+                resume.resume();
+            }
+            if (complete) {
+                if (error != null) {
+                    mSubscriber.onError(error);
+                } else {
+                    mSubscriber.onCompleted();
+                }
+                return;
+            }
+            try {
+                mSubscriber.onNext(event);
+            } catch (Throwable e) {
+                // the subscriber is broken; end the stream rather than leave it marked as emitting
+                cancel();
+                mLock.lock();
+                try {
+                    mEmitting = false;
+                    mDone = true;
+                } finally {
+                    mLock.unlock();
+                }
+                Exceptions.throwOrReport(e, mSubscriber, event);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+/**
+ * Base64 encoding (RFC 4648) of handshake keys. android.util.Base64 is not there on a plain JVM,
+ * and java.util.Base64 is not there on Android before API 26.
+ */
+final class Base64 {
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private Base64() {
+    }
+
+    /**
+     * @param data
+     * @return padded encoding without line breaks
+     */
+    static String encode(byte[] data) {
+        char[] out = new char[(data.length + 2) / 3 * 4];
+        int position = 0;
+        int i = 0;
+        for (; i + 2 < data.length; i += 3) {
+            int bits = ((data[i] & 0xFF) << 16) | ((data[i + 1] & 0xFF) << 8) | (data[i + 2] & 0xFF);
+            out[position++] = ALPHABET[bits >>> 18];
+            out[position++] = ALPHABET[(bits >>> 12) & 0x3F];
+            out[position++] = ALPHABET[(bits >>> 6) & 0x3F];
+            out[position++] = ALPHABET[bits & 0x3F];
+        }
+        int remaining = data.length - i;
+        if (remaining > 0) {
+            int bits = (data[i] & 0xFF) << 16;
+            if (remaining == 2) {
+                bits |= (data[i + 1] & 0xFF) << 8;
+            }
+            out[position++] = ALPHABET[bits >>> 18];
+            out[position++] = ALPHABET[(bits >>> 12) & 0x3F];
+            out[position++] = (remaining == 2) ? ALPHABET[(bits >>> 6) & 0x3F] : '=';
+            out[position] = '=';
+        }
+        return new String(out);
+    }
+}
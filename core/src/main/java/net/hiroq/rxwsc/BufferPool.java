@@ -0,0 +1,282 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rx.Observable;
+import rx.subjects.PublishSubject;
+import rx.subjects.Subject;
+
+/**
+ * Pool of buffers for payloads of MESSAGE_BINARY events.
+ * <p>
+ * Buffers are kept by power of two size, from 256 bytes up to the largest pooled size.
+ * An event holding one hands it back when it is released, so a steady stream of binary
+ * messages reuses the same few arrays instead of allocating one per message.
+ * Larger payloads get a buffer of their own which is left to the garbage collector.
+ * <p>
+ * With leak detection, each pooled event is tracked until it is released. An event which is
+ * garbage collected before that is reported by {@link #leaks()} with the stack trace of
+ * where it was created, and its buffer is not reused. Tracking costs an allocation and a stack
+ * trace per message, so enable it in debug builds only.
+ * One pool may be shared by several clients.
+ */
+public class BufferPool {
+    /**
+     * Default size of the largest pooled buffer
+     */
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Default number of free buffers kept per size
+     */
+    public static final int DEFAULT_BUFFERS_PER_SIZE = 32;
+
+    /**
+     * Size of the smallest buffer, 1 << MIN_SHIFT
+     */
+    private static final int MIN_SHIFT = 8;
+    private static final int MIN_BUFFER_SIZE = 1 << MIN_SHIFT;
+
+    /**
+     * Free buffers by size class, each stack guarded by itself
+     */
+    private final Buffer[][] mFree;
+    private final int[] mFreeCount;
+
+    private volatile boolean mLeakDetection = false;
+    private final ReferenceQueue<Object> mCollected = new ReferenceQueue<Object>();
+    private final Set<Leak> mTracked = Collections.newSetFromMap(new ConcurrentHashMap<Leak, Boolean>());
+    private final AtomicLong mLeakCount = new AtomicLong();
+    private final Subject<Throwable, Throwable> mLeaks = PublishSubject.<Throwable>create().toSerialized();
+
+    public BufferPool() {
+        this(DEFAULT_MAX_BUFFER_SIZE, DEFAULT_BUFFERS_PER_SIZE);
+    }
+
+    /**
+     * @param maxBufferSize  size of the largest pooled buffer, rounded up to a power of two
+     * @param buffersPerSize number of free buffers kept per size
+     */
+    public BufferPool(int maxBufferSize, int buffersPerSize) {
+        if (maxBufferSize < MIN_BUFFER_SIZE || maxBufferSize > (1 << 30)) {
+            throw new IllegalArgumentException("maxBufferSize must be between " + MIN_BUFFER_SIZE + " and 2^30");
+        }
+        if (buffersPerSize < 0) {
+            throw new IllegalArgumentException("buffersPerSize must not be negative");
+        }
+        int classes = sizeClass(maxBufferSize) + 1;
+        mFree = new Buffer[classes][buffersPerSize];
+        mFreeCount = new int[classes];
+    }
+
+    /**
+     * Track pooled events from now on and report the ones never released.
+     *
+     * @param enabled
+     */
+    public void setLeakDetection(boolean enabled) {
+        mLeakDetection = enabled;
+    }
+
+    /**
+     * Events garbage collected without being released, as an exception whose stack trace shows where
+     * the event was created. Leaks are found while the pool hands out buffers, so they are reported
+     * on the thread reading messages.
+     *
+     * @return
+     */
+    public Observable<Throwable> leaks() {
+        return mLeaks;
+    }
+
+    /**
+     * Get number of leaks reported so far.
+     *
+     * @return
+     */
+    public long getLeakCount() {
+        return mLeakCount.get();
+    }
+
+    /**
+     * Smallest size class holding length bytes. Class i holds MIN_BUFFER_SIZE << i bytes.
+     */
+    static int sizeClass(int length) {
+        if (length <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * Take a buffer holding at least length bytes.
+     *
+     * @param length
+     * @return
+     */
+    Buffer acquire(int length) {
+        if (mLeakDetection) {
+            reportLeaks();
+        }
+        int index = sizeClass(length);
+        if (index >= mFree.length) {
+            return new Buffer(new byte[length], -1);
+        }
+        Buffer[] free = mFree[index];
+        synchronized (free) {
+            int count = mFreeCount[index];
+            if (count > 0) {
+                Buffer buffer = free[--count];
+                free[count] = null;
+                mFreeCount[index] = count;
+                return buffer;
+            }
+        }
+        return new Buffer(new byte[MIN_BUFFER_SIZE << index], index);
+    }
+
+    /**
+     * Start tracking owner of buffer if leak detection is enabled.
+     *
+     * @param owner
+     * @return handle to pass to {@link #recycle(Buffer, Leak)}, null if not tracked
+     */
+    Leak track(Object owner) {
+        if (!mLeakDetection) {
+            return null;
+        }
+        Leak leak = new Leak(owner, mCollected);
+        mTracked.add(leak);
+        return leak;
+    }
+
+    /**
+     * Hand back buffer of a released owner.
+     *
+     * @param buffer
+     * @param leak   tracking handle of the owner, may be null
+     */
+    void recycle(Buffer buffer, Leak leak) {
+        if (leak != null) {
+            mTracked.remove(leak);
+            leak.clear();
+        }
+        int index = buffer.mSizeClass;
+        if (index < 0) {
+            return;
+        }
+        Buffer[] free = mFree[index];
+        synchronized (free) {
+            int count = mFreeCount[index];
+            if (count < free.length) {
+                free[count] = buffer;
+                mFreeCount[index] = count + 1;
+            }
+        }
+    }
+
+    /**
+     * Report owners collected since the last call without being released.
+     *
+     * @return number of leaks found
+     */
+    int reportLeaks() {
+        int found = 0;
+        Reference<?> reference;
+        while ((reference = mCollected.poll()) != null) {
+            Leak leak = (Leak) reference;
+            if (mTracked.remove(leak)) {
+                found++;
+                mLeakCount.incrementAndGet();
+                mLeaks.onNext(leak.mCreated);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Get number of free buffers of size class.
+     */
+    int getFreeCount(int sizeClass) {
+        Buffer[] free = mFree[sizeClass];
+        synchronized (free) {
+            return mFreeCount[sizeClass];
+        }
+    }
+
+    /**
+     * Pooled array with a read-only view of it, both reused by every owner.
+     */
+    static final class Buffer {
+        final byte[] mArray;
+        final int mSizeClass;
+        private final ByteBuffer mView;
+
+        /**
+         * @param array
+         * @param sizeClass -1 for a buffer which is not pooled
+         */
+        Buffer(byte[] array, int sizeClass) {
+            mArray = array;
+            mSizeClass = sizeClass;
+            mView = ByteBuffer.wrap(array).asReadOnlyBuffer();
+        }
+
+        /**
+         * Reset the view to the first length bytes.
+         *
+         * @param length
+         * @return
+         */
+        ByteBuffer view(int length) {
+            mView.clear();
+            mView.limit(length);
+            return mView;
+        }
+    }
+
+    /**
+     * Tracks one owner until it is released. Released owners clear it, so only leaked ones are enqueued.
+     */
+    static final class Leak extends PhantomReference<Object> {
+        final Throwable mCreated;
+
+        Leak(Object owner, ReferenceQueue<Object> queue) {
+            super(owner, queue);
+            mCreated = new IllegalStateException("Event was garbage collected without release()."
+                    + " It was created here.");
+        }
+    }
+}
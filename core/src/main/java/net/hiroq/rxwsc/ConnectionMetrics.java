@@ -0,0 +1,151 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of one connection.
+ * <p>
+ * Inbound counters are only updated by the reader thread and outbound ones only by the writer
+ * thread, so updates are a plain read and an ordered store (lazySet) without any CAS or fence.
+ * Readers of a snapshot may see values slightly behind.
+ */
+final class ConnectionMetrics {
+    private static final int OPCODES = 16;
+
+    private final AtomicLongArray mFramesIn = new AtomicLongArray(OPCODES);
+    private final AtomicLongArray mBytesIn = new AtomicLongArray(OPCODES);
+    private final AtomicLongArray mFramesOut = new AtomicLongArray(OPCODES);
+    private final AtomicLongArray mBytesOut = new AtomicLongArray(OPCODES);
+
+    /**
+     * Single writer counters without an opcode: fragmented in, fragmented out, parse nanos, parsed frames
+     */
+    private static final int FRAGMENTED_IN = 0;
+    private static final int FRAGMENTED_OUT = 1;
+    private static final int PARSE_NANOS = 2;
+    private static final int PARSED_FRAMES = 3;
+    private final AtomicLongArray mCounters = new AtomicLongArray(4);
+
+    private volatile long mHandshakeNanos = -1;
+    private final ConcurrentHashMap<String, AtomicLong> mErrors = new ConcurrentHashMap<String, AtomicLong>();
+
+    private static void increment(AtomicLongArray array, int index, long delta) {
+        array.lazySet(index, array.get(index) + delta);
+    }
+
+    /**
+     * Reader thread only.
+     */
+    void frameIn(int opcode, long length) {
+        increment(mFramesIn, opcode, 1);
+        increment(mBytesIn, opcode, length);
+    }
+
+    /**
+     * Reader thread only. Count payload bytes of a frame counted before.
+     */
+    void bytesIn(int opcode, long length) {
+        increment(mBytesIn, opcode, length);
+    }
+
+    /**
+     * Reader thread only.
+     */
+    void fragmentedIn() {
+        increment(mCounters, FRAGMENTED_IN, 1);
+    }
+
+    /**
+     * Reader thread only. Time spent parsing a number of sampled frames.
+     */
+    void parsed(long nanos, int frames) {
+        increment(mCounters, PARSE_NANOS, nanos);
+        increment(mCounters, PARSED_FRAMES, frames);
+    }
+
+    /**
+     * Writer thread only.
+     */
+    void frameOut(int opcode, long length) {
+        increment(mFramesOut, opcode, 1);
+        increment(mBytesOut, opcode, length);
+    }
+
+    /**
+     * Writer thread only.
+     */
+    void fragmentedOut() {
+        increment(mCounters, FRAGMENTED_OUT, 1);
+    }
+
+    void handshake(long nanos) {
+        mHandshakeNanos = nanos;
+    }
+
+    /**
+     * Any thread. Errors are rare, so they are kept by exception class name.
+     */
+    void error(Throwable e) {
+        String type = e.getClass().getName();
+        AtomicLong count = mErrors.get(type);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = mErrors.putIfAbsent(type, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    MetricsSnapshot snapshot(int queueDepth) {
+        long[] framesIn = new long[OPCODES];
+        long[] bytesIn = new long[OPCODES];
+        long[] framesOut = new long[OPCODES];
+        long[] bytesOut = new long[OPCODES];
+        for (int i = 0; i < OPCODES; i++) {
+            framesIn[i] = mFramesIn.get(i);
+            bytesIn[i] = mBytesIn.get(i);
+            framesOut[i] = mFramesOut.get(i);
+            bytesOut[i] = mBytesOut.get(i);
+        }
+        Map<String, Long> errors = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : mErrors.entrySet()) {
+            errors.put(entry.getKey(), entry.getValue().get());
+        }
+        long parsedFrames = mCounters.get(PARSED_FRAMES);
+        long parseNanos = (parsedFrames > 0) ? mCounters.get(PARSE_NANOS) / parsedFrames : 0;
+        return new MetricsSnapshot(framesIn, bytesIn, framesOut, bytesOut,
+                mCounters.get(FRAGMENTED_IN), mCounters.get(FRAGMENTED_OUT),
+                queueDepth, mHandshakeNanos, parseNanos, errors);
+    }
+}
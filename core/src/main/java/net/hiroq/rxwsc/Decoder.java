@@ -0,0 +1,44 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+/**
+ * Decodes received messages into values, e.g. parses JSON or protobuf.
+ * See {@link RxWebSocketClient#decode(Decoder, rx.Scheduler, int)}.
+ *
+ * @param <T>
+ */
+public interface Decoder<T> {
+    /**
+     * Called once per message, possibly on several threads at once when decoding in parallel.
+     * A pooled message is released after the call, so the value must not keep its buffer.
+     *
+     * @param message MESSAGE_STRING or MESSAGE_BINARY
+     * @return value, or null to skip the message
+     * @throws Exception fails the decoded Observable
+     */
+    T decode(RxWebSocketClient.Event message) throws Exception;
+}
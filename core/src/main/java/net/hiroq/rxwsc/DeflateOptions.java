@@ -0,0 +1,178 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.util.zip.Deflater;
+
+/**
+ * Options of permessage-deflate extension (RFC 7692) offered in the handshake.
+ * <p>
+ * Pass to {@link RxWebSocketClient#setDeflateOptions(DeflateOptions)} to enable compression.
+ * The server decides which of the offered parameters are used.
+ */
+public class DeflateOptions {
+    /**
+     * Default size below which messages are sent uncompressed
+     */
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    private int mThreshold = DEFAULT_THRESHOLD;
+    private int mCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int mServerMaxWindowBits = 15;
+    private int mClientMaxWindowBits = 15;
+    private boolean mServerNoContextTakeover = false;
+    private boolean mClientNoContextTakeover = false;
+
+    /**
+     * Set message size in bytes below which messages are sent uncompressed.
+     *
+     * @param threshold
+     * @return
+     */
+    public DeflateOptions setThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        }
+        mThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Set compression level of outgoing messages, 0-9 or Deflater.DEFAULT_COMPRESSION.
+     *
+     * @param level
+     * @return
+     */
+    public DeflateOptions setCompressionLevel(int level) {
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("invalid compression level " + level);
+        }
+        mCompressionLevel = level;
+        return this;
+    }
+
+    /**
+     * Ask server to compress with LZ77 window of at most 2^bits bytes. 8-15.
+     * Smaller windows save server memory.
+     *
+     * @param bits
+     * @return
+     */
+    public DeflateOptions setServerMaxWindowBits(int bits) {
+        mServerMaxWindowBits = checkWindowBits(bits);
+        return this;
+    }
+
+    /**
+     * Offer to compress with LZ77 window of at most 2^bits bytes. 8-15.
+     * While the window is smaller than 15 bits, only messages not longer than the window are compressed.
+     *
+     * @param bits
+     * @return
+     */
+    public DeflateOptions setClientMaxWindowBits(int bits) {
+        mClientMaxWindowBits = checkWindowBits(bits);
+        return this;
+    }
+
+    /**
+     * Ask server to reset its compression context after every message.
+     *
+     * @param noContextTakeover
+     * @return
+     */
+    public DeflateOptions setServerNoContextTakeover(boolean noContextTakeover) {
+        mServerNoContextTakeover = noContextTakeover;
+        return this;
+    }
+
+    /**
+     * Reset own compression context after every message.
+     * Saves memory of the server's decompressor at the expense of compression ratio.
+     *
+     * @param noContextTakeover
+     * @return
+     */
+    public DeflateOptions setClientNoContextTakeover(boolean noContextTakeover) {
+        mClientNoContextTakeover = noContextTakeover;
+        return this;
+    }
+
+    public int getThreshold() {
+        return mThreshold;
+    }
+
+    public int getCompressionLevel() {
+        return mCompressionLevel;
+    }
+
+    public int getServerMaxWindowBits() {
+        return mServerMaxWindowBits;
+    }
+
+    public int getClientMaxWindowBits() {
+        return mClientMaxWindowBits;
+    }
+
+    public boolean isServerNoContextTakeover() {
+        return mServerNoContextTakeover;
+    }
+
+    public boolean isClientNoContextTakeover() {
+        return mClientNoContextTakeover;
+    }
+
+    /**
+     * Build Sec-WebSocket-Extensions header value
+     *
+     * @return
+     */
+    String toOffer() {
+        StringBuilder offer = new StringBuilder(PerMessageDeflate.EXTENSION_NAME);
+        if (mServerNoContextTakeover) {
+            offer.append("; server_no_context_takeover");
+        }
+        if (mClientNoContextTakeover) {
+            offer.append("; client_no_context_takeover");
+        }
+        if (mServerMaxWindowBits < 15) {
+            offer.append("; server_max_window_bits=").append(mServerMaxWindowBits);
+        }
+        if (mClientMaxWindowBits < 15) {
+            offer.append("; client_max_window_bits=").append(mClientMaxWindowBits);
+        } else {
+            offer.append("; client_max_window_bits");
+        }
+        return offer.toString();
+    }
+
+    private static int checkWindowBits(int bits) {
+        if (bits < 8 || bits > 15) {
+            throw new IllegalArgumentException("window bits must be 8-15 but it was " + bits);
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One selector thread serving many non-blocking connections.
+ * <p>
+ * Channels are registered and all their I/O happens on this thread. Other threads hand work
+ * over with {@link #execute(Runnable)}, which wakes the selector at most once per turn.
+ */
+final class EventLoop implements Runnable {
+    /**
+     * Channel owner, attached to its key.
+     */
+    interface Handler {
+        /**
+         * Called on loop thread when the key is ready for some of its interest ops.
+         *
+         * @param key
+         */
+        void onReady(SelectionKey key);
+    }
+
+    private final Selector mSelector;
+    private final Thread mThread;
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean mWakeupPending = new AtomicBoolean();
+    private volatile boolean mShutdown;
+
+    EventLoop(String name) throws IOException {
+        this(DaemonThreadFactory.INSTANCE, name);
+    }
+
+    EventLoop(ThreadFactory threadFactory, String name) throws IOException {
+        mSelector = Selector.open();
+        mThread = threadFactory.newThread(this);
+        mThread.setName(name);
+        mThread.start();
+    }
+
+    /**
+     * Run task on loop thread, after what it is doing now.
+     *
+     * @param task
+     */
+    void execute(Runnable task) {
+        mTasks.offer(task);
+        if (Thread.currentThread() != mThread && mWakeupPending.compareAndSet(false, true)) {
+            mSelector.wakeup();
+        }
+    }
+
+    /**
+     * @return true when called on loop thread
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Get selector to register channels with. Loop thread only.
+     *
+     * @return
+     */
+    Selector selector() {
+        return mSelector;
+    }
+
+    void shutdown() {
+        mShutdown = true;
+        mSelector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!mShutdown) {
+                if (mTasks.isEmpty()) {
+                    mSelector.select();
+                } else {
+                    mSelector.selectNow();
+                }
+                mWakeupPending.set(false);
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        try {
+                            ((Handler) key.attachment()).onReady(key);
+                        } catch (RuntimeException e) {
+                            // a failing connection must not stop the others
+                        }
+                    }
+                }
+
+                Runnable task;
+                while ((task = mTasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        // a failing connection must not stop the others
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // selector failed, connections on it can not continue
+        } catch (ClosedSelectorException e) {
+            // shut down
+        } finally {
+            for (SelectionKey key : mSelector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
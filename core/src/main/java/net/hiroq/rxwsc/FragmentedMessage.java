@@ -0,0 +1,369 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action0;
+
+/**
+ * Message sent as a sequence of fragments, produced lazily on writer thread.
+ * <p>
+ * Only one fragment worth of payload is held at a time. The writer writes one fragment per
+ * turn, so control frames queued meanwhile go out between fragments; other data frames wait
+ * until the final fragment is written.
+ */
+abstract class FragmentedMessage {
+    /**
+     * A fragment was written
+     */
+    static final int WRITTEN = 0;
+    /**
+     * Nothing to write until the source produces more
+     */
+    static final int WAITING = 1;
+    /**
+     * The final fragment was written
+     */
+    static final int DONE = 2;
+
+    private final int mOpcode;
+    private final boolean mMasking;
+    private final MaskKeyGenerator mKeys;
+    private final byte[] mHeader = new byte[OutboundFrame.MAX_HEADER_SIZE];
+    private boolean mStarted;
+    private int mLastOpcode;
+    private int mLastLength;
+
+    /**
+     * Fragment payload, masked in place
+     */
+    final byte[] mBuffer;
+
+    FragmentedMessage(int opcode, int fragmentSize, boolean masking, MaskKeyGenerator keys) {
+        if (fragmentSize <= 0) {
+            throw new IllegalArgumentException("fragmentSize must be positive");
+        }
+        mOpcode = opcode;
+        mMasking = masking;
+        mKeys = keys;
+        mBuffer = new byte[fragmentSize];
+    }
+
+    /**
+     * Called on writer thread when the message becomes the one being written.
+     *
+     * @param writer to be signaled when the source gets ready
+     */
+    void start(FrameWriter writer) {
+    }
+
+    /**
+     * @return true if {@link #writeNext(OutputStream)} would not return {@link #WAITING}
+     */
+    abstract boolean isReady();
+
+    /**
+     * Write next fragment to stream. Stream is not flushed.
+     *
+     * @param out
+     * @return {@link #WRITTEN}, {@link #WAITING} or {@link #DONE}
+     * @throws IOException
+     */
+    abstract int writeNext(OutputStream out) throws IOException;
+
+    /**
+     * Release the source. Called on writer thread when the message will not be completed.
+     */
+    abstract void cancel();
+
+    /**
+     * @return opcode of the fragment written last
+     */
+    int getLastOpcode() {
+        return mLastOpcode;
+    }
+
+    /**
+     * @return payload length of the fragment written last
+     */
+    int getLastLength() {
+        return mLastLength;
+    }
+
+    /**
+     * Write mBuffer range as the next fragment.
+     */
+    void writeFragment(OutputStream out, int length, boolean fin) throws IOException {
+        int opcode = mStarted ? HybiParser.OP_CONTINUATION : mOpcode;
+        mStarted = true;
+        mLastOpcode = opcode;
+        mLastLength = length;
+        int key = mMasking ? mKeys.next() : 0;
+        int headerLength = HybiParser.header(mHeader, fin, opcode, length, mMasking, key);
+        if (mMasking) {
+            Masker.mask(mBuffer, 0, length, key);
+        }
+        out.write(mHeader, 0, headerLength);
+        out.write(mBuffer, 0, length);
+    }
+
+    /**
+     * Message read from stream. The stream is closed when the message ends.
+     * <p>
+     * Without scheduler the stream is read on writer thread. With one, each fragment is read ahead on
+     * a worker of it, so a writer driven by an event loop never blocks on the stream.
+     */
+    static final class FromStream extends FragmentedMessage {
+        private final InputStream mStream;
+        private final Scheduler mScheduler;
+
+        private Scheduler.Worker mWorker;
+        private FrameWriter mWriter;
+
+        /**
+         * Set by the worker once mBuffer holds the fragment read ahead, or reading failed
+         */
+        private volatile boolean mFilled;
+        private int mLength;
+        private boolean mEnded;
+        private IOException mError;
+
+        private final Action0 mReadAhead = new Action0() {
+            @Override
+            public void call() {
+                try {
+                    mLength = fill();
+                } catch (IOException e) {
+                    mError = e;
+                }
+                mFilled = true;
+                mWriter.signal();
+            }
+        };
+
+        FromStream(int opcode, int fragmentSize, boolean masking, MaskKeyGenerator keys, InputStream stream) {
+            this(opcode, fragmentSize, masking, keys, stream, null);
+        }
+
+        /**
+         * @param scheduler reads the stream, null to read it on writer thread
+         */
+        FromStream(int opcode, int fragmentSize, boolean masking, MaskKeyGenerator keys, InputStream stream,
+                   Scheduler scheduler) {
+            super(opcode, fragmentSize, masking, keys);
+            mStream = stream;
+            mScheduler = scheduler;
+        }
+
+        @Override
+        void start(FrameWriter writer) {
+            if (mScheduler != null) {
+                mWriter = writer;
+                mWorker = mScheduler.createWorker();
+                mWorker.schedule(mReadAhead);
+            }
+        }
+
+        @Override
+        boolean isReady() {
+            return mScheduler == null || mFilled;
+        }
+
+        @Override
+        int writeNext(OutputStream out) throws IOException {
+            int length;
+            if (mScheduler == null) {
+                length = fill();
+            } else if (!mFilled) {
+                return WAITING;
+            } else if (mError != null) {
+                throw mError;
+            } else {
+                length = mLength;
+            }
+            if (mEnded) {
+                // end of stream may only be noticed after a full fragment, then the final one is empty
+                cancel();
+                writeFragment(out, length, true);
+                return DONE;
+            }
+            writeFragment(out, length, false);
+            if (mScheduler != null) {
+                mFilled = false;
+                mWorker.schedule(mReadAhead);
+            }
+            return WRITTEN;
+        }
+
+        /**
+         * Read mBuffer full, or up to the end of stream which sets mEnded.
+         *
+         * @return length read
+         */
+        private int fill() throws IOException {
+            byte[] buffer = mBuffer;
+            int length = 0;
+            while (length < buffer.length) {
+                int read = mStream.read(buffer, length, buffer.length - length);
+                if (read == -1) {
+                    mEnded = true;
+                    break;
+                }
+                length += read;
+            }
+            return length;
+        }
+
+        @Override
+        void cancel() {
+            if (mWorker != null) {
+                mWorker.unsubscribe();
+            }
+            try {
+                mStream.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Message pulled from an Observable one item at a time. Items larger than the fragment size
+     * are split, and the final fragment is an empty one written when the source completes.
+     */
+    static final class FromObservable extends FragmentedMessage {
+        private final Observable<byte[]> mSource;
+
+        /**
+         * Holds at most one item, as only one is requested at a time
+         */
+        private final ConcurrentLinkedQueue<byte[]> mItems = new ConcurrentLinkedQueue<byte[]>();
+        private volatile boolean mCompleted;
+        private volatile Throwable mError;
+
+        private ItemSubscriber mSubscriber;
+        private byte[] mItem;
+        private int mItemOffset;
+
+        FromObservable(int opcode, int fragmentSize, boolean masking, MaskKeyGenerator keys, Observable<byte[]> source) {
+            super(opcode, fragmentSize, masking, keys);
+            mSource = source;
+        }
+
+        @Override
+        void start(FrameWriter writer) {
+            mSubscriber = new ItemSubscriber(writer);
+            mSource.subscribe(mSubscriber);
+        }
+
+        @Override
+        boolean isReady() {
+            return mItem != null || !mItems.isEmpty() || mCompleted || mError != null;
+        }
+
+        @Override
+        int writeNext(OutputStream out) throws IOException {
+            while (mItem == null) {
+                byte[] item = mItems.poll();
+                if (item == null) {
+                    if (mError != null) {
+                        throw new IOException("Message source failed: " + mError.getMessage(), mError);
+                    }
+                    if (mCompleted) {
+                        writeFragment(out, 0, true);
+                        return DONE;
+                    }
+                    return WAITING;
+                }
+                if (item.length > 0) {
+                    mItem = item;
+                    mItemOffset = 0;
+                } else {
+                    mSubscriber.requestNext();
+                }
+            }
+
+            int length = Math.min(mBuffer.length, mItem.length - mItemOffset);
+            System.arraycopy(mItem, mItemOffset, mBuffer, 0, length);
+            mItemOffset += length;
+            if (mItemOffset == mItem.length) {
+                mItem = null;
+                mSubscriber.requestNext();
+            }
+            writeFragment(out, length, false);
+            return WRITTEN;
+        }
+
+        @Override
+        void cancel() {
+            if (mSubscriber != null) {
+                mSubscriber.unsubscribe();
+            }
+        }
+
+        private final class ItemSubscriber extends Subscriber<byte[]> {
+            private final FrameWriter mWriter;
+
+            ItemSubscriber(FrameWriter writer) {
+                mWriter = writer;
+            }
+
+            void requestNext() {
+                request(1);
+            }
+
+            @Override
+            public void onStart() {
+                request(1);
+            }
+
+            @Override
+            public void onNext(byte[] bytes) {
+                mItems.offer(bytes);
+                mWriter.signal();
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                mError = e;
+                mWriter.signal();
+            }
+
+            @Override
+            public void onCompleted() {
+                mCompleted = true;
+                mWriter.signal();
+            }
+        }
+    }
+}
@@ -0,0 +1,385 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.hiroq.rxwsc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered WebSocket frame reader.
+ * <p>
+ * Pulls large chunks from the stream into one reusable buffer and splits as many frames as
+ * the chunk contains, so small frames cost neither a read call nor an allocation each.
+ * Payloads are unmasked in place and handed to the {@link Callback} as a range of the buffer.
+ * The range is only valid during the callback.
+ * <p>
+ * Without a stream the reader works in push mode: a non-blocking owner hands over whatever
+ * it received with {@link #feed(byte[], int, int)}, and frames larger than the buffer are
+ * carried across calls.
+ */
+class FrameReader {
+    /**
+     * Receives every complete frame.
+     */
+    interface Callback {
+        /**
+         * @param header  first byte of the frame (FIN, RSV and opcode bits)
+         * @param payload array holding the unmasked payload
+         * @param offset  payload offset in the array
+         * @param length  payload length
+         * @throws IOException
+         */
+        void onFrame(int header, byte[] payload, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Receives frames too large for the read buffer in parts instead of as a whole.
+     */
+    interface PartialCallback extends Callback {
+        /**
+         * @param header  first byte of the frame (FIN, RSV and opcode bits)
+         * @param payload array holding the unmasked part of payload
+         * @param offset  part offset in the array
+         * @param length  part length
+         * @param first   true for the first part of the frame
+         * @param last    true for the last part of the frame
+         * @throws IOException
+         */
+        void onFramePart(int header, byte[] payload, int offset, int length, boolean first, boolean last) throws IOException;
+    }
+
+    /**
+     * Default size of read buffer
+     */
+    static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    private static final int MASK = 128;
+    private static final int LENGTH = 127;
+
+    /**
+     * Parse time is measured for one in SAMPLE_MASK + 1 frames, to keep clock reads off most frames
+     */
+    private static final int SAMPLE_MASK = 15;
+
+    private final InputStream mStream;
+    private final Callback mCallback;
+
+    /**
+     * Read buffer. Bytes between mStart and mEnd are not parsed yet.
+     */
+    private final byte[] mBuffer;
+    private int mStart;
+    private int mEnd;
+
+    private ConnectionMetrics mMetrics;
+    private int mSample;
+
+    /**
+     * Push mode state of a frame larger than the buffer. mLargePayload is null when it is
+     * delivered in parts.
+     */
+    private int mLargeHeader;
+    private int mLargeRemaining;
+    private boolean mLargeMasked;
+    private int mLargeMask;
+    private boolean mLargeFirst;
+    private byte[] mLargePayload;
+    private int mLargePosition;
+
+    FrameReader(InputStream stream, Callback callback) {
+        this(stream, callback, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Reader in push mode.
+     *
+     * @param callback
+     */
+    FrameReader(Callback callback) {
+        this(null, callback, DEFAULT_BUFFER_SIZE);
+    }
+
+    FrameReader(InputStream stream, Callback callback, int bufferSize) {
+        if (bufferSize < 14) {
+            throw new IllegalArgumentException("bufferSize must hold at least a frame header");
+        }
+        mStream = stream;
+        mCallback = callback;
+        mBuffer = new byte[bufferSize];
+    }
+
+    /**
+     * Sample parse time of frames into metrics.
+     *
+     * @param metrics may be null
+     */
+    void setMetrics(ConnectionMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Read and dispatch frames until the stream ends.
+     *
+     * @throws EOFException when the stream ends
+     * @throws IOException
+     */
+    void run() throws IOException {
+        while (true) {
+            read();
+        }
+    }
+
+    /**
+     * Issue one read on the stream and dispatch every frame completed by it.
+     *
+     * @throws EOFException when the stream ends
+     * @throws IOException
+     */
+    void read() throws IOException {
+        if (mStart > 0) {
+            // keep the partial frame at the head of buffer
+            System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+            mEnd -= mStart;
+            mStart = 0;
+        }
+
+        int read = mStream.read(mBuffer, mEnd, mBuffer.length - mEnd);
+        if (read == -1) {
+            throw new EOFException();
+        }
+        mEnd += read;
+        dispatch();
+    }
+
+    /**
+     * Push mode: dispatch every frame completed by data. Parts of frames larger than the buffer
+     * are unmasked in data itself.
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    void feed(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (mLargeRemaining > 0) {
+                int consumed = feedLarge(data, offset, length);
+                offset += consumed;
+                length -= consumed;
+                continue;
+            }
+
+            if (mStart > 0) {
+                System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+                mEnd -= mStart;
+                mStart = 0;
+            }
+            int copied = Math.min(length, mBuffer.length - mEnd);
+            System.arraycopy(data, offset, mBuffer, mEnd, copied);
+            mEnd += copied;
+            offset += copied;
+            length -= copied;
+            dispatch();
+        }
+    }
+
+    private void dispatch() throws IOException {
+        byte[] buffer = mBuffer;
+        while (true) {
+            int start = mStart;
+            int available = mEnd - start;
+            if (available < 2) {
+                return;
+            }
+            boolean sampled = mMetrics != null && (mSample++ & SAMPLE_MASK) == 0;
+            long begin = sampled ? System.nanoTime() : 0;
+
+            int header = buffer[start] & 0xFF;
+            int data = buffer[start + 1] & 0xFF;
+            boolean masked = (data & MASK) == MASK;
+            long length = data & LENGTH;
+            int headerSize = 2;
+
+            if (length == 126) {
+                headerSize = 4;
+                if (available < headerSize) {
+                    return;
+                }
+                length = ((buffer[start + 2] & 0xFF) << 8) | (buffer[start + 3] & 0xFF);
+            } else if (length == 127) {
+                headerSize = 10;
+                if (available < headerSize) {
+                    return;
+                }
+                length = 0;
+                for (int i = 2; i < 10; i++) {
+                    length = (length << 8) | (buffer[start + i] & 0xFF);
+                }
+                if (length < 0 || length > Integer.MAX_VALUE) {
+                    throw new HybiParser.ProtocolError("Bad integer: " + length);
+                }
+            }
+
+            int mask = 0;
+            if (masked) {
+                if (available < headerSize + 4) {
+                    return;
+                }
+                mask = ((buffer[start + headerSize] & 0xFF) << 24)
+                        | ((buffer[start + headerSize + 1] & 0xFF) << 16)
+                        | ((buffer[start + headerSize + 2] & 0xFF) << 8)
+                        | (buffer[start + headerSize + 3] & 0xFF);
+                headerSize += 4;
+            }
+
+            int payloadLength = (int) length;
+            if (payloadLength > buffer.length - headerSize) {
+                // Payload can not fit in buffer, stream it in parts or read it into its own array.
+                if (mStream == null) {
+                    beginLarge(header, start + headerSize, payloadLength, masked, mask);
+                    return;
+                } else if (mCallback instanceof PartialCallback) {
+                    readParts((PartialCallback) mCallback, header, start + headerSize, payloadLength, masked, mask);
+                } else {
+                    readLarge(header, start + headerSize, payloadLength, masked, mask);
+                }
+                continue;
+            }
+
+            if (available < headerSize + payloadLength) {
+                return;
+            }
+
+            int offset = start + headerSize;
+            if (masked) {
+                Masker.mask(buffer, offset, payloadLength, mask);
+            }
+            mStart = offset + payloadLength;
+            if (sampled) {
+                mMetrics.parsed(System.nanoTime() - begin, 1);
+            }
+            mCallback.onFrame(header, buffer, offset, payloadLength);
+        }
+    }
+
+    private void beginLarge(int header, int offset, int length, boolean masked, int mask) throws IOException {
+        mLargeHeader = header;
+        mLargeRemaining = length;
+        mLargeMasked = masked;
+        mLargeMask = mask;
+        mLargeFirst = true;
+        mLargePayload = (mCallback instanceof PartialCallback) ? null : new byte[length];
+        mLargePosition = 0;
+
+        int buffered = mEnd - offset;
+        mStart = 0;
+        mEnd = 0;
+        if (buffered > 0) {
+            feedLarge(mBuffer, offset, buffered);
+        }
+    }
+
+    private int feedLarge(byte[] data, int offset, int length) throws IOException {
+        int part = Math.min(length, mLargeRemaining);
+        if (mLargeMasked) {
+            mLargeMask = Masker.mask(data, offset, part, mLargeMask);
+        }
+        mLargeRemaining -= part;
+
+        if (mLargePayload == null) {
+            boolean first = mLargeFirst;
+            mLargeFirst = false;
+            ((PartialCallback) mCallback).onFramePart(mLargeHeader, data, offset, part, first, mLargeRemaining == 0);
+        } else {
+            System.arraycopy(data, offset, mLargePayload, mLargePosition, part);
+            mLargePosition += part;
+            if (mLargeRemaining == 0) {
+                byte[] payload = mLargePayload;
+                mLargePayload = null;
+                mCallback.onFrame(mLargeHeader, payload, 0, payload.length);
+            }
+        }
+        return part;
+    }
+
+    private void readParts(PartialCallback callback, int header, int offset, int length,
+                           boolean masked, int mask) throws IOException {
+        int remaining = length;
+        int buffered = Math.min(mEnd - offset, length);
+        boolean first = true;
+        mStart = 0;
+        mEnd = 0;
+
+        if (buffered > 0) {
+            if (masked) {
+                mask = Masker.mask(mBuffer, offset, buffered, mask);
+            }
+            remaining -= buffered;
+            callback.onFramePart(header, mBuffer, offset, buffered, true, remaining == 0);
+            first = false;
+        }
+
+        while (remaining > 0) {
+            int part = Math.min(mBuffer.length, remaining);
+            int position = 0;
+            while (position < part) {
+                int read = mStream.read(mBuffer, position, part - position);
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                position += read;
+            }
+            if (masked) {
+                mask = Masker.mask(mBuffer, 0, part, mask);
+            }
+            remaining -= part;
+            callback.onFramePart(header, mBuffer, 0, part, first, remaining == 0);
+            first = false;
+        }
+    }
+
+    private void readLarge(int header, int offset, int length, boolean masked, int mask) throws IOException {
+        byte[] payload = new byte[length];
+        int buffered = Math.min(mEnd - offset, length);
+        System.arraycopy(mBuffer, offset, payload, 0, buffered);
+        mStart = 0;
+        mEnd = 0;
+
+        int position = buffered;
+        while (position < length) {
+            int read = mStream.read(payload, position, length - position);
+            if (read == -1) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+
+        if (masked) {
+            Masker.mask(payload, 0, length, mask);
+        }
+        mCallback.onFrame(header, payload, 0, length);
+    }
+}
@@ -0,0 +1,671 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writer thread of one connection.
+ * <p>
+ * Any thread may offer frames; they go through lock-free queues and the writer drains
+ * everything pending into the buffered stream before it flushes once. With a linger time the
+ * writer keeps collecting frames for at most that long before the flush, trading latency for
+ * fewer writes (and fewer TLS records).
+ * <p>
+ * Frames wait in one of three lanes, each in order: control frames, high priority messages and
+ * bulk messages. Control frames are always written next, so pings, pongs and close never wait
+ * behind queued data. High priority messages go before bulk ones, but after a burst of
+ * {@link #DEFAULT_HIGH_BURST} of them a waiting bulk message is let through, so bulk data is
+ * slowed down and never starved.
+ * <p>
+ * A {@link FragmentedMessage} is written one fragment per turn. While it is in progress,
+ * control frames are still written as they come, and messages of both data lanes wait until
+ * its final fragment, as fragments of messages must not interleave.
+ * <p>
+ * Queued bytes are counted against watermarks: above the high one the writer turns unwritable,
+ * and writable again once the queue has drained to the low one. As frames wait in the queue while
+ * the socket does not take them, this reflects a full TCP send buffer as well.
+ * <p>
+ * Listeners of frames are told once their bytes were flushed, or handed to the socket by the
+ * event loop, and fail with the frame when it is dropped.
+ * <p>
+ * Without a thread of its own the writer is driven by an event loop: offers run the wakeup
+ * action, and the loop calls {@link #writeNext(OutputStream)}, {@link #flushed()} and
+ * {@link #finish()} itself.
+ */
+class FrameWriter implements Runnable {
+    /**
+     * Receives write errors. Called on writer thread.
+     */
+    interface Callback {
+        void onError(IOException e);
+    }
+
+    /**
+     * Told when queued bytes cross the watermarks. Called on the thread which offered or wrote the frame,
+     * one call at a time.
+     */
+    interface WritabilityListener {
+        void onWritabilityChanged(boolean writable);
+    }
+
+    /**
+     * Default size of write buffer
+     */
+    static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Default number of high priority messages written in a row while a bulk message waits
+     */
+    static final int DEFAULT_HIGH_BURST = 8;
+
+    /**
+     * Default watermarks of queued bytes
+     */
+    static final int DEFAULT_LOW_WATERMARK = 32 * 1024;
+    static final int DEFAULT_HIGH_WATERMARK = 64 * 1024;
+
+    private final ConcurrentLinkedQueue<OutboundFrame> mControl = new ConcurrentLinkedQueue<OutboundFrame>();
+    private final ConcurrentLinkedQueue<OutboundFrame> mHigh = new ConcurrentLinkedQueue<OutboundFrame>();
+    private final ConcurrentLinkedQueue<OutboundFrame> mBulk = new ConcurrentLinkedQueue<OutboundFrame>();
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicLong mQueuedBytes = new AtomicLong();
+
+    private volatile long mLowWatermark = DEFAULT_LOW_WATERMARK;
+    private volatile long mHighWatermark = DEFAULT_HIGH_WATERMARK;
+    private volatile boolean mWritable = true;
+    private volatile WritabilityListener mWritabilityListener;
+    /**
+     * Guards the writability below. Not held while the listener runs, which may run any subscriber code:
+     * the thread that is notifying keeps telling the listener until it has the latest writability.
+     */
+    private final ReentrantLock mWritabilityLock = new ReentrantLock();
+    private boolean mNotified = true;
+    private boolean mNotifying;
+
+    private final Callback mCallback;
+    private final Thread mThread;
+    private final Runnable mWakeup;
+
+    /**
+     * Scratch buffer for masked copies
+     */
+    private final byte[] mScratch = new byte[8192];
+
+    private volatile OutputStream mOutputStream;
+    private volatile long mLingerNanos;
+
+    /**
+     * True while writer is parked without a deadline
+     */
+    private volatile boolean mSleeping;
+    private volatile boolean mClosing;
+    private volatile Runnable mCloseAction;
+
+    private boolean mFailed;
+    private volatile boolean mFinished;
+    private volatile ConnectionMetrics mMetrics;
+
+    /**
+     * Fragmented message being written and its listener. Writer thread only.
+     */
+    private FragmentedMessage mCurrent;
+    private OutboundFrame.Listener mCurrentListener;
+
+    /**
+     * Listeners of frames written since the last flush. Writer thread only.
+     */
+    private final ArrayList<OutboundFrame.Listener> mUnflushed = new ArrayList<OutboundFrame.Listener>();
+
+    /**
+     * High priority messages written since the last bulk one. Writer thread only.
+     */
+    private int mHighBurst = DEFAULT_HIGH_BURST;
+    private int mHighRun;
+
+    FrameWriter(String name, Callback callback) {
+        this(DaemonThreadFactory.INSTANCE, name, callback);
+    }
+
+    /**
+     * Writer with a thread of threadFactory.
+     *
+     * @param threadFactory
+     * @param name          of the thread
+     * @param callback
+     */
+    FrameWriter(ThreadFactory threadFactory, String name, Callback callback) {
+        mCallback = callback;
+        mWakeup = null;
+        mThread = threadFactory.newThread(this);
+        mThread.setName(name);
+        mThread.start();
+    }
+
+    /**
+     * Writer driven by an event loop.
+     *
+     * @param callback
+     * @param wakeup   run on any thread when there may be something to write
+     */
+    FrameWriter(Callback callback, Runnable wakeup) {
+        mCallback = callback;
+        mWakeup = wakeup;
+        mThread = null;
+    }
+
+    /**
+     * Set max time a written frame may wait in buffer for following frames before flush.
+     *
+     * @param time
+     * @param unit
+     */
+    void setLinger(long time, TimeUnit unit) {
+        mLingerNanos = unit.toNanos(time);
+    }
+
+    /**
+     * Set number of high priority messages written in a row while a bulk message waits. Set before start.
+     *
+     * @param burst
+     */
+    void setHighBurst(int burst) {
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst must be positive");
+        }
+        mHighBurst = burst;
+    }
+
+    /**
+     * Set watermarks of queued bytes. Set before start.
+     *
+     * @param low  writable again at or below this
+     * @param high unwritable above this
+     */
+    void setWatermarks(long low, long high) {
+        if (low < 0 || high < low) {
+            throw new IllegalArgumentException("0 <= low <= high required");
+        }
+        mLowWatermark = low;
+        mHighWatermark = high;
+    }
+
+    /**
+     * @param listener may be null
+     */
+    void setWritabilityListener(WritabilityListener listener) {
+        mWritabilityListener = listener;
+    }
+
+    /**
+     * @return false while queued bytes are above the high watermark and have not drained to the low one
+     */
+    boolean isWritable() {
+        return mWritable;
+    }
+
+    /**
+     * Get number of bytes waiting to be written. Fragmented messages count as nothing.
+     *
+     * @return
+     */
+    long getQueuedBytes() {
+        return mQueuedBytes.get();
+    }
+
+    /**
+     * Count written frames into metrics.
+     *
+     * @param metrics may be null
+     */
+    void setMetrics(ConnectionMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Attach stream and start writing queued frames.
+     *
+     * @param out buffered socket stream
+     */
+    void start(OutputStream out) {
+        mOutputStream = out;
+        LockSupport.unpark(mThread);
+    }
+
+    private void wakeup() {
+        if (mThread == null) {
+            mWakeup.run();
+        } else if (mSleeping) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    /**
+     * Queue frame to write in the lane it belongs to.
+     *
+     * @param frame
+     * @return false if writer is closed
+     */
+    boolean offer(OutboundFrame frame) {
+        if (mClosing) {
+            return false;
+        }
+        mQueueDepth.incrementAndGet();
+        if (mQueuedBytes.addAndGet(frame.size()) > mHighWatermark && mWritable) {
+            updateWritability();
+        }
+        ConcurrentLinkedQueue<OutboundFrame> lane = frame.isControl() ? mControl : frame.isBulk() ? mBulk : mHigh;
+        lane.offer(frame);
+        if (mFinished && lane.remove(frame)) {
+            // finish() drained the lanes before this frame got in, nobody would ever take it
+            mQueueDepth.set(0);
+            mQueuedBytes.set(0);
+            return false;
+        }
+        wakeup();
+        return true;
+    }
+
+    /**
+     * Take the data frames still waiting in the lanes, high lane first, so they can go out on the next
+     * connection. Control frames belong to this connection and stay. A frame the writer took already is
+     * written or fails as usual. Called on any thread, before the writer is closed.
+     *
+     * @return frames in the order of each lane
+     */
+    List<OutboundFrame> takeQueued() {
+        List<OutboundFrame> frames = new ArrayList<OutboundFrame>();
+        take(mHigh, frames);
+        take(mBulk, frames);
+        return frames;
+    }
+
+    private void take(Queue<OutboundFrame> lane, List<OutboundFrame> frames) {
+        OutboundFrame frame;
+        while ((frame = lane.poll()) != null) {
+            mQueueDepth.decrementAndGet();
+            mQueuedBytes.addAndGet(-frame.size());
+            frames.add(frame);
+        }
+    }
+
+    /**
+     * Wake writer up because the current fragmented message got ready.
+     */
+    void signal() {
+        wakeup();
+    }
+
+    /**
+     * Get number of frames waiting to be written.
+     *
+     * @return
+     */
+    int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /**
+     * Stop accepting frames. Queued frames are written and flushed, then action runs on writer thread.
+     * A fragmented message still waiting for its source is cut off, together with frames behind it.
+     * Only the first call has effect.
+     *
+     * @param action may be null
+     */
+    void close(Runnable action) {
+        if (mClosing) {
+            return;
+        }
+        mCloseAction = action;
+        mClosing = true;
+        if (mThread == null) {
+            mWakeup.run();
+        } else {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    /**
+     * @return true once close was called
+     */
+    boolean isClosing() {
+        return mClosing;
+    }
+
+    @Override
+    public void run() {
+        boolean pending = false;
+        long deadline = 0;
+
+        while (true) {
+            OutputStream out = mOutputStream;
+            if (out != null && writeNext(out)) {
+                if (!pending) {
+                    pending = true;
+                    deadline = System.nanoTime() + mLingerNanos;
+                }
+                continue;
+            }
+
+            if (pending) {
+                long wait = deadline - System.nanoTime();
+                if (wait > 0 && !mClosing) {
+                    LockSupport.parkNanos(this, wait);
+                    continue;
+                }
+                try {
+                    out.flush();
+                    flushed();
+                } catch (IOException e) {
+                    fail(e);
+                }
+                pending = false;
+                continue;
+            }
+
+            if (mClosing) {
+                break;
+            }
+
+            mSleeping = true;
+            if (!mClosing && (mOutputStream == null || !isReady())) {
+                LockSupport.park(this);
+            }
+            mSleeping = false;
+        }
+
+        finish();
+    }
+
+    /**
+     * Write the next frame, or the next fragment of the current message. Stream is not flushed.
+     * Called by the writer thread, or by the event loop driving the writer.
+     *
+     * @param out
+     * @return false if nothing can be written now
+     */
+    boolean writeNext(OutputStream out) {
+        OutboundFrame frame = next();
+        if (frame != null) {
+            mQueueDepth.decrementAndGet();
+            if (mQueuedBytes.addAndGet(-frame.size()) <= mLowWatermark && !mWritable) {
+                updateWritability();
+            }
+            FragmentedMessage fragments = frame.getFragments();
+            if (mFailed) {
+                frame.discard(closed());
+                return true;
+            }
+            ConnectionMetrics metrics = mMetrics;
+            if (fragments != null) {
+                mCurrent = fragments;
+                mCurrentListener = frame.getListener();
+                if (metrics != null) {
+                    metrics.fragmentedOut();
+                }
+                try {
+                    fragments.start(this);
+                } catch (RuntimeException e) {
+                    fail(writeFailed(e));
+                }
+                return true;
+            }
+            IOException error;
+            try {
+                int length = frame.writeTo(out, mScratch);
+                if (metrics != null) {
+                    metrics.frameOut(frame.opcode(), length);
+                }
+                if (frame.getListener() != null) {
+                    mUnflushed.add(frame.getListener());
+                }
+                return true;
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = writeFailed(e);
+            }
+            OutboundFrame.Listener listener = frame.getListener();
+            if (listener != null) {
+                listener.onFailed(error);
+            }
+            fail(error);
+            return true;
+        }
+
+        FragmentedMessage current = mCurrent;
+        if (current == null) {
+            return false;
+        }
+        try {
+            int state = current.writeNext(out);
+            if (state == FragmentedMessage.WAITING) {
+                return false;
+            }
+            ConnectionMetrics metrics = mMetrics;
+            if (metrics != null) {
+                metrics.frameOut(current.getLastOpcode(), current.getLastLength());
+            }
+            if (state == FragmentedMessage.DONE) {
+                mCurrent = null;
+                if (mCurrentListener != null) {
+                    mUnflushed.add(mCurrentListener);
+                    mCurrentListener = null;
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(writeFailed(e));
+        }
+        return true;
+    }
+
+    /**
+     * Tell listeners of the frames written so far that they reached the socket.
+     * Called after a flush by the writer thread, or by the event loop once it wrote out what it got.
+     */
+    void flushed() {
+        int count = mUnflushed.size();
+        if (count == 0) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            mUnflushed.get(i).onWritten();
+        }
+        mUnflushed.clear();
+    }
+
+    /**
+     * Drop what is left and run the close action. Called once writing is over, on the thread
+     * which wrote. Only the first call has effect.
+     */
+    void finish() {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        IOException closed = closed();
+        cancelCurrent(closed);
+        failUnflushed(closed);
+        cancelAll(mControl, closed);
+        cancelAll(mHigh, closed);
+        cancelAll(mBulk, closed);
+        mQueueDepth.set(0);
+        mQueuedBytes.set(0);
+        Runnable action = mCloseAction;
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    /**
+     * Take next frame allowed on the wire now.
+     */
+    private OutboundFrame next() {
+        OutboundFrame frame = mControl.poll();
+        if (frame != null || mCurrent != null) {
+            return frame;
+        }
+        if (mHighRun >= mHighBurst) {
+            frame = mBulk.poll();
+            if (frame != null) {
+                mHighRun = 0;
+                return frame;
+            }
+        }
+        frame = mHigh.poll();
+        if (frame != null) {
+            mHighRun = mBulk.isEmpty() ? 0 : mHighRun + 1;
+            return frame;
+        }
+        frame = mBulk.poll();
+        if (frame != null) {
+            mHighRun = 0;
+        }
+        return frame;
+    }
+
+    /**
+     * @return true if next() or the current fragmented message has something to write
+     */
+    private boolean isReady() {
+        if (!mControl.isEmpty()) {
+            return true;
+        }
+        if (mCurrent != null) {
+            return mCurrent.isReady();
+        }
+        return !mHigh.isEmpty() || !mBulk.isEmpty();
+    }
+
+    /**
+     * Flip writability as long as queued bytes say so. Transitions and their calls are serialized,
+     * and the count is read again after each one, so a race between offer and write can not leave
+     * the writer unwritable with an empty queue.
+     */
+    private void updateWritability() {
+        boolean notifying = false;
+        while (true) {
+            boolean writable;
+            WritabilityListener listener;
+            mWritabilityLock.lock();
+            try {
+                long queued = mQueuedBytes.get();
+                if (mWritable && queued > mHighWatermark) {
+                    mWritable = false;
+                } else if (!mWritable && queued <= mLowWatermark) {
+                    mWritable = true;
+                }
+                if (!notifying) {
+                    if (mNotifying) {
+                        return;
+                    }
+                    mNotifying = true;
+                    notifying = true;
+                }
+                writable = mWritable;
+                listener = mWritabilityListener;
+                if (writable == mNotified || listener == null) {
+                    mNotified = writable;
+                    mNotifying = false;
+                    return;
+                }
+                mNotified = writable;
+            } finally {
+                mWritabilityLock.unlock();
+            }
+            try {
+                listener.onWritabilityChanged(writable);
+            } catch (RuntimeException e) {
+                mWritabilityLock.lock();
+                try {
+                    mNotifying = false;
+                } finally {
+                    mWritabilityLock.unlock();
+                }
+                throw e;
+            }
+        }
+    }
+
+    private static IOException closed() {
+        return new IOException("Connection closed before the frame was written");
+    }
+
+    /**
+     * A bug while writing must still end the connection and fail the frames, not kill the writer thread
+     * with every listener left waiting.
+     */
+    private static IOException writeFailed(RuntimeException e) {
+        return new IOException("Failed to write frame", e);
+    }
+
+    private static void cancelAll(Queue<OutboundFrame> frames, IOException e) {
+        OutboundFrame frame;
+        while ((frame = frames.poll()) != null) {
+            frame.discard(e);
+        }
+    }
+
+    private void cancelCurrent(IOException e) {
+        if (mCurrent != null) {
+            mCurrent.cancel();
+            mCurrent = null;
+        }
+        if (mCurrentListener != null) {
+            mCurrentListener.onFailed(e);
+            mCurrentListener = null;
+        }
+    }
+
+    private void failUnflushed(IOException e) {
+        for (int i = 0; i < mUnflushed.size(); i++) {
+            mUnflushed.get(i).onFailed(e);
+        }
+        mUnflushed.clear();
+    }
+
+    private void fail(IOException e) {
+        cancelCurrent(e);
+        failUnflushed(e);
+        if (!mFailed) {
+            mFailed = true;
+            mCallback.onError(e);
+        }
+    }
+}
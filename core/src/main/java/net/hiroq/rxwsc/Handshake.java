@@ -0,0 +1,377 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.ConnectException;
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Opening handshake (RFC 6455 4.1) on bytes.
+ * <p>
+ * The upgrade request is encoded straight into one array, and the response is parsed
+ * incrementally from whatever chunks arrive, looking only at the status code and the
+ * headers the client validates.
+ */
+final class Handshake {
+    /**
+     * Responses larger than this are rejected
+     */
+    static final int MAX_RESPONSE_SIZE = 16 * 1024;
+
+    private static final int READ_BUFFER_SIZE = 2048;
+    private static final int LINE_BUFFER_SIZE = 256;
+    private static final int SWITCHING_PROTOCOLS = 101;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] ACCEPT = ascii("sec-websocket-accept");
+    private static final byte[] EXTENSIONS = ascii("sec-websocket-extensions");
+
+    private Handshake() {
+    }
+
+    /**
+     * Encode upgrade request.
+     *
+     * @param host
+     * @param path         request target
+     * @param origin
+     * @param key          Sec-WebSocket-Key
+     * @param extensions   Sec-WebSocket-Extensions offer, may be null
+     * @param extraHeaders may be null
+     * @return
+     */
+    static byte[] request(String host, String path, String origin, String key, String extensions,
+                          List<Map.Entry<String, String>> extraHeaders) {
+        Encoder out = new Encoder(160 + host.length() + path.length() + origin.length() + key.length()
+                + (extensions != null ? extensions.length() + 28 : 0) + headersLength(extraHeaders));
+        out.append("GET ").append(path).append(" HTTP/1.1\r\n");
+        out.append("Upgrade: websocket\r\n");
+        out.append("Connection: Upgrade\r\n");
+        out.append("Host: ").append(host).append("\r\n");
+        out.append("Origin: ").append(origin).append("\r\n");
+        out.append("Sec-WebSocket-Key: ").append(key).append("\r\n");
+        out.append("Sec-WebSocket-Version: 13\r\n");
+        if (extensions != null) {
+            out.append("Sec-WebSocket-Extensions: ").append(extensions).append("\r\n");
+        }
+        if (extraHeaders != null) {
+            for (Map.Entry<String, String> header : extraHeaders) {
+                out.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        out.append("\r\n");
+        return out.toByteArray();
+    }
+
+    private static int headersLength(List<Map.Entry<String, String>> headers) {
+        int length = 0;
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers) {
+                length += header.getKey().length() + header.getValue().length() + 4;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Read response from a blocking stream in chunks.
+     *
+     * @param in
+     * @param response
+     * @return stream continuing with the bytes following the response
+     * @throws ConnectException  when the stream ends without a response
+     * @throws ProtocolException when the response is invalid or incomplete
+     * @throws IOException
+     */
+    static InputStream readResponse(InputStream in, Response response) throws IOException {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        boolean received = false;
+        while (true) {
+            int read = in.read(buffer);
+            if (read == -1) {
+                if (!received) {
+                    throw new ConnectException("Received no reply from server.");
+                }
+                throw new ProtocolException("Handshake response is incomplete.");
+            }
+            received |= read > 0;
+            int used = response.feed(buffer, 0, read);
+            if (response.isComplete()) {
+                if (used == read) {
+                    return in;
+                }
+                return new SequenceInputStream(new ByteArrayInputStream(buffer, used, read - used), in);
+            }
+        }
+    }
+
+    private static byte[] ascii(String string) {
+        byte[] bytes = new byte[string.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) string.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Request bytes. Sized up front, so it is not grown unless headers hold non-ASCII characters.
+     */
+    private static final class Encoder {
+        private byte[] mBuffer;
+        private int mLength;
+
+        Encoder(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        Encoder append(String string) {
+            int length = string.length();
+            ensure(length);
+            byte[] buffer = mBuffer;
+            int position = mLength;
+            for (int i = 0; i < length; i++) {
+                char c = string.charAt(i);
+                if (c >= 0x80) {
+                    mLength = position;
+                    return appendBytes(string.substring(i).getBytes(UTF_8));
+                }
+                buffer[position++] = (byte) c;
+            }
+            mLength = position;
+            return this;
+        }
+
+        private Encoder appendBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, mBuffer, mLength, bytes.length);
+            mLength += bytes.length;
+            return this;
+        }
+
+        private void ensure(int length) {
+            if (mLength + length > mBuffer.length) {
+                byte[] buffer = new byte[Math.max(mBuffer.length * 2, mLength + length)];
+                System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+                mBuffer = buffer;
+            }
+        }
+
+        byte[] toByteArray() {
+            if (mLength == mBuffer.length) {
+                return mBuffer;
+            }
+            byte[] bytes = new byte[mLength];
+            System.arraycopy(mBuffer, 0, bytes, 0, mLength);
+            return bytes;
+        }
+    }
+
+    /**
+     * Incremental HTTP/1.1 response parser. Feed it bytes until it is complete; the bytes
+     * following the empty line are left to the caller.
+     */
+    static final class Response {
+        /**
+         * Line being received, grown for long lines
+         */
+        private byte[] mLine = new byte[LINE_BUFFER_SIZE];
+        private int mLineLength;
+        private int mSize;
+        private int mStatusCode = -1;
+        private boolean mComplete;
+        private String mAccept;
+        private String mExtensions;
+
+        /**
+         * @param data
+         * @param offset
+         * @param length
+         * @return number of bytes used, less than length only when the response completed
+         * @throws ProtocolException when the response is invalid
+         */
+        int feed(byte[] data, int offset, int length) throws ProtocolException {
+            if (mComplete) {
+                return 0;
+            }
+            for (int i = 0; i < length; i++) {
+                if (++mSize > MAX_RESPONSE_SIZE) {
+                    throw new ProtocolException("Handshake response is too large.");
+                }
+                byte b = data[offset + i];
+                if (b != '\n') {
+                    if (mLineLength == mLine.length) {
+                        byte[] line = new byte[mLine.length * 2];
+                        System.arraycopy(mLine, 0, line, 0, mLineLength);
+                        mLine = line;
+                    }
+                    mLine[mLineLength++] = b;
+                    continue;
+                }
+
+                int end = mLineLength;
+                if (end > 0 && mLine[end - 1] == '\r') {
+                    end--;
+                }
+                mLineLength = 0;
+                if (onLine(mLine, end)) {
+                    mComplete = true;
+                    return i + 1;
+                }
+            }
+            return length;
+        }
+
+        /**
+         * @return true on the empty line ending the headers
+         */
+        private boolean onLine(byte[] line, int length) throws ProtocolException {
+            if (mStatusCode == -1) {
+                mStatusCode = parseStatusCode(line, length);
+                if (mStatusCode != SWITCHING_PROTOCOLS) {
+                    throw new ProtocolException("Server sent invalid response code " + mStatusCode
+                            + ". WebSocket server must return " + SWITCHING_PROTOCOLS);
+                }
+                return false;
+            }
+            if (length == 0) {
+                return true;
+            }
+
+            int colon = 0;
+            while (colon < length && line[colon] != ':') {
+                colon++;
+            }
+            if (colon == length) {
+                throw new ProtocolException("Bad header line: " + new String(line, 0, length, UTF_8));
+            }
+            if (nameEquals(line, colon, ACCEPT)) {
+                mAccept = value(line, colon + 1, length);
+            } else if (nameEquals(line, colon, EXTENSIONS)) {
+                mExtensions = value(line, colon + 1, length);
+            }
+            return false;
+        }
+
+        private static int parseStatusCode(byte[] line, int length) throws ProtocolException {
+            // HTTP/1.1 101 Switching Protocols
+            int space = 0;
+            while (space < length && line[space] != ' ') {
+                space++;
+            }
+            if (space < 5 || line[0] != 'H' || line[1] != 'T' || line[2] != 'T' || line[3] != 'P' || line[4] != '/'
+                    || space + 4 > length || (space + 4 < length && line[space + 4] != ' ')) {
+                throw new ProtocolException("Bad status line: " + new String(line, 0, length, UTF_8));
+            }
+            int code = 0;
+            for (int i = space + 1; i < space + 4; i++) {
+                int digit = line[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new ProtocolException("Bad status line: " + new String(line, 0, length, UTF_8));
+                }
+                code = code * 10 + digit;
+            }
+            return code;
+        }
+
+        private static boolean nameEquals(byte[] line, int length, byte[] lowerCaseName) {
+            if (length != lowerCaseName.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                int c = line[i];
+                if (c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                }
+                if (c != lowerCaseName[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static String value(byte[] line, int start, int end) {
+            while (start < end && (line[start] == ' ' || line[start] == '\t')) {
+                start++;
+            }
+            while (end > start && (line[end - 1] == ' ' || line[end - 1] == '\t')) {
+                end--;
+            }
+            return new String(line, start, end - start, UTF_8);
+        }
+
+        boolean isComplete() {
+            return mComplete;
+        }
+
+        int getStatusCode() {
+            return mStatusCode;
+        }
+
+        /**
+         * @return Sec-WebSocket-Accept value, null if absent
+         */
+        String getAccept() {
+            return mAccept;
+        }
+
+        /**
+         * @return Sec-WebSocket-Extensions value, null if absent
+         */
+        String getExtensions() {
+            return mExtensions;
+        }
+
+        /**
+         * Validate complete response against the request.
+         *
+         * @param accept         expected Sec-WebSocket-Accept value
+         * @param deflateOptions permessage-deflate options offered, null if not offered
+         * @return negotiated permessage-deflate, null if not accepted
+         * @throws ProtocolException
+         */
+        PerMessageDeflate validate(String accept, DeflateOptions deflateOptions) throws ProtocolException {
+            if (mAccept == null) {
+                throw new ProtocolException("No Sec-WebSocket-Accept header.");
+            }
+            if (!accept.equals(mAccept)) {
+                throw new ProtocolException("Bad Sec-WebSocket-Accept header value.");
+            }
+            if (mExtensions == null) {
+                return null;
+            }
+            if (deflateOptions == null) {
+                throw new ProtocolException("Server accepted extension which was not offered: " + mExtensions);
+            }
+            return PerMessageDeflate.negotiate(deflateOptions, mExtensions);
+        }
+    }
+}
@@ -0,0 +1,720 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * This library is ported from following libraries
+ * 1. Copyright (c) 2010-2016 James Coglan
+ * faye's faye-websocket-node
+ * https://github.com/faye/faye-websocket-node
+ * 2. Copyright (c) 2012 Eric Butler
+ * codebutler's android-websockets.
+ * https://github.com/codebutler/android-websockets
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.hiroq.rxwsc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.SSLException;
+
+import rx.Observable;
+import rx.Scheduler;
+
+public class HybiParser {
+    private RxWebSocketClient mClient;
+
+    private boolean mMasking = true;
+
+    private boolean mFinal;
+    private int mOpcode;
+    private int mMode;
+    private boolean mCompressed;
+
+    /**
+     * Negotiated permessage-deflate, null if not in use
+     */
+    private PerMessageDeflate mDeflate;
+
+    private boolean mClosed = false;
+
+    private final MaskKeyGenerator mMaskKeyGenerator = new MaskKeyGenerator();
+
+    private ConnectionMetrics mMetrics = new ConnectionMetrics();
+
+    private InputStream mInputStream;
+
+    /**
+     * Reader of a non-blocking connection, fed by {@link #receive(byte[], int, int)}
+     */
+    private FrameReader mReader;
+
+    /**
+     * Deliver fragmented and oversized messages as chunks
+     */
+    private boolean mStreaming = false;
+    private long mMessageId;
+
+    /**
+     * Pool of unfragmented binary payloads, may be null
+     */
+    private BufferPool mPool;
+
+    private final FrameReader.Callback mFrameCallback = new FrameReader.Callback() {
+        @Override
+        public void onFrame(int header, byte[] payload, int offset, int length) throws IOException {
+            parseOpcode(header);
+            mMetrics.frameIn(mOpcode, length);
+            emitFrame(payload, offset, length);
+        }
+    };
+
+    private final FrameReader.PartialCallback mStreamingCallback = new FrameReader.PartialCallback() {
+        @Override
+        public void onFrame(int header, byte[] payload, int offset, int length) throws IOException {
+            parseOpcode(header);
+            mMetrics.frameIn(mOpcode, length);
+            if (isDataFrame() && !(mOpcode != OP_CONTINUATION && mFinal)) {
+                emitChunk(payload, offset, length, true, mFinal);
+            } else {
+                emitFrame(payload, offset, length);
+            }
+        }
+
+        @Override
+        public void onFramePart(int header, byte[] payload, int offset, int length, boolean first, boolean last) throws IOException {
+            if (first) {
+                parseOpcode(header);
+                if (!isDataFrame()) {
+                    throw new ProtocolError("Control frame too large");
+                }
+                mMetrics.frameIn(mOpcode, 0);
+            }
+            mMetrics.bytesIn(mOpcode, length);
+            emitChunk(payload, offset, length, first, mFinal && last);
+        }
+    };
+
+    private ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+
+    /**
+     * Decoder of text messages, fed fragment by fragment
+     */
+    private final Utf8Decoder mText = new Utf8Decoder();
+
+    private static final int BYTE = 255;
+    private static final int FIN = 128;
+    private static final int MASK = 128;
+    static final int RSV1 = 64;
+    private static final int RSV2 = 32;
+    private static final int RSV3 = 16;
+    private static final int OPCODE = 15;
+    private static final int LENGTH = 127;
+
+    private static final int MODE_TEXT = 1;
+    private static final int MODE_BINARY = 2;
+
+    static final int OP_CONTINUATION = 0;
+    private static final int OP_TEXT = 1;
+    static final int OP_BINARY = 2;
+    private static final int OP_CLOSE = 8;
+    private static final int OP_PING = 9;
+    private static final int OP_PONG = 10;
+
+    /**
+     * Close codes sent when a received message breaks the protocol (RFC 6455 7.4.1)
+     */
+    static final int CLOSE_PROTOCOL_ERROR = 1002;
+    static final int CLOSE_INVALID_DATA = 1007;
+
+    /**
+     * Close codes received from a server going down for a while, which a reconnect may get past
+     */
+    static final int CLOSE_GOING_AWAY = 1001;
+    static final int CLOSE_INTERNAL_ERROR = 1011;
+    static final int CLOSE_SERVICE_RESTART = 1012;
+    static final int CLOSE_TRY_AGAIN_LATER = 1013;
+    static final int CLOSE_BAD_GATEWAY = 1014;
+
+    /**
+     * Reserved codes for a close frame without status, and for a connection lost without close frame
+     */
+    static final int CLOSE_NO_STATUS = 1005;
+    static final int CLOSE_ABNORMAL = 1006;
+
+    private static final List<Integer> OPCODES = Arrays.asList(
+            OP_CONTINUATION,
+            OP_TEXT,
+            OP_BINARY,
+            OP_CLOSE,
+            OP_PING,
+            OP_PONG
+    );
+
+    private static final List<Integer> FRAGMENTED_OPCODES = Arrays.asList(
+            OP_CONTINUATION, OP_TEXT, OP_BINARY
+    );
+
+    public HybiParser(RxWebSocketClient client) {
+        mClient = client;
+    }
+
+    public void start(InputStream stream) throws IOException {
+        mInputStream = stream;
+        try {
+            FrameReader reader = new FrameReader(stream, mStreaming ? mStreamingCallback : mFrameCallback);
+            reader.setMetrics(mMetrics);
+            reader.run();
+        } catch (ProtocolError e) {
+            close(e.getCode(), e.getMessage());
+            throw e;
+        } catch (SSLException e) {
+            // Might be disconnected by server or network problems.
+            mClient.connectionLost(this, new ConnectException("Disconnected by Host or network problems."));
+        } catch (SocketException e) {
+            // closed by HybiParser#close
+            mClient.connectionLost(this, null);
+        } catch (EOFException e) {
+            // Might be disconnected by server or network problems.
+            mClient.connectionLost(this, new ConnectException("Disconnected by Host or network problems."));
+        } finally {
+            if (mDeflate != null) {
+                mDeflate.endInflater();
+            }
+        }
+    }
+
+    /**
+     * Parse data received by a non-blocking connection, instead of {@link #start(InputStream)}.
+     * Events of frames completed by data are emitted before it returns.
+     * A ProtocolError sends a close frame with its code before it is thrown.
+     *
+     * @param data     may be modified
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    void receive(byte[] data, int offset, int length) throws IOException {
+        if (mReader == null) {
+            mReader = new FrameReader(mStreaming ? mStreamingCallback : mFrameCallback);
+            mReader.setMetrics(mMetrics);
+        }
+        try {
+            mReader.feed(data, offset, length);
+        } catch (ProtocolError e) {
+            close(e.getCode(), e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * Release resources of receiving when a non-blocking connection ends.
+     */
+    void finish() {
+        if (mDeflate != null) {
+            mDeflate.endInflater();
+        }
+    }
+
+    public void stop() throws IOException {
+        if (mInputStream != null) {
+            mInputStream.close();
+        }
+    }
+
+    private void parseOpcode(int data) throws ProtocolError {
+        boolean rsv1 = (data & RSV1) == RSV1;
+        boolean rsv2 = (data & RSV2) == RSV2;
+        boolean rsv3 = (data & RSV3) == RSV3;
+
+        if (rsv2 || rsv3) {
+            throw new ProtocolError("RSV not zero");
+        }
+
+        mFinal = (data & FIN) == FIN;
+        mOpcode = (data & OPCODE);
+
+        if (mOpcode == OP_TEXT || mOpcode == OP_BINARY) {
+            if (rsv1 && mDeflate == null) {
+                throw new ProtocolError("RSV not zero");
+            }
+            mCompressed = rsv1;
+        } else if (rsv1) {
+            throw new ProtocolError("RSV not zero");
+        }
+
+        if (!OPCODES.contains(mOpcode)) {
+            throw new ProtocolError("Bad opcode");
+        }
+
+        if (!FRAGMENTED_OPCODES.contains(mOpcode) && !mFinal) {
+            throw new ProtocolError("Expected non-final packet");
+        }
+
+        if (!mFinal && mOpcode != OP_CONTINUATION) {
+            mMetrics.fragmentedIn();
+        }
+    }
+
+    /**
+     * Emit fragmented messages and frames larger than the read buffer as MESSAGE_CHUNK events
+     * as they arrive, instead of gathering them into one message. Set before start.
+     *
+     * @param streaming
+     */
+    void setStreaming(boolean streaming) {
+        mStreaming = streaming;
+    }
+
+    /**
+     * Copy unfragmented binary payloads into buffers of pool instead of arrays of their own. Set before start.
+     *
+     * @param pool may be null
+     */
+    void setBufferPool(BufferPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Use negotiated permessage-deflate for messages from now on.
+     *
+     * @param deflate
+     */
+    void setDeflate(PerMessageDeflate deflate) {
+        mDeflate = deflate;
+    }
+
+    PerMessageDeflate getDeflate() {
+        return mDeflate;
+    }
+
+    /**
+     * Count inbound frames into metrics. Set before start.
+     *
+     * @param metrics
+     */
+    void setMetrics(ConnectionMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Build text message frame, compressed when written if permessage-deflate is in use.
+     *
+     * @param data
+     * @return
+     */
+    OutboundFrame message(String data) {
+        if (mDeflate == null) {
+            byte[] frame = frame(data);
+            return (frame != null) ? OutboundFrame.of(frame) : null;
+        }
+        if (mClosed) return null;
+        return OutboundFrame.message(OP_TEXT, decode(data), mMasking, mMasking ? mMaskKeyGenerator.next() : 0, mDeflate);
+    }
+
+    /**
+     * Build binary message frame, compressed when written if permessage-deflate is in use.
+     *
+     * @param data
+     * @return
+     */
+    OutboundFrame message(byte[] data) {
+        if (mDeflate == null) {
+            byte[] frame = frame(data);
+            return (frame != null) ? OutboundFrame.of(frame) : null;
+        }
+        if (mClosed) return null;
+        return OutboundFrame.message(OP_BINARY, data.clone(), mMasking, mMasking ? mMaskKeyGenerator.next() : 0, mDeflate);
+    }
+
+    public byte[] frame(String data) {
+        return frame(data, OP_TEXT, -1);
+    }
+
+    public byte[] frame(byte[] data) {
+        return frame(data, OP_BINARY, -1);
+    }
+
+    /**
+     * Build binary frame for payload range without copying the payload.
+     *
+     * @param data        payload array
+     * @param offset      payload offset
+     * @param length      payload length
+     * @param maskInPlace allow masking data itself instead of a copy
+     * @return
+     */
+    OutboundFrame frame(byte[] data, int offset, int length, boolean maskInPlace) {
+        if (mClosed) return null;
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException("offset=" + offset + " length=" + length + " size=" + data.length);
+        }
+
+        byte[] header = new byte[OutboundFrame.MAX_HEADER_SIZE];
+        int key = mMasking ? mMaskKeyGenerator.next() : 0;
+        int headerLength = header(header, OP_BINARY, length, mMasking, key);
+        return OutboundFrame.of(header, headerLength, data, offset, length, mMasking, key, maskInPlace);
+    }
+
+    /**
+     * Build binary frame for remaining bytes of buffer without copying the payload.
+     *
+     * @param data        payload buffer, its position is not changed
+     * @param maskInPlace allow masking data itself instead of a copy, ignored for a read-only buffer
+     * @return
+     */
+    OutboundFrame frame(ByteBuffer data, boolean maskInPlace) {
+        if (mClosed) return null;
+
+        byte[] header = new byte[OutboundFrame.MAX_HEADER_SIZE];
+        int key = mMasking ? mMaskKeyGenerator.next() : 0;
+        int headerLength = header(header, OP_BINARY, data.remaining(), mMasking, key);
+        return OutboundFrame.of(header, headerLength, data, mMasking, key, maskInPlace);
+    }
+
+    /**
+     * Build binary message read lazily from stream and sent in fragments.
+     * The stream is read on writer thread, or on scheduler if given, and closed at its end.
+     *
+     * @param data
+     * @param fragmentSize max payload size of a fragment
+     * @param scheduler    reads the stream, null to read it on writer thread
+     * @return
+     */
+    OutboundFrame stream(InputStream data, int fragmentSize, Scheduler scheduler) {
+        if (mClosed) return null;
+        return OutboundFrame.of(new FragmentedMessage.FromStream(OP_BINARY, fragmentSize, mMasking, mMaskKeyGenerator, data, scheduler));
+    }
+
+    /**
+     * Build binary message pulled item by item from source and sent in fragments.
+     * The source is subscribed when the writer reaches the message, on scheduler if given.
+     *
+     * @param data
+     * @param fragmentSize max payload size of a fragment
+     * @param scheduler    subscribes to the source, null to subscribe on writer thread
+     * @return
+     */
+    OutboundFrame stream(Observable<byte[]> data, int fragmentSize, Scheduler scheduler) {
+        if (mClosed) return null;
+        Observable<byte[]> source = (scheduler != null) ? data.subscribeOn(scheduler) : data;
+        return OutboundFrame.of(new FragmentedMessage.FromObservable(OP_BINARY, fragmentSize, mMasking, mMaskKeyGenerator, source));
+    }
+
+    private byte[] frame(byte[] data, int opcode, int errorCode) {
+        return frame((Object) data, opcode, errorCode);
+    }
+
+    private byte[] frame(String data, int opcode, int errorCode) {
+        return frame((Object) data, opcode, errorCode);
+    }
+
+    private byte[] frame(Object data, int opcode, int errorCode) {
+        if (mClosed) return null;
+
+        byte[] buffer = (data instanceof String) ? decode((String) data) : (byte[]) data;
+        int insert = (errorCode > 0) ? 2 : 0;
+        int length = buffer.length + insert;
+        int header = (length <= 125) ? 2 : (length <= 65535 ? 4 : 10);
+        int offset = header + (mMasking ? 4 : 0);
+        byte[] frame = new byte[length + offset];
+        int key = mMasking ? mMaskKeyGenerator.next() : 0;
+
+        header(frame, opcode, length, mMasking, key);
+
+        if (errorCode > 0) {
+            frame[offset] = (byte) (((int) Math.floor(errorCode / 256)) & BYTE);
+            frame[offset + 1] = (byte) (errorCode & BYTE);
+        }
+        System.arraycopy(buffer, 0, frame, offset + insert, buffer.length);
+
+        if (mMasking) {
+            Masker.mask(frame, offset, length, key);
+        }
+
+        return frame;
+    }
+
+    /**
+     * Write final frame header and masking key.
+     *
+     * @param frame   destination, header is written from index 0
+     * @param opcode  opcode with RSV bits
+     * @param length  payload length
+     * @param masking
+     * @param key     masking key, ignored when masking is off
+     * @return header length including masking key
+     */
+    static int header(byte[] frame, int opcode, long length, boolean masking, int key) {
+        return header(frame, true, opcode, length, masking, key);
+    }
+
+    /**
+     * Write frame header and masking key.
+     *
+     * @param frame   destination, header is written from index 0
+     * @param fin     false for all but the last fragment of a message
+     * @param opcode  opcode with RSV bits
+     * @param length  payload length
+     * @param masking
+     * @param key     masking key, ignored when masking is off
+     * @return header length including masking key
+     */
+    static int header(byte[] frame, boolean fin, int opcode, long length, boolean masking, int key) {
+        int masked = masking ? MASK : 0;
+        int header;
+
+        frame[0] = (byte) ((fin ? FIN : 0) | opcode);
+
+        if (length <= 125) {
+            frame[1] = (byte) (masked | length);
+            header = 2;
+        } else if (length <= 65535) {
+            frame[1] = (byte) (masked | 126);
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) (length & BYTE);
+            header = 4;
+        } else {
+            frame[1] = (byte) (masked | 127);
+            for (int i = 0; i < 8; i++) {
+                frame[2 + i] = (byte) ((length >>> (56 - 8 * i)) & BYTE);
+            }
+            header = 10;
+        }
+
+        if (masking) {
+            Masker.putKey(key, frame, header);
+            header += 4;
+        }
+        return header;
+    }
+
+    public void ping(String message) {
+        mClient.sendFrame(frame(message, OP_PING, -1));
+    }
+
+    void ping(byte[] payload) {
+        mClient.sendFrame(frame(payload, OP_PING, -1));
+    }
+
+    public void close(int code, String reason) {
+        if (mClosed) return;
+        mClient.sendFrame(frame(reason, OP_CLOSE, code));
+        mClosed = true;
+    }
+
+    private void emitFrame(byte[] buffer, int offset, int length) throws IOException {
+        int opcode = mOpcode;
+
+        if (opcode == OP_CONTINUATION) {
+            if (mMode == 0) {
+                throw new ProtocolError("Mode was not set.");
+            }
+            if (mMode == MODE_TEXT) {
+                appendText(buffer, offset, length);
+                if (mFinal) {
+                    mClient.emitterOnNext(new RxWebSocketClient.Event(RxWebSocketClient.EventType.MESSAGE_STRING, mText.finish()));
+                    reset();
+                }
+                return;
+            }
+            mBuffer.write(buffer, offset, length);
+            if (mFinal) {
+                byte[] message = mBuffer.toByteArray();
+                if (mCompressed) {
+                    message = mDeflate.inflate(message, 0, message.length);
+                }
+                mClient.emitterOnNext(new RxWebSocketClient.Event(RxWebSocketClient.EventType.MESSAGE_BINARY, message));
+                reset();
+            }
+
+        } else if (opcode == OP_TEXT) {
+            if (mFinal && mCompressed) {
+                byte[] message = mDeflate.inflate(buffer, offset, length);
+                mClient.emitterOnNext(new RxWebSocketClient.Event(RxWebSocketClient.EventType.MESSAGE_STRING, mText.decode(message, 0, message.length)));
+            } else if (mFinal) {
+                mClient.emitterOnNext(new RxWebSocketClient.Event(RxWebSocketClient.EventType.MESSAGE_STRING, mText.decode(buffer, offset, length)));
+            } else {
+                mMode = MODE_TEXT;
+                appendText(buffer, offset, length);
+            }
+
+        } else if (opcode == OP_BINARY) {
+            if (mFinal && mCompressed) {
+                mClient.emitterOnNext(new RxWebSocketClient.Event(RxWebSocketClient.EventType.MESSAGE_BINARY, mDeflate.inflate(buffer, offset, length)));
+            } else if (mFinal) {
+                mClient.emitterOnNext(binaryEvent(buffer, offset, length));
+            } else {
+                mMode = MODE_BINARY;
+                mBuffer.write(buffer, offset, length);
+            }
+
+        } else if (opcode == OP_CLOSE) {
+            int code = (length >= 2) ? ((buffer[offset] & BYTE) << 8) | (buffer[offset + 1] & BYTE) : CLOSE_NO_STATUS;
+            // echo the status code (RFC 6455 5.5.1), nothing is sent if this answers our own close
+            close((code == CLOSE_NO_STATUS) ? -1 : code, "");
+            mClient.connectionClosed(this, code);
+        } else if (opcode == OP_PING) {
+            if (length > 125) {
+                throw new ProtocolError("Ping payload too large");
+            }
+            mClient.sendFrame(frame(copy(buffer, offset, length), OP_PONG, -1));
+
+        } else if (opcode == OP_PONG) {
+            mClient.onPong(buffer, offset, length);
+        }
+    }
+
+    private boolean isDataFrame() {
+        return mOpcode == OP_CONTINUATION || mOpcode == OP_TEXT || mOpcode == OP_BINARY;
+    }
+
+    /**
+     * Emit data frame or part of it as MESSAGE_CHUNK.
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @param first  true if this is the start of a frame
+     * @param last   true if this ends the message
+     * @throws IOException
+     */
+    private void emitChunk(byte[] buffer, int offset, int length, boolean first, boolean last) throws IOException {
+        if (first && mOpcode != OP_CONTINUATION) {
+            if (mMode != 0) {
+                throw new ProtocolError("Expected continuation frame");
+            }
+            mMode = (mOpcode == OP_TEXT) ? MODE_TEXT : MODE_BINARY;
+            mMessageId++;
+        } else if (mMode == 0) {
+            throw new ProtocolError("Mode was not set.");
+        }
+
+        byte[] chunk = mCompressed ? mDeflate.inflate(buffer, offset, length, last) : Arrays.copyOfRange(buffer, offset, offset + length);
+        if (mMode == MODE_TEXT) {
+            mText.validate(chunk, 0, chunk.length);
+            if (last) {
+                mText.finish();
+            }
+        }
+        if (chunk.length > 0 || last) {
+            RxWebSocketClient.EventType type = (mMode == MODE_TEXT) ? RxWebSocketClient.EventType.MESSAGE_STRING : RxWebSocketClient.EventType.MESSAGE_BINARY;
+            mClient.emitterOnNext(new RxWebSocketClient.Event(type, mMessageId, chunk, last));
+        }
+        if (last) {
+            mMode = 0;
+        }
+    }
+
+    /**
+     * Decode a fragment of a text message as it arrives, inflating it first if compressed.
+     */
+    private void appendText(byte[] buffer, int offset, int length) throws IOException {
+        if (mCompressed) {
+            byte[] data = mDeflate.inflate(buffer, offset, length, mFinal);
+            mText.append(data, 0, data.length);
+        } else {
+            mText.append(buffer, offset, length);
+        }
+    }
+
+    private void reset() {
+        mMode = 0;
+        mBuffer.reset();
+    }
+
+    private byte[] decode(String string) {
+        return string.getBytes(Utf8Decoder.UTF_8);
+    }
+
+    /**
+     * Get payload as its own array.
+     * FrameReader hands payloads which did not fit in its buffer as a whole array,
+     * so those are used as is. Others live in the reused read buffer and have to be copied.
+     */
+    private byte[] copy(byte[] buffer, int offset, int length) {
+        if (offset == 0 && length == buffer.length) {
+            return buffer;
+        }
+        return Arrays.copyOfRange(buffer, offset, offset + length);
+    }
+
+    /**
+     * Event of an unfragmented binary message. With a pool, a payload in the reused read buffer
+     * is copied into a pooled buffer instead of an array of its own.
+     */
+    private RxWebSocketClient.Event binaryEvent(byte[] buffer, int offset, int length) {
+        BufferPool pool = mPool;
+        if (pool == null || (offset == 0 && length == buffer.length)) {
+            return new RxWebSocketClient.Event(RxWebSocketClient.EventType.MESSAGE_BINARY, copy(buffer, offset, length));
+        }
+        BufferPool.Buffer pooled = pool.acquire(length);
+        System.arraycopy(buffer, offset, pooled.mArray, 0, length);
+        return new RxWebSocketClient.Event(pool, pooled, length);
+    }
+
+    public static class ProtocolError extends IOException {
+        private final int mCode;
+
+        public ProtocolError(String detailMessage) {
+            this(detailMessage, CLOSE_PROTOCOL_ERROR);
+        }
+
+        /**
+         * @param detailMessage
+         * @param code          close code sent to the server
+         */
+        public ProtocolError(String detailMessage, int code) {
+            super(detailMessage);
+            mCode = code;
+        }
+
+        /**
+         * Get close code sent to the server for this error.
+         *
+         * @return
+         */
+        public int getCode() {
+            return mCode;
+        }
+    }
+
+    public static class HappyDataInputStream extends DataInputStream {
+        public HappyDataInputStream(InputStream in) {
+            super(in);
+        }
+
+        public byte[] readBytes(int length) throws IOException {
+            byte[] buffer = new byte[length];
+            readFully(buffer);
+            return buffer;
+        }
+    }
+}
\ No newline at end of file
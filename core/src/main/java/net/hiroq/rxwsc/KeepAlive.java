@@ -0,0 +1,135 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.util.Arrays;
+
+/**
+ * Ping bookkeeping of one connection.
+ * <p>
+ * Each ping carries its send time (System.nanoTime) as 8 byte payload, so the pong echoing it
+ * gives the round trip time without any lookup table. A pong also answers every ping sent before
+ * the one it echoes, as peers may answer only the latest of several pings.
+ */
+final class KeepAlive {
+    static final int PAYLOAD_LENGTH = 8;
+
+    private final int mMaxMissed;
+
+    /**
+     * Send times of unanswered pings, oldest first, as a ring
+     */
+    private final long[] mOutstanding;
+    private int mHead;
+    private int mCount;
+
+    private final long[] mSamples = new long[RttStats.WINDOW];
+    private final long[] mSorted = new long[RttStats.WINDOW];
+    private long mSampleCount;
+    private long mMin = Long.MAX_VALUE;
+
+    /**
+     * @param maxMissed number of unanswered pings after which the connection is considered dead
+     */
+    KeepAlive(int maxMissed) {
+        if (maxMissed <= 0) {
+            throw new IllegalArgumentException("maxMissed must be positive");
+        }
+        mMaxMissed = maxMissed;
+        mOutstanding = new long[maxMissed];
+    }
+
+    /**
+     * Build payload of next ping.
+     *
+     * @param now System.nanoTime()
+     * @return payload, or null if maxMissed pings are unanswered
+     */
+    synchronized byte[] nextPing(long now) {
+        if (mCount == mMaxMissed) {
+            return null;
+        }
+        mOutstanding[(mHead + mCount) % mMaxMissed] = now;
+        mCount++;
+
+        byte[] payload = new byte[PAYLOAD_LENGTH];
+        for (int i = 0; i < PAYLOAD_LENGTH; i++) {
+            payload[i] = (byte) (now >>> (56 - 8 * i));
+        }
+        return payload;
+    }
+
+    /**
+     * Match pong to an outstanding ping.
+     *
+     * @param payload
+     * @param offset
+     * @param length
+     * @param now     System.nanoTime()
+     * @return stats including this round trip, or null if the pong answers no outstanding ping
+     */
+    synchronized RttStats onPong(byte[] payload, int offset, int length, long now) {
+        if (length != PAYLOAD_LENGTH) {
+            return null;
+        }
+        long sent = 0;
+        for (int i = 0; i < PAYLOAD_LENGTH; i++) {
+            sent = (sent << 8) | (payload[offset + i] & 0xFF);
+        }
+
+        for (int i = 0; i < mCount; i++) {
+            if (mOutstanding[(mHead + i) % mMaxMissed] == sent) {
+                mHead = (mHead + i + 1) % mMaxMissed;
+                mCount -= i + 1;
+                return record(now - sent);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return number of unanswered pings
+     */
+    synchronized int getMissed() {
+        return mCount;
+    }
+
+    private RttStats record(long rtt) {
+        mSamples[(int) (mSampleCount % RttStats.WINDOW)] = rtt;
+        mSampleCount++;
+        mMin = Math.min(mMin, rtt);
+
+        int size = (int) Math.min(mSampleCount, RttStats.WINDOW);
+        long sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += mSamples[i];
+        }
+        System.arraycopy(mSamples, 0, mSorted, 0, size);
+        Arrays.sort(mSorted, 0, size);
+        long p99 = mSorted[(int) Math.ceil(size * 0.99) - 1];
+        return new RttStats(rtt, mMin, sum / size, p99, mSampleCount);
+    }
+}
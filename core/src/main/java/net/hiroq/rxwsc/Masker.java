@@ -0,0 +1,112 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * WebSocket payload masking (RFC 6455 5.3).
+ * <p>
+ * The 4-byte masking key is held as a big-endian int. Arrays are masked a key length at a time
+ * with index arithmetic only, so masking a frame allocates nothing; direct buffers are masked
+ * 8 bytes at a time with absolute long gets and puts. Masking and unmasking are the same operation.
+ */
+final class Masker {
+    private Masker() {
+    }
+
+    /**
+     * XOR payload range with masking key in place.
+     *
+     * @param buffer payload array
+     * @param offset payload offset
+     * @param length payload length
+     * @param key    masking key, first key byte in the most significant bits
+     * @return masking key rotated to continue with the byte following this range
+     */
+    static int mask(byte[] buffer, int offset, int length, int key) {
+        byte k0 = (byte) (key >>> 24);
+        byte k1 = (byte) (key >>> 16);
+        byte k2 = (byte) (key >>> 8);
+        byte k3 = (byte) key;
+        int end = offset + (length & ~3);
+        for (int position = offset; position < end; position += 4) {
+            buffer[position] ^= k0;
+            buffer[position + 1] ^= k1;
+            buffer[position + 2] ^= k2;
+            buffer[position + 3] ^= k3;
+        }
+        for (int i = length & ~3; i < length; i++) {
+            buffer[offset + i] ^= (byte) (key >>> (24 - ((i & 3) << 3)));
+        }
+        return Integer.rotateLeft(key, (length & 3) << 3);
+    }
+
+    /**
+     * XOR buffer range with masking key in place. Works for heap and direct buffers,
+     * position, limit and byte order of buffer are not changed.
+     *
+     * @param buffer   payload buffer
+     * @param position absolute payload position
+     * @param length   payload length
+     * @param key      masking key, first key byte in the most significant bits
+     * @return masking key rotated to continue with the byte following this range
+     */
+    static int mask(ByteBuffer buffer, int position, int length, int key) {
+        if (buffer.hasArray()) {
+            return mask(buffer.array(), buffer.arrayOffset() + position, length, key);
+        }
+
+        long word = ((long) key << 32) | (key & 0xFFFFFFFFL);
+        if (buffer.order() == ByteOrder.LITTLE_ENDIAN) {
+            word = Long.reverseBytes(word);
+        }
+        int end = position + (length & ~7);
+        for (int i = position; i < end; i += 8) {
+            buffer.putLong(i, buffer.getLong(i) ^ word);
+        }
+        for (int i = length & ~7; i < length; i++) {
+            int index = position + i;
+            buffer.put(index, (byte) (buffer.get(index) ^ (key >>> (24 - ((i & 3) << 3)))));
+        }
+        return Integer.rotateLeft(key, (length & 3) << 3);
+    }
+
+    /**
+     * Write masking key as 4 bytes.
+     *
+     * @param key    masking key
+     * @param buffer destination
+     * @param offset destination offset
+     */
+    static void putKey(int key, byte[] buffer, int offset) {
+        buffer[offset] = (byte) (key >>> 24);
+        buffer[offset + 1] = (byte) (key >>> 16);
+        buffer[offset + 2] = (byte) (key >>> 8);
+        buffer[offset + 3] = (byte) key;
+    }
+}
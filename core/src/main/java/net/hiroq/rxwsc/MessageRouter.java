@@ -0,0 +1,550 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Routes messages to the subscribers of their topic.
+ * <p>
+ * The topic of each message is taken once by a {@link KeyExtractor} and looked up in a hash
+ * index, so a message costs one key extraction and is delivered only to the subscribers of its
+ * topic, however many subscribers there are. Chunks of a streamed message are routed by the
+ * topic of its first chunk. CONNECT and DISCONNECT go to every subscriber.
+ * <p>
+ * Each subscriber has a backpressure queue of its own. Messages nobody subscribed to are
+ * counted by {@link #getUnrouted()} and released.
+ *
+ * @param <K> topic key, compared with equals and hashCode
+ */
+public class MessageRouter<K> {
+    /**
+     * Takes the topic of a message.
+     *
+     * @param <K>
+     */
+    public interface KeyExtractor<K> {
+        /**
+         * Called once per message on the thread emitting events. Read pooled buffers with absolute
+         * gets only, the buffer is shared with the subscribers.
+         *
+         * @param message MESSAGE_STRING, MESSAGE_BINARY or the first MESSAGE_CHUNK of a message
+         * @return topic, or null to route the message nowhere
+         */
+        K extract(RxWebSocketClient.Event message);
+    }
+
+    /**
+     * Keys of byteAt, boxed once
+     */
+    private static final Integer[] BYTE_KEYS = new Integer[256];
+
+    static {
+        for (int i = 0; i < BYTE_KEYS.length; i++) {
+            BYTE_KEYS[i] = i;
+        }
+    }
+
+    private final Observable<RxWebSocketClient.Event> mSource;
+    private final KeyExtractor<K> mExtractor;
+    private final RxWebSocketClient.BackpressureMode mMode;
+    private final int mCapacity;
+
+    /**
+     * Topic to its subscribers. Arrays are copied on change, so messages are routed without locking.
+     */
+    private final ConcurrentHashMap<K, Route[]> mRoutes = new ConcurrentHashMap<K, Route[]>();
+
+    /**
+     * Guards connection events, termination and joins. Their events are queued to the routes under it,
+     * so they keep their order, and delivered after unlocking.
+     */
+    private final ReentrantLock mLock = new ReentrantLock();
+    private boolean mConnected;
+    private boolean mDone;
+    private Throwable mError;
+    private Subscription mConnection;
+
+    private final AtomicLong mUnrouted = new AtomicLong();
+
+    /**
+     * Topic of the streamed message in progress, touched only by the emitting thread
+     */
+    private long mChunkMessageId = -1;
+    private Route[] mChunkRoutes;
+
+    /**
+     * Router buffering up to DEFAULT_BACKPRESSURE_CAPACITY messages per subscriber.
+     *
+     * @param source    events to route, e.g. of {@link RxWebSocketClient#share}
+     * @param extractor
+     */
+    public MessageRouter(Observable<RxWebSocketClient.Event> source, KeyExtractor<K> extractor) {
+        this(source, extractor, RxWebSocketClient.BackpressureMode.BUFFER,
+                RxWebSocketClient.DEFAULT_BACKPRESSURE_CAPACITY);
+    }
+
+    /**
+     * @param source    events to route, e.g. of {@link RxWebSocketClient#share}
+     * @param extractor
+     * @param mode      backpressure of each subscriber
+     * @param capacity  messages queued per subscriber
+     */
+    public MessageRouter(Observable<RxWebSocketClient.Event> source, KeyExtractor<K> extractor,
+                         RxWebSocketClient.BackpressureMode mode, int capacity) {
+        if (source == null || extractor == null || mode == null) {
+            throw new IllegalArgumentException("source, extractor and mode must not be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mSource = source;
+        mExtractor = extractor;
+        mMode = mode;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Subscribe to source and start routing. Unsubscribe the result to stop.
+     * Subscribers of topics may come and go before and after.
+     *
+     * @return
+     */
+    public Subscription connect() {
+        Subscriber<RxWebSocketClient.Event> upstream = new Subscriber<RxWebSocketClient.Event>() {
+            @Override
+            public void onNext(RxWebSocketClient.Event event) {
+                route(event);
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                terminate(e);
+            }
+
+            @Override
+            public void onCompleted() {
+                terminate(null);
+            }
+        };
+        mLock.lock();
+        try {
+            if (mConnection != null) {
+                throw new IllegalStateException("Router is connected already");
+            }
+            mConnection = upstream;
+        } finally {
+            mLock.unlock();
+        }
+        return mSource.subscribe(upstream);
+    }
+
+    /**
+     * Events of one topic: its messages, CONNECT and DISCONNECT.
+     * A subscriber joining a live connection gets a CONNECT of its own.
+     *
+     * @param key
+     * @return
+     */
+    public Observable<RxWebSocketClient.Event> topic(final K key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key must not be null");
+        }
+        return Observable.create(new Observable.OnSubscribe<RxWebSocketClient.Event>() {
+            @Override
+            public void call(Subscriber<? super RxWebSocketClient.Event> subscriber) {
+                final Route route = new Route(new BackpressureEmitter(subscriber, mMode, mCapacity));
+                subscriber.add(Subscriptions.create(new Action0() {
+                    @Override
+                    public void call() {
+                        route.mEmitter.cancel();
+                        remove(key, route);
+                    }
+                }));
+                subscriber.setProducer(route.mEmitter);
+                if (subscriber.isUnsubscribed()) {
+                    return;
+                }
+                mLock.lock();
+                try {
+                    if (mDone) {
+                        route.mEmitter.end(mError);
+                    } else {
+                        if (mConnected) {
+                            route.mEmitter.offer(new RxWebSocketClient.Event(RxWebSocketClient.EventType.CONNECT));
+                        }
+                        add(key, route);
+                    }
+                } finally {
+                    mLock.unlock();
+                }
+                route.mEmitter.drain();
+            }
+        });
+    }
+
+    /**
+     * @return number of messages without subscribers to their topic
+     */
+    public long getUnrouted() {
+        return mUnrouted.get();
+    }
+
+    /**
+     * @param key
+     * @return number of subscribers to topic
+     */
+    public int getSubscriberCount(K key) {
+        Route[] routes = mRoutes.get(key);
+        return (routes != null) ? routes.length : 0;
+    }
+
+    /**
+     * Topic is the text before the first delimiter, e.g. "prices" of "prices|EURUSD 1.08".
+     * Binary messages and chunks are read as UTF-8. Messages without delimiter have no topic.
+     *
+     * @param delimiter an ASCII character
+     * @return
+     */
+    public static KeyExtractor<String> prefix(final char delimiter) {
+        if (delimiter >= 0x80) {
+            throw new IllegalArgumentException("delimiter must be an ASCII character");
+        }
+        return new KeyExtractor<String>() {
+            @Override
+            public String extract(RxWebSocketClient.Event message) {
+                if (message.getType() == RxWebSocketClient.EventType.MESSAGE_STRING) {
+                    String text = message.getString();
+                    int end = text.indexOf(delimiter);
+                    return (end >= 0) ? text.substring(0, end) : null;
+                }
+                ByteBuffer buffer = message.getBuffer();
+                if (buffer == null) {
+                    return null;
+                }
+                int start = buffer.position();
+                for (int i = start; i < buffer.limit(); i++) {
+                    if (buffer.get(i) == delimiter) {
+                        byte[] key = new byte[i - start];
+                        for (int j = 0; j < key.length; j++) {
+                            key[j] = buffer.get(start + j);
+                        }
+                        return new String(key, Utf8Decoder.UTF_8);
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Topic is the unsigned byte at offset of a binary message, e.g. a message type in its header.
+     * Text messages and messages shorter than offset have no topic.
+     *
+     * @param offset
+     * @return
+     */
+    public static KeyExtractor<Integer> byteAt(final int offset) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative");
+        }
+        return new KeyExtractor<Integer>() {
+            @Override
+            public Integer extract(RxWebSocketClient.Event message) {
+                if (message.getType() == RxWebSocketClient.EventType.MESSAGE_STRING) {
+                    return null;
+                }
+                ByteBuffer buffer = message.getBuffer();
+                if (buffer == null || buffer.remaining() <= offset) {
+                    return null;
+                }
+                return BYTE_KEYS[buffer.get(buffer.position() + offset) & 0xFF];
+            }
+        };
+    }
+
+    /**
+     * Topic is the value of a field of JSON text messages, e.g. "trades" of {"channel":"trades",...}.
+     * The text is scanned for the first occurrence of the field at any depth instead of being parsed,
+     * so the field should not also appear in a nested object before it. String, number and boolean
+     * values are keys as written; null, objects, arrays and messages without the field have no topic.
+     *
+     * @param name
+     * @return
+     */
+    public static KeyExtractor<String> jsonField(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("name must not be null");
+        }
+        final String quoted = '"' + name + '"';
+        return new KeyExtractor<String>() {
+            @Override
+            public String extract(RxWebSocketClient.Event message) {
+                if (message.getType() != RxWebSocketClient.EventType.MESSAGE_STRING) {
+                    return null;
+                }
+                String text = message.getString();
+                int found = text.indexOf(quoted);
+                while (found >= 0) {
+                    int position = skipSpace(text, found + quoted.length());
+                    if (position < text.length() && text.charAt(position) == ':') {
+                        return jsonValue(text, skipSpace(text, position + 1));
+                    }
+                    found = text.indexOf(quoted, found + 1);
+                }
+                return null;
+            }
+        };
+    }
+
+    private static int skipSpace(String text, int position) {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    private static String jsonValue(String text, int position) {
+        if (position >= text.length()) {
+            return null;
+        }
+        char first = text.charAt(position);
+        if (first == '"') {
+            StringBuilder value = null;
+            int start = position + 1;
+            for (int i = start; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '"') {
+                    return (value == null) ? text.substring(start, i) : value.append(text, start, i).toString();
+                }
+                if (c == '\\' && i + 1 < text.length()) {
+                    if (value == null) {
+                        value = new StringBuilder();
+                    }
+                    value.append(text, start, i);
+                    char escaped = text.charAt(++i);
+                    switch (escaped) {
+                        case 'n':
+                            value.append('\n');
+                            break;
+                        case 't':
+                            value.append('\t');
+                            break;
+                        case 'r':
+                            value.append('\r');
+                            break;
+                        case 'b':
+                            value.append('\b');
+                            break;
+                        case 'f':
+                            value.append('\f');
+                            break;
+                        case 'u':
+                            if (i + 4 >= text.length()) {
+                                return null;
+                            }
+                            try {
+                                value.append((char) Integer.parseInt(text.substring(i + 1, i + 5), 16));
+                            } catch (NumberFormatException e) {
+                                return null;
+                            }
+                            i += 4;
+                            break;
+                        default:
+                            value.append(escaped);
+                    }
+                    start = i + 1;
+                }
+            }
+            return null;
+        }
+        if (first == '{' || first == '[') {
+            return null;
+        }
+        int end = position;
+        while (end < text.length()) {
+            char c = text.charAt(end);
+            if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                break;
+            }
+            end++;
+        }
+        String literal = text.substring(position, end);
+        return (literal.isEmpty() || literal.equals("null")) ? null : literal;
+    }
+
+    private void add(K key, Route route) {
+        while (true) {
+            Route[] current = mRoutes.get(key);
+            if (current == null) {
+                if (mRoutes.putIfAbsent(key, new Route[]{route}) == null) {
+                    return;
+                }
+                continue;
+            }
+            Route[] next = new Route[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = route;
+            if (mRoutes.replace(key, current, next)) {
+                return;
+            }
+        }
+    }
+
+    private void remove(K key, Route route) {
+        while (true) {
+            Route[] current = mRoutes.get(key);
+            if (current == null) {
+                return;
+            }
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == route) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+            if (current.length == 1) {
+                if (mRoutes.remove(key, current)) {
+                    return;
+                }
+                continue;
+            }
+            Route[] next = new Route[current.length - 1];
+            System.arraycopy(current, 0, next, 0, index);
+            System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+            if (mRoutes.replace(key, current, next)) {
+                return;
+            }
+        }
+    }
+
+    private void route(RxWebSocketClient.Event event) {
+        RxWebSocketClient.EventType type = event.getType();
+        if (type == RxWebSocketClient.EventType.CONNECT || type == RxWebSocketClient.EventType.DISCONNECT) {
+            List<Route> targets = new ArrayList<Route>();
+            mLock.lock();
+            try {
+                mConnected = (type == RxWebSocketClient.EventType.CONNECT);
+                mChunkRoutes = null;
+                mChunkMessageId = -1;
+                for (Route[] routes : mRoutes.values()) {
+                    for (Route route : routes) {
+                        route.mEmitter.offer(event);
+                        targets.add(route);
+                    }
+                }
+            } finally {
+                mLock.unlock();
+            }
+            for (Route route : targets) {
+                route.mEmitter.drain();
+            }
+            return;
+        }
+
+        Route[] routes;
+        if (type != RxWebSocketClient.EventType.MESSAGE_CHUNK) {
+            routes = lookup(event);
+        } else if (event.getMessageId() != mChunkMessageId) {
+            mChunkMessageId = event.getMessageId();
+            mChunkRoutes = lookup(event);
+            routes = mChunkRoutes;
+        } else {
+            // later chunks follow the first one, counted already if unrouted
+            routes = mChunkRoutes;
+            if (routes == null) {
+                event.release();
+                return;
+            }
+        }
+
+        if (routes == null) {
+            mUnrouted.incrementAndGet();
+            event.release();
+            return;
+        }
+        // every subscriber gets a reference before the first one may release its own
+        for (int i = 1; i < routes.length; i++) {
+            event.retain();
+        }
+        for (Route route : routes) {
+            route.mEmitter.onNext(event);
+        }
+    }
+
+    private Route[] lookup(RxWebSocketClient.Event message) {
+        K key = mExtractor.extract(message);
+        return (key != null) ? mRoutes.get(key) : null;
+    }
+
+    private void terminate(Throwable error) {
+        List<Route> targets = new ArrayList<Route>();
+        mLock.lock();
+        try {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            mError = error;
+            mConnected = false;
+            for (Route[] routes : mRoutes.values()) {
+                for (Route route : routes) {
+                    route.mEmitter.end(error);
+                    targets.add(route);
+                }
+            }
+            mRoutes.clear();
+        } finally {
+            mLock.unlock();
+        }
+        for (Route route : targets) {
+            route.mEmitter.drain();
+        }
+    }
+
+    private static final class Route {
+        final BackpressureEmitter mEmitter;
+
+        Route(BackpressureEmitter emitter) {
+            mEmitter = emitter;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.Completable;
+import rx.CompletableSubscriber;
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Action1;
+
+/**
+ * Sends every item of an Observable as a message, requesting the next item only while the
+ * client's outbound queue is writable.
+ * <p>
+ * One item is requested at a time. After sending it, the next one is requested right away if
+ * the queue is still writable, or as soon as it turns writable again. Writability is read from
+ * the writer itself; its Observable only wakes the sender up, because a change made while an
+ * earlier one is being emitted reaches subscribers late. The Completable completes
+ * after the source completed and the listeners of all messages were told they are written.
+ */
+final class MessageSender<T> implements Completable.OnSubscribe {
+    private final RxWebSocketClient mClient;
+    private final Observable<T> mMessages;
+    private final Encoder<? super T> mEncoder;
+    private final RxWebSocketClient.Priority mPriority;
+
+    /**
+     * @param client
+     * @param messages
+     * @param encoder  turns items into String or byte[], may be null if they are already
+     * @param priority
+     */
+    MessageSender(RxWebSocketClient client, Observable<T> messages, Encoder<? super T> encoder,
+                  RxWebSocketClient.Priority priority) {
+        mClient = client;
+        mMessages = messages;
+        mEncoder = encoder;
+        mPriority = priority;
+    }
+
+    @Override
+    public void call(CompletableSubscriber subscriber) {
+        Upstream<T> upstream = new Upstream<T>(mClient, mEncoder, mPriority, subscriber);
+        subscriber.onSubscribe(upstream);
+        mMessages.subscribe(upstream);
+    }
+
+    private static final class Upstream<T> extends Subscriber<T> implements OutboundFrame.Listener {
+        private final RxWebSocketClient mClient;
+        private final Encoder<? super T> mEncoder;
+        private final RxWebSocketClient.Priority mPriority;
+        private final CompletableSubscriber mActual;
+
+        /**
+         * True while an item was sent and the next one waits for writability
+         */
+        private final AtomicBoolean mWaiting = new AtomicBoolean(true);
+        private final AtomicInteger mInFlight = new AtomicInteger();
+        private volatile boolean mDone;
+        private final AtomicBoolean mTerminated = new AtomicBoolean();
+
+        Upstream(RxWebSocketClient client, Encoder<? super T> encoder, RxWebSocketClient.Priority priority,
+                 CompletableSubscriber actual) {
+            mClient = client;
+            mEncoder = encoder;
+            mPriority = priority;
+            mActual = actual;
+        }
+
+        @Override
+        public void onStart() {
+            request(0);
+            add(mClient.writability().subscribe(new Action1<Boolean>() {
+                @Override
+                public void call(Boolean writable) {
+                    if (writable && mWaiting.compareAndSet(true, false)) {
+                        request(1);
+                    }
+                }
+            }));
+        }
+
+        @Override
+        public void onNext(T value) {
+            Object item = value;
+            if (mEncoder != null) {
+                try {
+                    item = mEncoder.encode(value);
+                } catch (Exception e) {
+                    unsubscribe();
+                    terminate(e);
+                    return;
+                }
+            }
+            OutboundFrame frame;
+            if (item instanceof String) {
+                frame = mClient.message((String) item);
+            } else if (item instanceof byte[]) {
+                frame = mClient.message((byte[]) item);
+            } else {
+                unsubscribe();
+                terminate(new IllegalArgumentException("Message must be String or byte[]: " + item));
+                return;
+            }
+            if (frame == null) {
+                unsubscribe();
+                terminate(new IOException("Connection is closed"));
+                return;
+            }
+            frame.setListener(this);
+            mInFlight.incrementAndGet();
+            mClient.sendFrame(frame, mPriority);
+
+            // publish waiting before reading writability, as the writability callback does the reverse
+            mWaiting.set(true);
+            if (mClient.isWritable() && mWaiting.compareAndSet(true, false)) {
+                request(1);
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            mDone = true;
+            if (mInFlight.get() == 0) {
+                terminate(null);
+            }
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            terminate(e);
+        }
+
+        @Override
+        public void onWritten() {
+            if (mInFlight.decrementAndGet() == 0 && mDone) {
+                terminate(null);
+            }
+        }
+
+        @Override
+        public void onFailed(Throwable e) {
+            mInFlight.decrementAndGet();
+            unsubscribe();
+            terminate(e);
+        }
+
+        private void terminate(Throwable e) {
+            if (!mTerminated.compareAndSet(false, true)) {
+                return;
+            }
+            unsubscribe();
+            if (e != null) {
+                mActual.onError(e);
+            } else {
+                mActual.onCompleted();
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counters of a connection at one point in time, from {@link RxWebSocketClient#getMetrics()}.
+ * <p>
+ * Plain values only, so they can be exported to any monitoring system.
+ * Byte counts are payload bytes as on the wire, i.e. compressed when permessage-deflate is used.
+ */
+public final class MetricsSnapshot {
+    /**
+     * Frame types counted separately
+     */
+    public enum FrameType {
+        CONTINUATION(0),
+        TEXT(1),
+        BINARY(2),
+        CLOSE(8),
+        PING(9),
+        PONG(10);
+
+        final int opcode;
+
+        FrameType(int opcode) {
+            this.opcode = opcode;
+        }
+    }
+
+    private final long[] mFramesReceived;
+    private final long[] mBytesReceived;
+    private final long[] mFramesSent;
+    private final long[] mBytesSent;
+    private final long mFragmentedReceived;
+    private final long mFragmentedSent;
+    private final int mSendQueueDepth;
+    private final long mHandshakeNanos;
+    private final long mParseNanosPerFrame;
+    private final Map<String, Long> mErrors;
+
+    MetricsSnapshot(long[] framesReceived, long[] bytesReceived, long[] framesSent, long[] bytesSent,
+                    long fragmentedReceived, long fragmentedSent, int sendQueueDepth,
+                    long handshakeNanos, long parseNanosPerFrame, Map<String, Long> errors) {
+        mFramesReceived = framesReceived;
+        mBytesReceived = bytesReceived;
+        mFramesSent = framesSent;
+        mBytesSent = bytesSent;
+        mFragmentedReceived = fragmentedReceived;
+        mFragmentedSent = fragmentedSent;
+        mSendQueueDepth = sendQueueDepth;
+        mHandshakeNanos = handshakeNanos;
+        mParseNanosPerFrame = parseNanosPerFrame;
+        mErrors = Collections.unmodifiableMap(errors);
+    }
+
+    public long getFramesReceived(FrameType type) {
+        return mFramesReceived[type.opcode];
+    }
+
+    public long getBytesReceived(FrameType type) {
+        return mBytesReceived[type.opcode];
+    }
+
+    public long getFramesSent(FrameType type) {
+        return mFramesSent[type.opcode];
+    }
+
+    public long getBytesSent(FrameType type) {
+        return mBytesSent[type.opcode];
+    }
+
+    /**
+     * @return number of messages received in more than one frame
+     */
+    public long getFragmentedMessagesReceived() {
+        return mFragmentedReceived;
+    }
+
+    /**
+     * @return number of messages sent in more than one frame
+     */
+    public long getFragmentedMessagesSent() {
+        return mFragmentedSent;
+    }
+
+    /**
+     * @return number of frames waiting to be written when the snapshot was taken
+     */
+    public int getSendQueueDepth() {
+        return mSendQueueDepth;
+    }
+
+    /**
+     * @param unit
+     * @return time from socket creation to validated handshake response, or -1 before it completed
+     */
+    public long getHandshakeTime(TimeUnit unit) {
+        return (mHandshakeNanos < 0) ? -1 : unit.convert(mHandshakeNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Average time to parse and unmask a frame, estimated from a sample of frames.
+     *
+     * @return nanoseconds, 0 before any frame was sampled
+     */
+    public long getParseNanosPerFrame() {
+        return mParseNanosPerFrame;
+    }
+
+    /**
+     * @return number of connection errors by exception class name
+     */
+    public Map<String, Long> getErrors() {
+        return mErrors;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("MetricsSnapshot{");
+        for (FrameType type : FrameType.values()) {
+            builder.append(type.name().toLowerCase(Locale.US)).append("=")
+                    .append(getFramesReceived(type)).append("/").append(getBytesReceived(type)).append("B in ")
+                    .append(getFramesSent(type)).append("/").append(getBytesSent(type)).append("B out, ");
+        }
+        return builder.append("fragmented=").append(mFragmentedReceived).append(" in ")
+                .append(mFragmentedSent).append(" out, queue=").append(mSendQueueDepth)
+                .append(", handshake=").append(mHandshakeNanos).append("ns, parse=")
+                .append(mParseNanosPerFrame).append("ns/frame, errors=").append(mErrors).append("}")
+                .toString();
+    }
+}
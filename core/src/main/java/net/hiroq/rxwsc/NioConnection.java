@@ -0,0 +1,433 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+
+/**
+ * Connection of one client on an {@link EventLoop}.
+ * <p>
+ * Sends the handshake request, collects the response up to the empty line, then feeds
+ * received data to the parser and drains the writer into the channel. Everything but the
+ * {@link FrameWriter} offers and flow control calls happens on the loop thread.
+ */
+final class NioConnection implements EventLoop.Handler, BackpressureEmitter.FlowControl {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Frames are drained into the write buffer until it holds this much, then written at once
+     */
+    private static final int WRITE_BATCH_SIZE = 16 * 1024;
+
+    /**
+     * Reads per readiness before other connections get their turn
+     */
+    private static final int READS_PER_TURN = 16;
+
+    private static final int CONNECTING = 0;
+    private static final int HANDSHAKE = 1;
+    private static final int OPEN = 2;
+    /**
+     * Not reading any more, writing what is queued up to the close frame
+     */
+    private static final int CLOSING = 3;
+    private static final int CLOSED = 4;
+
+    private final RxWebSocketClient mClient;
+    private final HybiParser mParser;
+    private final EventLoop mLoop;
+    private final FrameWriter mWriter;
+
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled.set(false);
+            try {
+                flush();
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+    };
+
+    private SocketChannel mChannel;
+    private SelectionKey mKey;
+    private NioTransport mTransport;
+    private int mState = CONNECTING;
+
+    private ByteBuffer mRequest;
+    private String mAccept;
+    private DeflateOptions mDeflateOptions;
+    private long mHandshakeStart;
+    private Handshake.Response mResponse = new Handshake.Response();
+
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final WriteBuffer mWriteBuffer = new WriteBuffer();
+    private ByteBuffer mPending;
+    private boolean mPaused;
+
+    /**
+     * Write buffer exposing its array, so it is written to the channel without a copy.
+     */
+    private static final class WriteBuffer extends ByteArrayOutputStream {
+        WriteBuffer() {
+            super(WRITE_BATCH_SIZE);
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    NioConnection(RxWebSocketClient client, HybiParser parser, EventLoop loop) {
+        mClient = client;
+        mParser = parser;
+        mLoop = loop;
+        mWriter = new FrameWriter(new FrameWriter.Callback() {
+            @Override
+            public void onError(IOException e) {
+                fail(e);
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                if (mFlushScheduled.compareAndSet(false, true)) {
+                    mLoop.execute(mFlushTask);
+                }
+            }
+        });
+    }
+
+    FrameWriter getWriter() {
+        return mWriter;
+    }
+
+    /**
+     * Start connecting. Called on subscribing thread, the rest happens on loop thread.
+     *
+     * @param address        resolved server address
+     * @param engine         engine in client mode for wss, null for ws
+     * @param request        handshake request
+     * @param accept         expected Sec-WebSocket-Accept value
+     * @param deflateOptions offered permessage-deflate options, null if not offered
+     * @throws IOException
+     */
+    void connect(InetSocketAddress address, SSLEngine engine, byte[] request, String accept,
+                 DeflateOptions deflateOptions) throws IOException {
+        mHandshakeStart = System.nanoTime();
+        mRequest = ByteBuffer.wrap(request);
+        mAccept = accept;
+        mDeflateOptions = deflateOptions;
+
+        final SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        mChannel = channel;
+        mTransport = (engine != null) ? new NioTransport.Tls(channel, engine) : new NioTransport.Plain(channel);
+
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mState == CLOSED) {
+                    closeChannel();
+                    return;
+                }
+                try {
+                    mKey = channel.register(mLoop.selector(), SelectionKey.OP_CONNECT, NioConnection.this);
+                    if (channel.isConnected() || channel.finishConnect()) {
+                        onConnected();
+                    }
+                } catch (Exception e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onReady(SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                if (mChannel.finishConnect()) {
+                    onConnected();
+                }
+                return;
+            }
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    private void onConnected() throws IOException {
+        mState = HANDSHAKE;
+        mKey.interestOps(SelectionKey.OP_READ);
+        mPending = mRequest;
+        mRequest = null;
+        flush();
+    }
+
+    private void read() throws IOException {
+        for (int turn = 0; turn < READS_PER_TURN; turn++) {
+            if (mPaused || mState >= CLOSING) {
+                return;
+            }
+            mReadBuffer.clear();
+            int read = mTransport.read(mReadBuffer);
+            if (read == -1) {
+                // Might be disconnected by server or network problems.
+                throw new ConnectException("Disconnected by Host or network problems.");
+            }
+            if (read > 0) {
+                received(mReadBuffer.array(), 0, read);
+            }
+            if (read < READ_BUFFER_SIZE && !mTransport.hasBuffered()) {
+                break;
+            }
+        }
+
+        if (mTransport.hasBuffered() && !mPaused && mState < CLOSING) {
+            // plaintext left in transport is not reported by the selector
+            mLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        read();
+                    } catch (Exception e) {
+                        fail(e);
+                    }
+                }
+            });
+        }
+        // a TLS handshake may have been waiting for this data to continue writing
+        flush();
+    }
+
+    private void received(byte[] data, int offset, int length) throws IOException {
+        if (mState == OPEN) {
+            mParser.receive(data, offset, length);
+            return;
+        }
+        if (mState != HANDSHAKE) {
+            return;
+        }
+
+        int used = mResponse.feed(data, offset, length);
+        if (!mResponse.isComplete()) {
+            return;
+        }
+        PerMessageDeflate deflate = mResponse.validate(mAccept, mDeflateOptions);
+        mResponse = null;
+        mParser.setDeflate(deflate);
+        mState = OPEN;
+        mClient.onHandshake(mHandshakeStart);
+
+        if (used < length) {
+            mParser.receive(data, offset + used, length - used);
+        }
+        flush();
+    }
+
+    /**
+     * Write what is pending and then as many frames as the socket takes.
+     */
+    private void flush() throws IOException {
+        if (mState == CLOSED || mState == CONNECTING) {
+            return;
+        }
+        while (true) {
+            if (mPending != null) {
+                if (!mTransport.write(mPending)) {
+                    setWriteInterest(mTransport.isWriteBlocked());
+                    return;
+                }
+                mPending = null;
+                mWriteBuffer.reset();
+                mWriter.flushed();
+            }
+
+            if (mState == HANDSHAKE) {
+                setWriteInterest(false);
+                if (mWriter.isClosing()) {
+                    close();
+                }
+                return;
+            }
+
+            while (mWriteBuffer.size() < WRITE_BATCH_SIZE && mWriter.writeNext(mWriteBuffer)) {
+                // batch frames into one write
+            }
+            if (mWriteBuffer.size() == 0) {
+                setWriteInterest(false);
+                if (mWriter.isClosing()) {
+                    close();
+                }
+                return;
+            }
+            mPending = mWriteBuffer.toByteBuffer();
+        }
+    }
+
+    private void setWriteInterest(boolean write) {
+        if (mKey == null || !mKey.isValid()) {
+            return;
+        }
+        int ops = mKey.interestOps();
+        int updated = write ? (ops | SelectionKey.OP_WRITE) : (ops & ~SelectionKey.OP_WRITE);
+        if (updated != ops) {
+            mKey.interestOps(updated);
+        }
+    }
+
+    private void setReadInterest(boolean read) {
+        if (mKey == null || !mKey.isValid()) {
+            return;
+        }
+        int ops = mKey.interestOps();
+        mKey.interestOps(read ? (ops | SelectionKey.OP_READ) : (ops & ~SelectionKey.OP_READ));
+    }
+
+    @Override
+    public void pause() {
+        // called while emitting, so on loop thread
+        mPaused = true;
+        setReadInterest(false);
+    }
+
+    @Override
+    public void resume() {
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mPaused || mState >= CLOSING) {
+                    return;
+                }
+                mPaused = false;
+                setReadInterest(true);
+                try {
+                    read();
+                } catch (Exception e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Close the connection after a failure and report it.
+     */
+    private void fail(Throwable e) {
+        if (mState == CLOSED) {
+            return;
+        }
+        if (e instanceof SSLException) {
+            // Might be disconnected by server or network problems.
+            e = new ConnectException("Disconnected by Host or network problems.");
+        } else if (e instanceof ClosedChannelException) {
+            e = new ConnectException("Disconnected by Host or network problems.");
+        } else if (e instanceof HybiParser.ProtocolError && mState == OPEN) {
+            // the parser queued a close frame with the error code, write it before closing
+            mState = CLOSING;
+            setReadInterest(false);
+            mWriter.close(null);
+            mClient.connectionLost(mParser, e);
+            try {
+                flush();
+            } catch (IOException flushFailed) {
+                close();
+            }
+            return;
+        }
+        // reported before closing, so frames still queued in the writer can be kept for a reconnect
+        mClient.connectionLost(mParser, e);
+        close();
+    }
+
+    /**
+     * Close channel and release the connection. Loop thread only, only the first call has effect.
+     */
+    void close() {
+        if (mState == CLOSED) {
+            return;
+        }
+        mState = CLOSED;
+        closeChannel();
+        mParser.finish();
+        PerMessageDeflate deflate = mParser.getDeflate();
+        if (deflate != null) {
+            deflate.endDeflater();
+        }
+        mWriter.close(null);
+        mWriter.finish();
+    }
+
+    /**
+     * Close from any thread.
+     */
+    void closeLater() {
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    private void closeChannel() {
+        if (mKey != null) {
+            mKey.cancel();
+        }
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of selector threads shared by any number of clients.
+ * <p>
+ * Pass to {@link RxWebSocketClient#setEngine(NioEngine)} to run connections on non-blocking
+ * channels: a connection then costs no thread of its own, and events are emitted on the
+ * engine's threads. Connections are assigned to threads round robin.
+ * Subscribers must not block them; use observeOn for slow work.
+ */
+public class NioEngine {
+    private final EventLoop[] mLoops;
+    private final AtomicInteger mNext = new AtomicInteger();
+
+    /**
+     * Engine with one thread per available processor.
+     *
+     * @throws IOException if a selector can not be opened
+     */
+    public NioEngine() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads number of selector threads
+     * @throws IOException if a selector can not be opened
+     */
+    public NioEngine(int threads) throws IOException {
+        this(threads, DaemonThreadFactory.INSTANCE);
+    }
+
+    /**
+     * @param threads       number of selector threads
+     * @param threadFactory creates the selector threads, which must not be started
+     * @throws IOException if a selector can not be opened
+     */
+    public NioEngine(int threads, ThreadFactory threadFactory) throws IOException {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        if (threadFactory == null) {
+            throw new IllegalArgumentException("threadFactory must not be null");
+        }
+        mLoops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            mLoops[i] = new EventLoop(threadFactory, getClass().getName() + "-" + i);
+        }
+    }
+
+    EventLoop next() {
+        return mLoops[(mNext.getAndIncrement() & Integer.MAX_VALUE) % mLoops.length];
+    }
+
+    /**
+     * Stop all threads. Connections still open are closed without notice.
+     */
+    public void shutdown() {
+        for (EventLoop loop : mLoops) {
+            loop.shutdown();
+        }
+    }
+}
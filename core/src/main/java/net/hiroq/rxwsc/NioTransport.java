@@ -0,0 +1,281 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * Plaintext view of a non-blocking socket channel, with or without TLS. Loop thread only.
+ */
+abstract class NioTransport {
+    final SocketChannel mChannel;
+
+    NioTransport(SocketChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * Read available plaintext.
+     *
+     * @param dst
+     * @return bytes read into dst, or -1 at end of stream
+     * @throws IOException
+     */
+    abstract int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * Write plaintext as far as the socket takes it.
+     *
+     * @param src
+     * @return true when src and everything before it is on the wire
+     * @throws IOException
+     */
+    abstract boolean write(ByteBuffer src) throws IOException;
+
+    /**
+     * @return true if the last write stopped because the socket was full, so OP_WRITE is of use
+     */
+    abstract boolean isWriteBlocked();
+
+    /**
+     * @return true if plaintext is buffered which the selector will not report
+     */
+    abstract boolean hasBuffered();
+
+    static final class Plain extends NioTransport {
+        private boolean mWriteBlocked;
+
+        Plain(SocketChannel channel) {
+            super(channel);
+        }
+
+        @Override
+        int read(ByteBuffer dst) throws IOException {
+            return mChannel.read(dst);
+        }
+
+        @Override
+        boolean write(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                if (mChannel.write(src) == 0) {
+                    mWriteBlocked = true;
+                    return false;
+                }
+            }
+            mWriteBlocked = false;
+            return true;
+        }
+
+        @Override
+        boolean isWriteBlocked() {
+            return mWriteBlocked;
+        }
+
+        @Override
+        boolean hasBuffered() {
+            return false;
+        }
+    }
+
+    /**
+     * TLS through SSLEngine. Handshake messages are exchanged as a side effect of reads and
+     * writes, and delegated tasks run inline.
+     */
+    static final class Tls extends NioTransport {
+        private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+        private final SSLEngine mEngine;
+
+        /**
+         * Received records not unwrapped yet, in write mode
+         */
+        private ByteBuffer mNetIn;
+        /**
+         * Wrapped records not written yet, in read mode
+         */
+        private ByteBuffer mNetOut;
+        /**
+         * Unwrapped plaintext not handed out yet, in read mode
+         */
+        private ByteBuffer mAppIn;
+        private boolean mMore;
+
+        Tls(SocketChannel channel, SSLEngine engine) {
+            super(channel);
+            mEngine = engine;
+            int packetSize = engine.getSession().getPacketBufferSize();
+            mNetIn = ByteBuffer.allocate(packetSize);
+            mNetOut = ByteBuffer.allocate(packetSize);
+            mNetOut.flip();
+            mAppIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+            mAppIn.flip();
+        }
+
+        @Override
+        int read(ByteBuffer dst) throws IOException {
+            int start = dst.position();
+            boolean eof = false;
+            mMore = false;
+
+            while (true) {
+                if (mAppIn.hasRemaining()) {
+                    int count = Math.min(mAppIn.remaining(), dst.remaining());
+                    int limit = mAppIn.limit();
+                    mAppIn.limit(mAppIn.position() + count);
+                    dst.put(mAppIn);
+                    mAppIn.limit(limit);
+                    if (!dst.hasRemaining()) {
+                        mMore = true;
+                        break;
+                    }
+                }
+
+                SSLEngineResult.HandshakeStatus status = mEngine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                    continue;
+                }
+                if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    write(EMPTY);
+                    if (isWriteBlocked()) {
+                        break;
+                    }
+                    continue;
+                }
+
+                mNetIn.flip();
+                mAppIn.compact();
+                SSLEngineResult result;
+                try {
+                    result = mEngine.unwrap(mNetIn, mAppIn);
+                } finally {
+                    mAppIn.flip();
+                    mNetIn.compact();
+                }
+
+                SSLEngineResult.Status resultStatus = result.getStatus();
+                if (resultStatus == SSLEngineResult.Status.CLOSED) {
+                    eof = true;
+                    break;
+                } else if (resultStatus == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    if (!mAppIn.hasRemaining()) {
+                        mAppIn = ByteBuffer.allocate(mEngine.getSession().getApplicationBufferSize());
+                        mAppIn.flip();
+                    }
+                    continue;
+                } else if (resultStatus == SSLEngineResult.Status.BUFFER_UNDERFLOW
+                        || (result.bytesConsumed() == 0 && result.bytesProduced() == 0)) {
+                    if (eof) {
+                        break;
+                    }
+                    if (!mNetIn.hasRemaining()) {
+                        ByteBuffer grown = ByteBuffer.allocate(Math.max(mNetIn.capacity() * 2,
+                                mEngine.getSession().getPacketBufferSize()));
+                        mNetIn.flip();
+                        grown.put(mNetIn);
+                        mNetIn = grown;
+                    }
+                    int read = mChannel.read(mNetIn);
+                    if (read == -1) {
+                        eof = true;
+                    } else if (read == 0) {
+                        break;
+                    }
+                }
+            }
+
+            int read = dst.position() - start;
+            return (read == 0 && eof) ? -1 : read;
+        }
+
+        @Override
+        boolean write(ByteBuffer src) throws IOException {
+            while (true) {
+                if (!flush()) {
+                    return false;
+                }
+                SSLEngineResult.HandshakeStatus status = mEngine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                    continue;
+                }
+                if (status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+                    // wait for the peer, reads continue the handshake
+                    return false;
+                }
+                if (status != SSLEngineResult.HandshakeStatus.NEED_WRAP && !src.hasRemaining()) {
+                    return true;
+                }
+
+                mNetOut.clear();
+                SSLEngineResult result;
+                try {
+                    result = mEngine.wrap(src, mNetOut);
+                } finally {
+                    mNetOut.flip();
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("SSLEngine is closed");
+                } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    mNetOut = ByteBuffer.allocate(mEngine.getSession().getPacketBufferSize());
+                    mNetOut.flip();
+                }
+            }
+        }
+
+        private boolean flush() throws IOException {
+            while (mNetOut.hasRemaining()) {
+                if (mChannel.write(mNetOut) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = mEngine.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+
+        @Override
+        boolean isWriteBlocked() {
+            return mNetOut.hasRemaining();
+        }
+
+        @Override
+        boolean hasBuffered() {
+            return mMore;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rx.Observable;
+import rx.Producer;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Decodes messages on workers of a scheduler and emits the values in the order of messages.
+ * <p>
+ * Every message gets a sequence number and a slot in a queue, and is decoded on the worker
+ * its sequence number picks, so up to parallelism messages are decoded at once. Values are
+ * emitted from the head of the queue only, so a slow message holds back the ones after it
+ * but never lets them overtake it. At most window messages are requested ahead of the
+ * subscriber; a source ignoring backpressure only makes the queue longer.
+ * <p>
+ * Events other than MESSAGE_STRING and MESSAGE_BINARY are skipped. Messages are released once
+ * decoded, or when the subscriber unsubscribes before they were.
+ *
+ * @param <T>
+ */
+final class OrderedDecoder<T> implements Observable.Operator<T, RxWebSocketClient.Event> {
+    private final Decoder<? extends T> mDecoder;
+    private final Scheduler mScheduler;
+    private final int mParallelism;
+    private final int mWindow;
+
+    OrderedDecoder(Decoder<? extends T> decoder, Scheduler scheduler, int parallelism, int window) {
+        mDecoder = decoder;
+        mScheduler = scheduler;
+        mParallelism = parallelism;
+        mWindow = window;
+    }
+
+    @Override
+    public Subscriber<? super RxWebSocketClient.Event> call(Subscriber<? super T> child) {
+        final Parent<T> parent = new Parent<T>(child, mDecoder, mWindow);
+        parent.mWorkers = new Scheduler.Worker[mParallelism];
+        for (int i = 0; i < mParallelism; i++) {
+            parent.mWorkers[i] = mScheduler.createWorker();
+            child.add(parent.mWorkers[i]);
+        }
+        child.add(parent);
+        child.add(Subscriptions.create(new Action0() {
+            @Override
+            public void call() {
+                parent.cancel();
+            }
+        }));
+        child.setProducer(new Producer() {
+            @Override
+            public void request(long n) {
+                if (n < 0) {
+                    throw new IllegalArgumentException("n >= 0 required but it was " + n);
+                }
+                if (n > 0) {
+                    parent.requestValues(n);
+                }
+            }
+        });
+        return parent;
+    }
+
+    /**
+     * One message in decode order.
+     */
+    private static final class Slot implements Action0 {
+        static final int QUEUED = 0;
+        static final int TAKEN = 1;
+        static final int CANCELLED = 2;
+
+        private static final AtomicIntegerFieldUpdater<Slot> STATE = AtomicIntegerFieldUpdater.newUpdater(Slot.class, "mState");
+
+        /**
+         * QUEUED, TAKEN or CANCELLED, changed through STATE
+         */
+        private volatile int mState = QUEUED;
+
+        final Parent<?> mParent;
+        RxWebSocketClient.Event mMessage;
+
+        /**
+         * Decoded value, SKIP, a Failure, or null while not decoded yet
+         */
+        volatile Object mValue;
+
+        Slot(Parent<?> parent, RxWebSocketClient.Event message) {
+            mParent = parent;
+            mMessage = message;
+        }
+
+        @Override
+        public void call() {
+            if (!STATE.compareAndSet(this, QUEUED, TAKEN)) {
+                return;
+            }
+            RxWebSocketClient.Event message = mMessage;
+            mMessage = null;
+            Object value;
+            try {
+                value = mParent.mDecoder.decode(message);
+                if (value == null) {
+                    value = SKIP;
+                }
+            } catch (Throwable e) {
+                value = new Failure(e);
+            } finally {
+                message.release();
+            }
+            mValue = value;
+            mParent.drain();
+        }
+
+        void cancel() {
+            if (STATE.compareAndSet(this, QUEUED, CANCELLED)) {
+                RxWebSocketClient.Event message = mMessage;
+                mMessage = null;
+                message.release();
+            }
+        }
+    }
+
+    private static final Object SKIP = new Object();
+
+    private static final class Failure {
+        final Throwable mError;
+
+        Failure(Throwable error) {
+            mError = error;
+        }
+    }
+
+    private static final class Parent<T> extends Subscriber<RxWebSocketClient.Event> {
+        final Subscriber<? super T> mChild;
+        final Decoder<? extends T> mDecoder;
+        final int mWindow;
+        Scheduler.Worker[] mWorkers;
+
+        final ConcurrentLinkedQueue<Slot> mSlots = new ConcurrentLinkedQueue<Slot>();
+        final AtomicLong mRequested = new AtomicLong();
+        final AtomicInteger mWip = new AtomicInteger();
+
+        /**
+         * Touched by the upstream thread only
+         */
+        long mSequence;
+
+        volatile boolean mDone;
+        Throwable mError;
+
+        Parent(Subscriber<? super T> child, Decoder<? extends T> decoder, int window) {
+            mChild = child;
+            mDecoder = decoder;
+            mWindow = window;
+        }
+
+        /**
+         * Add demand of the child.
+         */
+        void requestValues(long n) {
+            while (true) {
+                long current = mRequested.get();
+                long next = current + n;
+                if (next < 0) {
+                    next = Long.MAX_VALUE;
+                }
+                if (mRequested.compareAndSet(current, next)) {
+                    break;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void onStart() {
+            request(mWindow);
+        }
+
+        @Override
+        public void onNext(RxWebSocketClient.Event event) {
+            RxWebSocketClient.EventType type = event.getType();
+            if (type != RxWebSocketClient.EventType.MESSAGE_STRING && type != RxWebSocketClient.EventType.MESSAGE_BINARY) {
+                event.release();
+                request(1);
+                return;
+            }
+            long sequence = mSequence++;
+            Slot slot = new Slot(this, event);
+            mSlots.offer(slot);
+            if (mChild.isUnsubscribed()) {
+                slot.cancel();
+                return;
+            }
+            mWorkers[(int) (sequence % mWorkers.length)].schedule(slot);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            mError = e;
+            mDone = true;
+            drain();
+        }
+
+        @Override
+        public void onCompleted() {
+            mDone = true;
+            drain();
+        }
+
+        void cancel() {
+            for (Slot slot : mSlots) {
+                slot.cancel();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void drain() {
+            if (mWip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            while (true) {
+                long requested = mRequested.get();
+                long emitted = 0;
+                int consumed = 0;
+                while (true) {
+                    if (mChild.isUnsubscribed()) {
+                        return;
+                    }
+                    boolean done = mDone;
+                    Slot slot = mSlots.peek();
+                    if (slot == null) {
+                        if (done) {
+                            if (mError != null) {
+                                mChild.onError(mError);
+                            } else {
+                                mChild.onCompleted();
+                            }
+                            return;
+                        }
+                        break;
+                    }
+                    Object value = slot.mValue;
+                    if (value == null) {
+                        break;
+                    }
+                    if (value instanceof Failure) {
+                        unsubscribe();
+                        cancel();
+                        mChild.onError(((Failure) value).mError);
+                        return;
+                    }
+                    if (value != SKIP) {
+                        if (emitted == requested) {
+                            break;
+                        }
+                        mChild.onNext((T) value);
+                        emitted++;
+                    }
+                    mSlots.poll();
+                    consumed++;
+                }
+                if (emitted > 0 && requested != Long.MAX_VALUE) {
+                    mRequested.addAndGet(-emitted);
+                }
+                if (consumed > 0) {
+                    request(consumed);
+                }
+                missed = mWip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
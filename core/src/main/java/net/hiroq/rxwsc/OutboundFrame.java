@@ -0,0 +1,356 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Frame waiting to be written to the socket.
+ * <p>
+ * Header and payload are kept apart, so the payload is never copied into a frame array.
+ * A masked payload is either masked in place, when its owner allowed it, or masked chunk by
+ * chunk through the writer's scratch buffer on its way to the stream.
+ */
+final class OutboundFrame {
+    /**
+     * Told on the writer thread whether the frame reached the socket.
+     */
+    interface Listener {
+        /**
+         * Frame, or the last fragment of a fragmented message, was written and flushed.
+         */
+        void onWritten();
+
+        /**
+         * Frame was dropped or could not be written.
+         *
+         * @param e
+         */
+        void onFailed(Throwable e);
+    }
+
+    /**
+     * Max header size. 2 bytes + 8 bytes extended length + 4 bytes masking key
+     */
+    static final int MAX_HEADER_SIZE = 14;
+
+    private final byte[] mHeader;
+    private final int mHeaderLength;
+
+    private final byte[] mArray;
+    private final int mOffset;
+    private final ByteBuffer mBuffer;
+    private final int mLength;
+
+    private final boolean mMasked;
+    private final int mKey;
+    private final boolean mMaskInPlace;
+
+    /**
+     * Set for whole messages which may be compressed. Header is built when written.
+     */
+    private final PerMessageDeflate mDeflate;
+    private final int mOpcode;
+
+    /**
+     * Set for messages written fragment by fragment. Nothing else is set then.
+     */
+    private final FragmentedMessage mFragments;
+
+    /**
+     * Written in the bulk lane instead of the high priority one. Set before the frame is queued.
+     */
+    private boolean mBulk;
+
+    /**
+     * Told when the frame is written or dropped, may be null. Set before the frame is queued.
+     */
+    private Listener mListener;
+
+    private OutboundFrame(byte[] header, int headerLength, byte[] array, int offset, ByteBuffer buffer, int length,
+                          boolean masked, int key, boolean maskInPlace) {
+        this(header, headerLength, array, offset, buffer, length, masked, key, maskInPlace, null, 0, null);
+    }
+
+    private OutboundFrame(byte[] header, int headerLength, byte[] array, int offset, ByteBuffer buffer, int length,
+                          boolean masked, int key, boolean maskInPlace, PerMessageDeflate deflate, int opcode,
+                          FragmentedMessage fragments) {
+        mHeader = header;
+        mHeaderLength = headerLength;
+        mArray = array;
+        mOffset = offset;
+        mBuffer = buffer;
+        mLength = length;
+        mMasked = masked;
+        mKey = key;
+        mMaskInPlace = maskInPlace;
+        mDeflate = deflate;
+        mOpcode = opcode;
+        mFragments = fragments;
+    }
+
+    /**
+     * Frame which is already encoded and masked as a whole.
+     *
+     * @param frame
+     * @return
+     */
+    static OutboundFrame of(byte[] frame) {
+        return new OutboundFrame(frame, frame.length, null, 0, null, 0, false, 0, false);
+    }
+
+    /**
+     * Frame with payload in an array range.
+     */
+    static OutboundFrame of(byte[] header, int headerLength, byte[] payload, int offset, int length,
+                            boolean masked, int key, boolean maskInPlace) {
+        return new OutboundFrame(header, headerLength, payload, offset, null, length, masked, key, maskInPlace);
+    }
+
+    /**
+     * Frame with payload in the remaining bytes of buffer.
+     * The position of buffer is not changed. A read-only buffer is masked through the scratch copy.
+     */
+    static OutboundFrame of(byte[] header, int headerLength, ByteBuffer payload,
+                            boolean masked, int key, boolean maskInPlace) {
+        ByteBuffer buffer = payload.duplicate();
+        return new OutboundFrame(header, headerLength, null, 0, buffer, buffer.remaining(), masked, key,
+                maskInPlace && !buffer.isReadOnly());
+    }
+
+    /**
+     * Message which is compressed on writer thread if the extension asks for it.
+     * Compression has to happen on one thread in the order frames are written,
+     * because compressed messages depend on the ones before.
+     *
+     * @param opcode
+     * @param payload whole message, owned by the frame
+     * @param masked
+     * @param key
+     * @param deflate negotiated extension
+     * @return
+     */
+    static OutboundFrame message(int opcode, byte[] payload, boolean masked, int key, PerMessageDeflate deflate) {
+        byte[] header = new byte[MAX_HEADER_SIZE];
+        int headerLength = HybiParser.header(header, opcode, payload.length, masked, key);
+        return new OutboundFrame(header, headerLength, payload, 0, null, payload.length, masked, key, true, deflate, opcode, null);
+    }
+
+    /**
+     * Message written in fragments by the writer itself.
+     *
+     * @param fragments
+     * @return
+     */
+    static OutboundFrame of(FragmentedMessage fragments) {
+        return new OutboundFrame(null, 0, null, 0, null, 0, false, 0, false, null, 0, fragments);
+    }
+
+    /**
+     * @return fragmented message, or null for a single frame
+     */
+    FragmentedMessage getFragments() {
+        return mFragments;
+    }
+
+    /**
+     * Same message, compressed with deflate instead of the extension it was built for.
+     * Used when a message built for one connection is written on the next one.
+     *
+     * @param deflate may be null
+     * @return
+     */
+    OutboundFrame withDeflate(PerMessageDeflate deflate) {
+        if (mDeflate == null || mDeflate == deflate) {
+            return this;
+        }
+        OutboundFrame frame = new OutboundFrame(mHeader, mHeaderLength, mArray, mOffset, mBuffer, mLength,
+                mMasked, mKey, mMaskInPlace, deflate, mOpcode, null);
+        frame.mBulk = mBulk;
+        frame.mListener = mListener;
+        return frame;
+    }
+
+    /**
+     * Set lane of a data frame. Control frames always take the control lane.
+     *
+     * @param bulk true for the bulk lane, false for the high priority one
+     */
+    void setBulk(boolean bulk) {
+        mBulk = bulk;
+    }
+
+    /**
+     * @return true if frame waits in the bulk lane
+     */
+    boolean isBulk() {
+        return mBulk;
+    }
+
+    /**
+     * @param listener may be null
+     */
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return listener, or null
+     */
+    Listener getListener() {
+        return mListener;
+    }
+
+    /**
+     * Drop frame without writing it. Stops the source of a fragmented message and fails the listener.
+     *
+     * @param cause
+     */
+    void discard(Throwable cause) {
+        if (mFragments != null) {
+            mFragments.cancel();
+        }
+        if (mListener != null) {
+            mListener.onFailed(cause);
+        }
+    }
+
+    /**
+     * Control frames may be written between fragments of a message.
+     *
+     * @return true for close, ping and pong frames
+     */
+    boolean isControl() {
+        return mHeader != null && (mHeader[0] & 0x08) != 0;
+    }
+
+    /**
+     * Get bytes to be written. Compressed messages may turn out smaller.
+     *
+     * @return header and payload length
+     */
+    int size() {
+        return mHeaderLength + mLength;
+    }
+
+    /**
+     * Write header and payload to stream. Stream is not flushed.
+     *
+     * @param out     destination
+     * @param scratch buffer owned by writer, used for masked copies
+     * @return payload bytes written
+     * @throws IOException
+     */
+    int writeTo(OutputStream out, byte[] scratch) throws IOException {
+        if (mDeflate != null && mDeflate.shouldCompress(mLength)) {
+            return writeCompressed(out);
+        }
+        write(out, scratch);
+        return (mArray == null && mBuffer == null) ? encodedPayloadLength() : mLength;
+    }
+
+    /**
+     * @return opcode of a single frame
+     */
+    int opcode() {
+        return mHeader[0] & 0x0F;
+    }
+
+    /**
+     * Payload length of a frame encoded as a whole, read from its header.
+     */
+    private int encodedPayloadLength() {
+        if (mHeaderLength < 2) {
+            return 0;
+        }
+        int length = mHeader[1] & 0x7F;
+        int header = 2 + (length == 126 ? 2 : (length == 127 ? 8 : 0)) + ((mHeader[1] & 0x80) != 0 ? 4 : 0);
+        return Math.max(mHeaderLength - header, 0);
+    }
+
+    private void write(OutputStream out, byte[] scratch) throws IOException {
+        out.write(mHeader, 0, mHeaderLength);
+        if (mLength == 0) {
+            return;
+        }
+
+        if (mArray != null) {
+            if (!mMasked) {
+                out.write(mArray, mOffset, mLength);
+            } else if (mMaskInPlace) {
+                Masker.mask(mArray, mOffset, mLength, mKey);
+                out.write(mArray, mOffset, mLength);
+            } else {
+                int key = mKey;
+                for (int position = 0; position < mLength; ) {
+                    int chunk = Math.min(scratch.length, mLength - position);
+                    System.arraycopy(mArray, mOffset + position, scratch, 0, chunk);
+                    key = Masker.mask(scratch, 0, chunk, key);
+                    out.write(scratch, 0, chunk);
+                    position += chunk;
+                }
+            }
+            return;
+        }
+
+        ByteBuffer buffer = mBuffer;
+        if (mMasked && mMaskInPlace) {
+            Masker.mask(buffer, buffer.position(), mLength, mKey);
+        }
+        if (buffer.hasArray() && (!mMasked || mMaskInPlace)) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), mLength);
+            return;
+        }
+
+        int key = mKey;
+        int position = buffer.position();
+        int end = position + mLength;
+        while (position < end) {
+            int chunk = Math.min(scratch.length, end - position);
+            buffer.position(position);
+            buffer.get(scratch, 0, chunk);
+            if (mMasked && !mMaskInPlace) {
+                key = Masker.mask(scratch, 0, chunk, key);
+            }
+            out.write(scratch, 0, chunk);
+            position += chunk;
+        }
+    }
+
+    private int writeCompressed(OutputStream out) throws IOException {
+        int length = mDeflate.deflate(mArray, mOffset, mLength);
+        byte[] payload = mDeflate.getDeflated();
+        int headerLength = HybiParser.header(mHeader, mOpcode | HybiParser.RSV1, length, mMasked, mKey);
+        if (mMasked) {
+            Masker.mask(payload, 0, length, mKey);
+        }
+        out.write(mHeader, 0, headerLength);
+        out.write(payload, 0, length);
+        return length;
+    }
+}
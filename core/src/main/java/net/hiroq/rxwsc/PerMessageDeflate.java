@@ -0,0 +1,310 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Negotiated permessage-deflate extension (RFC 7692) of one connection.
+ * <p>
+ * Deflater and Inflater are created once per connection and reused for every message;
+ * without context takeover they are reset instead of recreated. Outgoing messages are
+ * compressed on the writer thread only, incoming ones on the reader thread only.
+ */
+final class PerMessageDeflate {
+    static final String EXTENSION_NAME = "permessage-deflate";
+
+    /**
+     * Empty stored block ending every sync flushed message
+     */
+    private static final byte[] TAIL = {0, 0, (byte) 0xFF, (byte) 0xFF};
+
+    private static final boolean SYNC_FLUSH_SUPPORTED = checkSyncFlush();
+
+    private final int mThreshold;
+    private final int mCompressionLevel;
+    private final boolean mServerNoContextTakeover;
+    private final boolean mClientNoContextTakeover;
+    private final int mMaxCompressLength;
+
+    private Deflater mDeflater;
+    private byte[] mDeflated = new byte[1024];
+
+    private Inflater mInflater;
+    private byte[] mInflated = new byte[1024];
+
+    PerMessageDeflate(int threshold, int compressionLevel, boolean serverNoContextTakeover,
+                      boolean clientNoContextTakeover, int clientMaxWindowBits) {
+        mThreshold = threshold;
+        mCompressionLevel = compressionLevel;
+        mServerNoContextTakeover = serverNoContextTakeover;
+        if (clientMaxWindowBits < 15) {
+            // Deflater always uses 15 bits window. A message compressed from a fresh context
+            // never refers further back than its own length, so short messages stay in the window.
+            mClientNoContextTakeover = true;
+            mMaxCompressLength = 1 << clientMaxWindowBits;
+        } else {
+            mClientNoContextTakeover = clientNoContextTakeover;
+            mMaxCompressLength = Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Deflater with SYNC_FLUSH is required, it is missing before Android 4.4.
+     *
+     * @return
+     */
+    static boolean isSupported() {
+        return SYNC_FLUSH_SUPPORTED;
+    }
+
+    private static boolean checkSyncFlush() {
+        try {
+            Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Accept Sec-WebSocket-Extensions response of server.
+     *
+     * @param options  offered options
+     * @param response header value
+     * @return negotiated extension
+     * @throws ProtocolException if server responded with something not offered
+     */
+    static PerMessageDeflate negotiate(DeflateOptions options, String response) throws ProtocolException {
+        if (response.indexOf(',') >= 0) {
+            throw new ProtocolException("Server accepted more than one extension: " + response);
+        }
+
+        String[] params = response.split(";");
+        if (!params[0].trim().equalsIgnoreCase(EXTENSION_NAME)) {
+            throw new ProtocolException("Server accepted unknown extension: " + response);
+        }
+
+        boolean serverNoContextTakeover = false;
+        boolean clientNoContextTakeover = options.isClientNoContextTakeover();
+        int clientMaxWindowBits = options.getClientMaxWindowBits();
+        Set<String> seen = new HashSet<String>();
+
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].trim();
+            String name = param;
+            String value = null;
+            int equal = param.indexOf('=');
+            if (equal >= 0) {
+                name = param.substring(0, equal).trim();
+                value = param.substring(equal + 1).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+            }
+            name = name.toLowerCase();
+            if (!seen.add(name)) {
+                throw new ProtocolException("Duplicated extension parameter: " + name);
+            }
+
+            if (name.equals("server_no_context_takeover")) {
+                checkNoValue(name, value);
+                serverNoContextTakeover = true;
+            } else if (name.equals("client_no_context_takeover")) {
+                checkNoValue(name, value);
+                clientNoContextTakeover = true;
+            } else if (name.equals("server_max_window_bits")) {
+                // Inflater accepts every window size up to 15 bits.
+                parseWindowBits(name, value);
+            } else if (name.equals("client_max_window_bits")) {
+                clientMaxWindowBits = Math.min(clientMaxWindowBits, parseWindowBits(name, value));
+            } else {
+                throw new ProtocolException("Unknown extension parameter: " + name);
+            }
+        }
+
+        return new PerMessageDeflate(options.getThreshold(), options.getCompressionLevel(),
+                serverNoContextTakeover, clientNoContextTakeover, clientMaxWindowBits);
+    }
+
+    private static void checkNoValue(String name, String value) throws ProtocolException {
+        if (value != null) {
+            throw new ProtocolException("Extension parameter " + name + " must not have a value");
+        }
+    }
+
+    private static int parseWindowBits(String name, String value) throws ProtocolException {
+        try {
+            int bits = Integer.parseInt(value);
+            if (bits >= 8 && bits <= 15) {
+                return bits;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        throw new ProtocolException("Bad value of extension parameter " + name + ": " + value);
+    }
+
+    /**
+     * Check whether outgoing message of length should be compressed.
+     *
+     * @param length
+     * @return
+     */
+    boolean shouldCompress(int length) {
+        return length >= mThreshold && length <= mMaxCompressLength;
+    }
+
+    /**
+     * Compress outgoing message. Call on writer thread only.
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @return compressed length, data is in {@link #getDeflated()}
+     */
+    int deflate(byte[] buffer, int offset, int length) {
+        if (mDeflater == null) {
+            mDeflater = new Deflater(mCompressionLevel, true);
+        }
+        Deflater deflater = mDeflater;
+        deflater.setInput(buffer, offset, length);
+
+        int position = 0;
+        while (true) {
+            int written = deflater.deflate(mDeflated, position, mDeflated.length - position, Deflater.SYNC_FLUSH);
+            position += written;
+            if (position < mDeflated.length) {
+                break;
+            }
+            mDeflated = Arrays.copyOf(mDeflated, mDeflated.length * 2);
+        }
+
+        if (mClientNoContextTakeover) {
+            deflater.reset();
+        }
+
+        // Remove the empty stored block, receiver adds it back.
+        if (position >= 4 && mDeflated[position - 4] == 0 && mDeflated[position - 3] == 0
+                && mDeflated[position - 2] == (byte) 0xFF && mDeflated[position - 1] == (byte) 0xFF) {
+            position -= 4;
+        }
+        return position;
+    }
+
+    /**
+     * Buffer holding the result of last {@link #deflate(byte[], int, int)}.
+     * Valid until next call.
+     *
+     * @return
+     */
+    byte[] getDeflated() {
+        return mDeflated;
+    }
+
+    /**
+     * Decompress incoming message. Call on reader thread only.
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @return decompressed message
+     * @throws HybiParser.ProtocolError on corrupt data
+     */
+    byte[] inflate(byte[] buffer, int offset, int length) throws HybiParser.ProtocolError {
+        return inflate(buffer, offset, length, true);
+    }
+
+    /**
+     * Decompress part of incoming message. Call on reader thread only.
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @param last   true for the last part of message
+     * @return data decompressed from this part, may be empty
+     * @throws HybiParser.ProtocolError on corrupt data
+     */
+    byte[] inflate(byte[] buffer, int offset, int length, boolean last) throws HybiParser.ProtocolError {
+        if (mInflater == null) {
+            mInflater = new Inflater(true);
+        }
+        Inflater inflater = mInflater;
+
+        try {
+            int position = inflate(inflater, buffer, offset, length, 0);
+            if (last) {
+                position = inflate(inflater, TAIL, 0, TAIL.length, position);
+                if (mServerNoContextTakeover || inflater.finished()) {
+                    inflater.reset();
+                }
+            }
+            return Arrays.copyOf(mInflated, position);
+        } catch (DataFormatException e) {
+            throw new HybiParser.ProtocolError("Invalid compressed data: " + e.getMessage());
+        }
+    }
+
+    private int inflate(Inflater inflater, byte[] buffer, int offset, int length, int position) throws DataFormatException {
+        inflater.setInput(buffer, offset, length);
+        while (true) {
+            if (position == mInflated.length) {
+                mInflated = Arrays.copyOf(mInflated, mInflated.length * 2);
+            }
+            int read = inflater.inflate(mInflated, position, mInflated.length - position);
+            position += read;
+            if (read == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())) {
+                return position;
+            }
+        }
+    }
+
+    /**
+     * Release native memory of Deflater. Call when writer is done.
+     */
+    void endDeflater() {
+        if (mDeflater != null) {
+            mDeflater.end();
+            mDeflater = null;
+        }
+    }
+
+    /**
+     * Release native memory of Inflater. Call when reader is done.
+     */
+    void endInflater() {
+        if (mInflater != null) {
+            mInflater.end();
+            mInflater = null;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Options of automatic reconnect.
+ * <p>
+ * Pass to {@link RxWebSocketClient#setReconnectPolicy(ReconnectPolicy)} to keep a connection up.
+ * Attempt n waits a random time between 0 and min(maxDelay, baseDelay * 2^n) ("full jitter"),
+ * so that clients dropped together by a server restart do not come back together.
+ * Messages sent while disconnected wait in a queue bounded by count and bytes.
+ */
+public class ReconnectPolicy {
+    /**
+     * Default delay ceiling of the first attempt, in milliseconds
+     */
+    public static final long DEFAULT_BASE_DELAY = 500;
+
+    /**
+     * Default max delay ceiling, in milliseconds
+     */
+    public static final long DEFAULT_MAX_DELAY = 30 * 1000;
+
+    /**
+     * Default number of messages queued while disconnected
+     */
+    public static final int DEFAULT_MAX_QUEUED_MESSAGES = 256;
+
+    /**
+     * Default number of bytes queued while disconnected
+     */
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 1024 * 1024;
+
+    private long mBaseDelayNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BASE_DELAY);
+    private long mMaxDelayNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_DELAY);
+    private int mMaxAttempts = 0;
+    private int mMaxQueuedMessages = DEFAULT_MAX_QUEUED_MESSAGES;
+    private long mMaxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+
+    /**
+     * Set delay ceiling of the first attempt, doubled per attempt up to maxDelay.
+     *
+     * @param baseDelay
+     * @param maxDelay
+     * @param unit
+     * @return
+     */
+    public ReconnectPolicy setBackoff(long baseDelay, long maxDelay, TimeUnit unit) {
+        if (baseDelay < 0 || maxDelay < baseDelay) {
+            throw new IllegalArgumentException("delays must satisfy 0 <= baseDelay <= maxDelay");
+        }
+        mBaseDelayNanos = unit.toNanos(baseDelay);
+        mMaxDelayNanos = unit.toNanos(maxDelay);
+        return this;
+    }
+
+    /**
+     * Set number of attempts in a row after which the connection fails with the last error.
+     *
+     * @param maxAttempts 0 to try forever, which is the default
+     * @return
+     */
+    public ReconnectPolicy setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 0) {
+            throw new IllegalArgumentException("maxAttempts must not be negative");
+        }
+        mMaxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * Set bounds of the queue of messages sent while disconnected. Messages beyond them are dropped
+     * and counted as BufferOverflowException in the metrics' errors.
+     *
+     * @param maxMessages 0 to drop everything sent while disconnected
+     * @param maxBytes
+     * @return
+     */
+    public ReconnectPolicy setReplayQueue(int maxMessages, long maxBytes) {
+        if (maxMessages < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("bounds must not be negative");
+        }
+        mMaxQueuedMessages = maxMessages;
+        mMaxQueuedBytes = maxBytes;
+        return this;
+    }
+
+    public long getBaseDelay(TimeUnit unit) {
+        return unit.convert(mBaseDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getMaxDelay(TimeUnit unit) {
+        return unit.convert(mMaxDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    public int getMaxQueuedMessages() {
+        return mMaxQueuedMessages;
+    }
+
+    public long getMaxQueuedBytes() {
+        return mMaxQueuedBytes;
+    }
+
+    /**
+     * Pick delay of an attempt.
+     *
+     * @param attempt number of attempts made since the connection was lost, from 0
+     * @param random
+     * @return delay in nanoseconds, -1 if no more attempts are allowed
+     */
+    long nextDelayNanos(int attempt, Random random) {
+        if (mMaxAttempts > 0 && attempt >= mMaxAttempts) {
+            return -1;
+        }
+        long ceiling = mMaxDelayNanos;
+        if (attempt < 62 && mBaseDelayNanos <= (mMaxDelayNanos >> attempt)) {
+            ceiling = mBaseDelayNanos << attempt;
+        }
+        return (long) (random.nextDouble() * ceiling);
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Messages sent while disconnected, written first on the next connection.
+ * Bounded by count and bytes. Guarded by the client, not thread-safe.
+ */
+final class ReplayQueue {
+    private final int mMaxMessages;
+    private final long mMaxBytes;
+    private final ArrayDeque<OutboundFrame> mFrames = new ArrayDeque<OutboundFrame>();
+    private long mBytes;
+
+    ReplayQueue(int maxMessages, long maxBytes) {
+        mMaxMessages = maxMessages;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @param frame
+     * @return false if frame would exceed the bounds
+     */
+    boolean offer(OutboundFrame frame) {
+        int size = frame.size();
+        if (mFrames.size() >= mMaxMessages || mBytes + size > mMaxBytes) {
+            return false;
+        }
+        mFrames.add(frame);
+        mBytes += size;
+        return true;
+    }
+
+    /**
+     * Put frames left unwritten by the lost connection ahead of the queued ones, keeping their order.
+     * Frames past the bounds are discarded with BufferOverflowException.
+     *
+     * @param frames oldest first
+     * @return number of frames discarded
+     */
+    int requeue(List<OutboundFrame> frames) {
+        int fit = 0;
+        long bytes = mBytes;
+        while (fit < frames.size() && mFrames.size() + fit < mMaxMessages
+                && bytes + frames.get(fit).size() <= mMaxBytes) {
+            bytes += frames.get(fit).size();
+            fit++;
+        }
+        for (int i = frames.size() - 1; i >= fit; i--) {
+            frames.get(i).discard(new BufferOverflowException());
+        }
+        for (int i = fit - 1; i >= 0; i--) {
+            mFrames.addFirst(frames.get(i));
+        }
+        mBytes = bytes;
+        return frames.size() - fit;
+    }
+
+    /**
+     * Move every frame to writer, compressed with the extension of the new connection.
+     *
+     * @param writer
+     * @param deflate negotiated extension of the new connection, may be null
+     * @return number of frames moved, less than all if writer closed meanwhile
+     */
+    int drainTo(FrameWriter writer, PerMessageDeflate deflate) {
+        int count = 0;
+        OutboundFrame frame;
+        while ((frame = mFrames.peek()) != null) {
+            if (!writer.offer(frame.withDeflate(deflate))) {
+                // new connection is already closing, keep the rest for the next one
+                break;
+            }
+            mFrames.poll();
+            mBytes -= frame.size();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Drop every frame, closing sources of fragmented messages and failing listeners.
+     */
+    void clear() {
+        OutboundFrame frame;
+        while ((frame = mFrames.poll()) != null) {
+            frame.discard(new IOException("Disconnected before the message was sent"));
+        }
+        mBytes = 0;
+    }
+
+    int size() {
+        return mFrames.size();
+    }
+
+    long bytes() {
+        return mBytes;
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip times measured by keepalive pings, emitted by {@link RxWebSocketClient#rtt()}.
+ * <p>
+ * Average and 99th percentile cover the latest {@link #WINDOW} samples, min covers the connection.
+ */
+public final class RttStats {
+    /**
+     * Number of latest samples average and percentile are computed from
+     */
+    public static final int WINDOW = 128;
+
+    private final long mLast;
+    private final long mMin;
+    private final long mAverage;
+    private final long mP99;
+    private final long mCount;
+
+    RttStats(long last, long min, long average, long p99, long count) {
+        mLast = last;
+        mMin = min;
+        mAverage = average;
+        mP99 = p99;
+        mCount = count;
+    }
+
+    /**
+     * @param unit
+     * @return latest round trip time
+     */
+    public long getLast(TimeUnit unit) {
+        return unit.convert(mLast, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit
+     * @return shortest round trip time of the connection
+     */
+    public long getMin(TimeUnit unit) {
+        return unit.convert(mMin, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit
+     * @return mean round trip time of the window
+     */
+    public long getAverage(TimeUnit unit) {
+        return unit.convert(mAverage, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit
+     * @return 99th percentile round trip time of the window
+     */
+    public long getP99(TimeUnit unit) {
+        return unit.convert(mP99, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return number of pongs measured on the connection
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String toString() {
+        return "RttStats{last=" + mLast + "ns, min=" + mMin + "ns, avg=" + mAverage + "ns, p99=" + mP99
+                + "ns, count=" + mCount + "}";
+    }
+}
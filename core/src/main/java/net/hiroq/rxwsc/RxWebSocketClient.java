@@ -0,0 +1,1915 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * This library is ported from following libraries
+ * 1. Copyright (c) 2010-2016 James Coglan
+ * faye's faye-websocket-node
+ * https://github.com/faye/faye-websocket-node
+ * 2. Copyright (c) 2012 Eric Butler
+ * codebutler's android-websockets.
+ * https://github.com/codebutler/android-websockets
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.hiroq.rxwsc;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.KeyManagementException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+import rx.Completable;
+import rx.CompletableSubscriber;
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func1;
+import rx.functions.Func0;
+import rx.schedulers.Schedulers;
+import rx.subjects.BehaviorSubject;
+import rx.subjects.PublishSubject;
+import rx.subjects.Subject;
+import rx.subscriptions.Subscriptions;
+
+public class RxWebSocketClient {
+    /**
+     * Streaming EventTypes
+     */
+    public enum EventType {
+        CONNECT,
+        MESSAGE_STRING,
+        MESSAGE_BINARY,
+        /**
+         * Part of a fragmented or oversized message, emitted only in streaming mode
+         */
+        MESSAGE_CHUNK,
+        DISCONNECT,
+    }
+
+    /**
+     * What to do with messages the subscriber has not requested yet
+     */
+    public enum BackpressureMode {
+        /**
+         * Stop reading the socket until the subscriber requests more. No message is lost,
+         * TCP flow control slows down the server.
+         */
+        PAUSE,
+        /**
+         * Keep reading and queue messages. The stream fails with a MissingBackpressureException
+         * when the queue is full.
+         */
+        BUFFER,
+        /**
+         * Keep reading and drop new messages while the queue is full
+         */
+        DROP,
+        /**
+         * Keep reading and drop the oldest queued messages to make room for new ones
+         */
+        LATEST,
+    }
+
+    /**
+     * Outbound lane of a message. Pings, pongs and close have a lane of their own which always goes first.
+     */
+    public enum Priority {
+        /**
+         * Written before bulk messages, except that a waiting bulk message is let through
+         * after a few high priority ones
+         */
+        HIGH,
+        /**
+         * Written when no high priority message waits, or in its turn after a burst of them
+         */
+        BULK,
+    }
+
+    /**
+     * Default number of messages queued for a subscriber without demand
+     */
+    public static final int DEFAULT_BACKPRESSURE_CAPACITY = 128;
+
+    /**
+     * Default max payload size of a fragment of streamed sends
+     */
+    public static final int DEFAULT_FRAGMENT_SIZE = 16 * 1024;
+
+    /**
+     * Messages requested ahead per decoding worker, so a worker has the next message at hand
+     */
+    private static final int DECODE_WINDOW_PER_WORKER = 4;
+
+    public static class Event {
+        /**
+         * EventType
+         */
+        private EventType mType = null;
+
+        /**
+         * Payload byte data from WebSocketServer
+         */
+        private byte[] mBytes = null;
+
+        /**
+         * Payload String data from WebSocketServer
+         */
+        private String mString = null;
+
+        /**
+         * Type of message a MESSAGE_CHUNK belongs to
+         */
+        private EventType mMessageType = null;
+
+        /**
+         * Id of message a MESSAGE_CHUNK belongs to
+         */
+        private long mMessageId = 0;
+
+        /**
+         * Whether MESSAGE_CHUNK is the last chunk of message
+         */
+        private boolean mLast = false;
+
+        /**
+         * Pooled payload of MESSAGE_BINARY, null if payload is an array of its own
+         */
+        private BufferPool mPool = null;
+        private BufferPool.Buffer mBuffer = null;
+        private BufferPool.Leak mLeak = null;
+        private ByteBuffer mView = null;
+        private int mLength = 0;
+        private volatile int mRefCount = 0;
+
+        private static final AtomicIntegerFieldUpdater<Event> REF_COUNT =
+                AtomicIntegerFieldUpdater.newUpdater(Event.class, "mRefCount");
+
+        /**
+         * Constructor
+         *
+         * @param type
+         */
+        Event(EventType type) {
+            this.mType = type;
+        }
+
+        /**
+         * Constructor
+         *
+         * @param type
+         * @param bytes
+         */
+        Event(EventType type, byte[] bytes) {
+            this.mType = type;
+            this.mBytes = bytes;
+        }
+
+        /**
+         * Constructor
+         *
+         * @param type
+         * @param string
+         */
+        Event(EventType type, String string) {
+            this.mType = type;
+            this.mString = string;
+        }
+
+        /**
+         * Constructor of MESSAGE_CHUNK
+         *
+         * @param messageType MESSAGE_STRING or MESSAGE_BINARY
+         * @param messageId
+         * @param bytes
+         * @param last
+         */
+        Event(EventType messageType, long messageId, byte[] bytes, boolean last) {
+            this.mType = EventType.MESSAGE_CHUNK;
+            this.mMessageType = messageType;
+            this.mMessageId = messageId;
+            this.mBytes = bytes;
+            this.mLast = last;
+        }
+
+        /**
+         * Constructor of MESSAGE_BINARY with a pooled payload. The event holds the only reference.
+         *
+         * @param pool
+         * @param buffer holding the payload from its start
+         * @param length
+         */
+        Event(BufferPool pool, BufferPool.Buffer buffer, int length) {
+            this.mType = EventType.MESSAGE_BINARY;
+            this.mPool = pool;
+            this.mBuffer = buffer;
+            this.mView = buffer.view(length);
+            this.mLength = length;
+            this.mRefCount = 1;
+            this.mLeak = pool.track(this);
+        }
+
+        /**
+         * Get EventType value
+         *
+         * @return
+         */
+        public EventType getType() {
+            return mType;
+        }
+
+        /**
+         * Get type of message which a chunk belongs to.
+         * It will return MESSAGE_STRING or MESSAGE_BINARY if EventType is MESSAGE_CHUNK.
+         * When the other EventTypes, it will return null.
+         *
+         * @return
+         */
+        public EventType getMessageType() {
+            return mMessageType;
+        }
+
+        /**
+         * Get id of message which a chunk belongs to. Ids increase by one per message of a connection.
+         * It will return valid data if EventType is MESSAGE_CHUNK.
+         *
+         * @return
+         */
+        public long getMessageId() {
+            return mMessageId;
+        }
+
+        /**
+         * Get whether a chunk is the last one of its message.
+         * It will return valid data if EventType is MESSAGE_CHUNK.
+         *
+         * @return
+         */
+        public boolean isLast() {
+            return mLast;
+        }
+
+        /**
+         * Get payload byte data.
+         * It will return valid data if EventType is MESSAGE_BINARY.
+         * If EventType is MESSAGE_CHUNK, it returns the chunk. Chunks of MESSAGE_STRING are UTF-8 bytes
+         * and may end in the middle of a character.
+         * When the other EventTypes, it will return null.
+         * <p>
+         * A pooled event returns a copy of its payload, made on the first call, which stays valid
+         * after release(). Use it to keep data beyond the event.
+         *
+         * @return string value. Return null if no received data,
+         */
+        public byte[] getBytes() {
+            if (mBytes == null && mPool != null) {
+                ensureNotReleased();
+                mBytes = Arrays.copyOf(mBuffer.mArray, mLength);
+            }
+            return mBytes;
+        }
+
+        /**
+         * Get payload byte data as a read-only ByteBuffer.
+         * It will return valid data if EventType is MESSAGE_BINARY or MESSAGE_CHUNK.
+         * When the other EventTypes, it will return null.
+         * <p>
+         * A pooled event returns a view of the pooled buffer without copying. It is only valid until
+         * the event is released, after which the buffer is reused by another message. Every call returns
+         * a new view, so reading one does not move the position of another holder's.
+         *
+         * @return
+         */
+        public ByteBuffer getBuffer() {
+            if (mPool != null) {
+                ensureNotReleased();
+                return mView.duplicate();
+            }
+            return (mBytes != null) ? ByteBuffer.wrap(mBytes).asReadOnlyBuffer() : null;
+        }
+
+        /**
+         * Get whether payload is held in a pooled buffer which has to be released.
+         *
+         * @return
+         */
+        public boolean isPooled() {
+            return mPool != null;
+        }
+
+        /**
+         * Take another reference to a pooled event, to be dropped by one more release().
+         * Does nothing for other events.
+         *
+         * @return this event
+         * @throws IllegalStateException if the event was released already
+         */
+        public Event retain() {
+            if (mPool == null) {
+                return this;
+            }
+            while (true) {
+                int count = mRefCount;
+                if (count <= 0) {
+                    throw new IllegalStateException("Event was released");
+                }
+                if (REF_COUNT.compareAndSet(this, count, count + 1)) {
+                    return this;
+                }
+            }
+        }
+
+        /**
+         * Drop a reference to a pooled event. The last one hands its buffer back to the pool.
+         * Does nothing for other events, so it is safe to call for every event.
+         *
+         * @return true if the buffer was handed back
+         * @throws IllegalStateException if the event was released already
+         */
+        public boolean release() {
+            if (mPool == null) {
+                return false;
+            }
+            while (true) {
+                int count = mRefCount;
+                if (count <= 0) {
+                    throw new IllegalStateException("Event was released");
+                }
+                if (REF_COUNT.compareAndSet(this, count, count - 1)) {
+                    if (count > 1) {
+                        return false;
+                    }
+                    mPool.recycle(mBuffer, mLeak);
+                    return true;
+                }
+            }
+        }
+
+        private void ensureNotReleased() {
+            if (mRefCount <= 0) {
+                throw new IllegalStateException("Event was released");
+            }
+        }
+
+        /**
+         * Get payload String data.
+         * It will return valid data if EventType is MESSAGE_STRING.
+         * When the other EventTypes, it will return null.
+         *
+         * @return string value. Return null if no received data,
+         */
+        public String getString() {
+            return mString;
+        }
+    }
+
+    /**
+     * SSL/TSL context shared by clients without one of their own
+     */
+    private static TlsContext sTlsContext;
+
+    /**
+     * SSL/TSL context of this client, null to use the shared one
+     */
+    private TlsContext mTlsContext;
+
+    /**
+     * Connection URI
+     */
+    private URI mUri;
+
+    /**
+     * Raw Socket Object
+     */
+    private Socket mSocket;
+
+    /**
+     * Engine for non-blocking connections, null to use a socket and threads of its own
+     */
+    private NioEngine mEngine;
+
+    /**
+     * Non-blocking connection, set instead of mSocket when an engine is used
+     */
+    private NioConnection mConnection;
+
+    /**
+     * Writer thread with outbound frame queue
+     */
+    private FrameWriter mWriter;
+
+    /**
+     * Creates writer threads of socket connections
+     */
+    private ThreadFactory mThreadFactory = DaemonThreadFactory.INSTANCE;
+
+    /**
+     * Runs reconnect attempts, keepalive pings and connects of share()
+     */
+    private Scheduler mScheduler = Schedulers.io();
+
+    /**
+     * Max time written frames wait for following frames before flush
+     */
+    private long mWriteLingerNanos = 0;
+
+    /**
+     * Additional HttpHeader
+     */
+    private List<Map.Entry<String, String>> mExtraHeaders;
+
+    /**
+     * Max payload size of a fragment of streamed sends
+     */
+    private int mFragmentSize = DEFAULT_FRAGMENT_SIZE;
+
+    /**
+     * Keepalive ping interval, 0 to disable
+     */
+    private long mKeepAliveIntervalNanos = 0;
+    private int mKeepAliveMaxMissed = 3;
+
+    /**
+     * Ping bookkeeping of the current connection and the timer driving it
+     */
+    private volatile KeepAlive mKeepAlive;
+    private Subscription mKeepAliveSubscription;
+
+    /**
+     * Counters of the current (or last) connection
+     */
+    private volatile ConnectionMetrics mMetrics = new ConnectionMetrics();
+
+    /**
+     * Round trip times of keepalive pings
+     */
+    private final PublishSubject<RttStats> mRtt = PublishSubject.create();
+
+    /**
+     * Writability of the current writer, and its watermarks of queued bytes
+     */
+    private final Subject<Boolean, Boolean> mWritability = BehaviorSubject.create(true).toSerialized();
+    private long mLowWatermark = FrameWriter.DEFAULT_LOW_WATERMARK;
+    private long mHighWatermark = FrameWriter.DEFAULT_HIGH_WATERMARK;
+
+    /**
+     * Deliver fragmented and oversized messages as chunks
+     */
+    private boolean mStreaming = false;
+
+    /**
+     * permessage-deflate options to offer, null to disable compression
+     */
+    private DeflateOptions mDeflateOptions;
+
+    /**
+     * Pool of MESSAGE_BINARY payloads, null to give each payload an array of its own
+     */
+    private BufferPool mBufferPool;
+
+    /**
+     * WebSocket Message Parser
+     */
+    private HybiParser mParser;
+
+    /**
+     * RxJava Subscriber
+     */
+    private volatile Subscriber<? super Event> mSubscriber;
+
+    /**
+     * Emitter honouring request(n). null when connected without backpressure.
+     */
+    private volatile BackpressureEmitter mEmitter;
+
+    /**
+     * Connection Flag
+     */
+    private volatile boolean mIsConnected = false;
+
+    /**
+     * Reconnect options from the next connect, null to end the stream when the connection is lost
+     */
+    private ReconnectPolicy mReconnectPolicy;
+
+    /**
+     * Reconnect options of the current stream, and messages sent while it is disconnected
+     */
+    private ReconnectPolicy mReconnect;
+    private ReplayQueue mReplay;
+
+    /**
+     * Guards the stream state below and the replay queue
+     */
+    private final ReentrantLock mStreamLock = new ReentrantLock();
+
+    /**
+     * True unless a subscribed stream is running
+     */
+    private volatile boolean mStopped = true;
+    private boolean mReconnectPending = false;
+    private int mReconnectAttempt = 0;
+    private Subscription mReconnectSubscription;
+
+    /**
+     * True while CONNECT was emitted without a DISCONNECT after it
+     */
+    private final AtomicBoolean mAnnounced = new AtomicBoolean();
+
+    private static final Random sRandom = new Random();
+
+    /**
+     * Connect to WebSocketServer with additional Header.
+     * When unsubscribe is called, the observable will disconnect automatically.
+     * <p>
+     * Caution: This method run on same thread of caller. So if you want to run on NOT UI THREAD,
+     * you have to use subscribeOn to specify thread model.
+     *
+     * @param uri
+     * @param extraHeaders
+     * @return
+     */
+    public Observable<Event> connect(URI uri, List<Map.Entry<String, String>> extraHeaders) {
+        return open(uri, extraHeaders, null, 0);
+    }
+
+    /**
+     * Connect to WebSocketServer with additional Header, emitting events only as far as requested.
+     * Messages arriving without demand are handled according to mode, up to capacity messages are queued.
+     * <p>
+     * Caution: with BackpressureMode.PAUSE, ping frames from server are not answered while reading is paused.
+     *
+     * @param uri
+     * @param extraHeaders
+     * @param mode
+     * @param capacity
+     * @return
+     */
+    public Observable<Event> connect(URI uri, List<Map.Entry<String, String>> extraHeaders, BackpressureMode mode, int capacity) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode must not be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        return open(uri, extraHeaders, mode, capacity);
+    }
+
+    /**
+     * Connect to WebSocketServer, emitting events only as far as requested.
+     *
+     * @param uri
+     * @param mode
+     * @param capacity
+     * @return
+     */
+    public Observable<Event> connect(URI uri, BackpressureMode mode, int capacity) {
+        return connect(uri, null, mode, capacity);
+    }
+
+    private Observable<Event> open(final URI uri, final List<Map.Entry<String, String>> extraHeaders,
+                                   final BackpressureMode mode, final int capacity) {
+        return Observable.create(new Observable.OnSubscribe<Event>() {
+            @Override
+            public void call(final Subscriber<? super Event> subscriber) {
+                final BackpressureEmitter emitter = (mode != null) ? new BackpressureEmitter(subscriber, mode, capacity) : null;
+                mStreamLock.lock();
+                try {
+                    // every subscription, a retry included, gets a new connection instead of the closed one
+                    disconnect(false);
+                    mUri = uri;
+                    mExtraHeaders = extraHeaders;
+                    mReconnect = mReconnectPolicy;
+                    mReplay = (mReconnect != null)
+                            ? new ReplayQueue(mReconnect.getMaxQueuedMessages(), mReconnect.getMaxQueuedBytes()) : null;
+                    prepare();
+                    mEmitter = emitter;
+                    mSubscriber = subscriber;
+                    mStopped = false;
+                    mReconnectAttempt = 0;
+                } finally {
+                    mStreamLock.unlock();
+                }
+                subscriber.add(Subscriptions.create(new Action0() {
+                    @Override
+                    public void call() {
+                        if (emitter != null) {
+                            emitter.cancel();
+                        }
+                        mStreamLock.lock();
+                        try {
+                            // unless a later subscription owns the connection by now
+                            if (mSubscriber == subscriber) {
+                                disconnect(false);
+                            }
+                        } finally {
+                            mStreamLock.unlock();
+                        }
+                    }
+                }));
+                if (emitter != null) {
+                    subscriber.setProducer(emitter);
+                }
+                if (subscriber.isUnsubscribed()) {
+                    return;
+                }
+                connectOnce();
+            }
+        });
+    }
+
+    /**
+     * Create parser and writer of a new connection.
+     */
+    private void prepare() {
+        this.mParser = new HybiParser(this);
+        this.mParser.setStreaming(mStreaming);
+        this.mParser.setBufferPool(mBufferPool);
+        this.mMetrics = new ConnectionMetrics();
+        this.mParser.setMetrics(mMetrics);
+
+        if (this.mWriter != null) {
+            this.mWriter.close(null);
+        }
+        this.mSocket = null;
+        final HybiParser parser = mParser;
+        final NioEngine engine = mEngine;
+        if (engine != null) {
+            this.mConnection = new NioConnection(this, parser, engine.next());
+            this.mWriter = mConnection.getWriter();
+        } else {
+            this.mConnection = null;
+            this.mWriter = new FrameWriter(mThreadFactory, getClass().getName(), new FrameWriter.Callback() {
+                @Override
+                public void onError(IOException e) {
+                    connectionLost(parser, e);
+                }
+            });
+        }
+        this.mWriter.setLinger(mWriteLingerNanos, TimeUnit.NANOSECONDS);
+        this.mWriter.setMetrics(mMetrics);
+        this.mWriter.setWatermarks(mLowWatermark, mHighWatermark);
+        final FrameWriter writer = mWriter;
+        this.mWriter.setWritabilityListener(new FrameWriter.WritabilityListener() {
+            @Override
+            public void onWritabilityChanged(boolean writable) {
+                if (writer == mWriter) {
+                    mWritability.onNext(writable);
+                }
+            }
+        });
+        mWritability.onNext(true);
+    }
+
+    /**
+     * Connect with the parser and writer prepared last. With a socket, this blocks reading until the connection ends.
+     */
+    private void connectOnce() {
+        final HybiParser parser = mParser;
+        BackpressureEmitter emitter = mEmitter;
+        if (emitter != null) {
+            emitter.setFlowControl(mConnection);
+        }
+        try {
+            String secret = createSecret();
+            String scheme = mUri.getScheme();
+
+            // uri have invalid scheme throw MalformedURLException
+            if (scheme == null || !(scheme.equals("ws") || scheme.equals("wss"))) {
+                new MalformedURLException("Url scheme has to be specified as \"ws\" or \"wss\".");
+            }
+
+            int port = (mUri.getPort() != -1) ? mUri.getPort() : (scheme.equals("wss") ? 443 : 80);
+            String path = isEmpty(mUri.getRawPath()) ? "/" : mUri.getRawPath();
+            if (!isEmpty(mUri.getRawQuery())) {
+                path += "?" + mUri.getRawQuery();
+            }
+
+            String origin = (scheme.equals("wss") ? "https" : "http") + "://" + mUri.getHost();
+
+            final DeflateOptions deflateOptions = PerMessageDeflate.isSupported() ? mDeflateOptions : null;
+            byte[] request = Handshake.request(mUri.getHost(), path, origin, secret,
+                    deflateOptions != null ? deflateOptions.toOffer() : null, mExtraHeaders);
+            String accept = createSecretValidation(secret);
+
+            if (mConnection != null) {
+                SSLEngine sslEngine = null;
+                if (scheme.equals("wss")) {
+                    sslEngine = getSSLContext().createSSLEngine(mUri.getHost(), port);
+                    sslEngine.setUseClientMode(true);
+                }
+                mConnection.connect(new InetSocketAddress(mUri.getHost(), port), sslEngine,
+                        request, accept, deflateOptions);
+                return;
+            }
+
+            long handshakeStart = System.nanoTime();
+            SocketFactory factory = scheme.equals("wss") ? getSSLSocketFactory() : SocketFactory.getDefault();
+            mSocket = factory.createSocket(mUri.getHost(), port);
+
+            OutputStream out = mSocket.getOutputStream();
+            out.write(request);
+            out.flush();
+
+            Handshake.Response response = new Handshake.Response();
+            InputStream in = Handshake.readResponse(mSocket.getInputStream(), response);
+            PerMessageDeflate deflate = response.validate(accept, deflateOptions);
+            HybiParser.HappyDataInputStream stream = new HybiParser.HappyDataInputStream(in);
+
+            mParser.setDeflate(deflate);
+            onHandshake(handshakeStart);
+            // started after the replayed messages were queued, so they go out in one write
+            mWriter.start(new BufferedOutputStream(mSocket.getOutputStream(), FrameWriter.DEFAULT_BUFFER_SIZE));
+
+            // Now decode websocket frames.
+            mParser.start(stream);
+        } catch (Exception e) {
+            connectionLost(parser, e);
+        }
+    }
+
+    /**
+     * Connect to WebSocketServer.
+     *
+     * @param uri
+     * @return
+     */
+    public Observable<Event> connect(URI uri) {
+        return connect(uri, null);
+    }
+
+    /**
+     * Connect to WebSocketServer once for any number of subscribers.
+     * The first subscriber opens the connection and every subscriber gets its events, each with
+     * its own backpressure queue of capacity messages. A subscriber joining a live connection gets
+     * a CONNECT of its own. When the last subscriber unsubscribes, the connection is closed after
+     * gracePeriod unless someone subscribes again within it.
+     * <p>
+     * Caution: with BackpressureMode.PAUSE the slowest subscriber pauses reading for all of them.
+     * A pooled message is shared by all subscribers; each call of getBuffer() returns a buffer with
+     * a position of its own, and each subscriber releases the event once.
+     *
+     * @param uri
+     * @param extraHeaders
+     * @param mode
+     * @param capacity
+     * @param gracePeriod
+     * @param unit
+     * @return
+     */
+    public Observable<Event> share(final URI uri, final List<Map.Entry<String, String>> extraHeaders,
+                                   BackpressureMode mode, int capacity, long gracePeriod, TimeUnit unit) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode must not be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        if (gracePeriod < 0) {
+            throw new IllegalArgumentException("gracePeriod must not be negative");
+        }
+        Observable<Event> source = Observable.defer(new Func0<Observable<Event>>() {
+            @Override
+            public Observable<Event> call() {
+                return connect(uri, extraHeaders);
+            }
+        });
+        return Observable.create(new SharedConnection(source, mode, capacity, unit.toNanos(gracePeriod), mScheduler));
+    }
+
+    /**
+     * Connect to WebSocketServer once for any number of subscribers, buffering up to
+     * DEFAULT_BACKPRESSURE_CAPACITY messages for each.
+     *
+     * @param uri
+     * @param gracePeriod
+     * @param unit
+     * @return
+     */
+    public Observable<Event> share(URI uri, long gracePeriod, TimeUnit unit) {
+        return share(uri, null, BackpressureMode.BUFFER, DEFAULT_BACKPRESSURE_CAPACITY, gracePeriod, unit);
+    }
+
+    /**
+     * Send string data to WebSocketServer with HIGH priority.
+     *
+     * @param message
+     */
+    public void send(String message) {
+        send(message, Priority.HIGH);
+    }
+
+    /**
+     * Send string data to WebSocketServer.
+     *
+     * @param message
+     * @param priority
+     */
+    public void send(String message, Priority priority) {
+        sendFrame(message(message), priority);
+    }
+
+    /**
+     * Send raw data to WebSocketServer with HIGH priority.
+     *
+     * @param message
+     */
+    public void send(byte[] message) {
+        send(message, Priority.HIGH);
+    }
+
+    /**
+     * Send raw data to WebSocketServer.
+     *
+     * @param message
+     * @param priority
+     */
+    public void send(byte[] message, Priority priority) {
+        sendFrame(message(message), priority);
+    }
+
+    /**
+     * Send string data to WebSocketServer with HIGH priority when the Completable is subscribed.
+     * See {@link #write(String, Priority)}.
+     *
+     * @param message
+     * @return
+     */
+    public Completable write(String message) {
+        return write(message, Priority.HIGH);
+    }
+
+    /**
+     * Send string data to WebSocketServer when the Completable is subscribed.
+     * It completes once the message has been written and flushed to the socket, and fails if the message
+     * is dropped or the connection fails first. Both are signalled on the writer thread.
+     *
+     * @param message
+     * @param priority
+     * @return
+     */
+    public Completable write(final String message, final Priority priority) {
+        return Completable.create(new Completable.OnSubscribe() {
+            @Override
+            public void call(CompletableSubscriber subscriber) {
+                write(message(message), priority, subscriber);
+            }
+        });
+    }
+
+    /**
+     * Send raw data to WebSocketServer with HIGH priority when the Completable is subscribed.
+     * See {@link #write(String, Priority)}.
+     *
+     * @param message
+     * @return
+     */
+    public Completable write(byte[] message) {
+        return write(message, Priority.HIGH);
+    }
+
+    /**
+     * Send raw data to WebSocketServer when the Completable is subscribed.
+     * See {@link #write(String, Priority)}.
+     *
+     * @param message
+     * @param priority
+     * @return
+     */
+    public Completable write(final byte[] message, final Priority priority) {
+        return Completable.create(new Completable.OnSubscribe() {
+            @Override
+            public void call(CompletableSubscriber subscriber) {
+                write(message(message), priority, subscriber);
+            }
+        });
+    }
+
+    private void write(OutboundFrame frame, Priority priority, final CompletableSubscriber subscriber) {
+        subscriber.onSubscribe(Subscriptions.empty());
+        if (frame == null) {
+            // the parser closed, there is nothing left to send it on
+            subscriber.onError(new IOException("Connection is closed"));
+            return;
+        }
+        frame.setListener(new OutboundFrame.Listener() {
+            @Override
+            public void onWritten() {
+                subscriber.onCompleted();
+            }
+
+            @Override
+            public void onFailed(Throwable e) {
+                subscriber.onError(e);
+            }
+        });
+        sendFrame(frame, priority);
+    }
+
+    /**
+     * Build a text message for the current connection.
+     *
+     * @param message
+     * @return null if there is no connection yet or it is closed
+     */
+    OutboundFrame message(String message) {
+        HybiParser parser = mParser;
+        return (parser != null) ? parser.message(message) : null;
+    }
+
+    /**
+     * Build a binary message for the current connection.
+     *
+     * @param message
+     * @return null if there is no connection yet or it is closed
+     */
+    OutboundFrame message(byte[] message) {
+        HybiParser parser = mParser;
+        return (parser != null) ? parser.message(message) : null;
+    }
+
+    /**
+     * Send each item of messages as a message of its own when the Completable is subscribed.
+     * Items must be String (sent as text) or byte[] (sent as binary).
+     * <p>
+     * Items are requested one at a time and only while the outbound queue is writable, see {@link #writability()},
+     * so a producer which honors backpressure is held back at the speed of the socket.
+     * It completes once messages completed and every message has been flushed to the socket. It fails when
+     * messages fails, an item has another type, or a message is dropped; messages is unsubscribed then.
+     *
+     * @param messages
+     * @param priority
+     * @return
+     */
+    public <T> Completable sendEach(Observable<T> messages, Priority priority) {
+        return Completable.create(new MessageSender<T>(this, messages, null, priority));
+    }
+
+    /**
+     * Send each item of messages as a message of its own with HIGH priority.
+     * See {@link #sendEach(Observable, Priority)}.
+     *
+     * @param messages
+     * @return
+     */
+    public <T> Completable sendEach(Observable<T> messages) {
+        return sendEach(messages, Priority.HIGH);
+    }
+
+    /**
+     * Send each item of values as a message of its own, encoded by encoder, when the Completable is subscribed.
+     * See {@link #sendEach(Observable, Priority)}. It also fails when encoder throws.
+     *
+     * @param values
+     * @param encoder
+     * @param priority
+     * @return
+     */
+    public <T> Completable sendEach(Observable<T> values, Encoder<? super T> encoder, Priority priority) {
+        if (encoder == null) {
+            throw new IllegalArgumentException("encoder must not be null");
+        }
+        return Completable.create(new MessageSender<T>(this, values, encoder, priority));
+    }
+
+    /**
+     * Send value encoded by encoder when the Completable is subscribed.
+     * See {@link #write(String, Priority)}. It also fails when encoder throws.
+     *
+     * @param value
+     * @param encoder
+     * @param priority
+     * @return
+     */
+    public <T> Completable write(T value, Encoder<? super T> encoder, Priority priority) {
+        return sendEach(Observable.just(value), encoder, priority);
+    }
+
+    /**
+     * Decode messages of a connection on the thread emitting them.
+     * See {@link #decode(Decoder, Scheduler, int)}.
+     *
+     * @param decoder
+     * @return
+     */
+    public static <T> Observable.Transformer<Event, T> decode(Decoder<? extends T> decoder) {
+        return decode(decoder, Schedulers.immediate(), 1);
+    }
+
+    /**
+     * Decode messages of a connection into values, in parallel on up to parallelism workers of scheduler,
+     * so parsing does not hold up reading of the socket. Values are emitted in the order messages arrived,
+     * on the thread of the worker completing the head of the line. Connection events and chunks are
+     * skipped; the values fail with the first exception of decoder.
+     * <pre>
+     * client.connect(uri, BackpressureMode.BUFFER, 256).compose(RxWebSocketClient.decode(json, Schedulers.computation(), 4))
+     * </pre>
+     *
+     * @param decoder
+     * @param scheduler
+     * @param parallelism
+     * @return
+     */
+    public static <T> Observable.Transformer<Event, T> decode(final Decoder<? extends T> decoder, final Scheduler scheduler,
+                                                             final int parallelism) {
+        if (decoder == null || scheduler == null) {
+            throw new IllegalArgumentException("decoder and scheduler must not be null");
+        }
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        return new Observable.Transformer<Event, T>() {
+            @Override
+            public Observable<T> call(Observable<Event> events) {
+                return events.lift(new OrderedDecoder<T>(decoder, scheduler, parallelism,
+                        parallelism * DECODE_WINDOW_PER_WORKER));
+            }
+        };
+    }
+
+    /**
+     * Writability of the outbound queue. It turns false once more bytes than the high watermark wait to be
+     * written, because the app sends faster than the socket takes them, and true again once they drained to
+     * the low watermark. The current value is emitted on subscribe, changes are emitted on the thread
+     * which sends or writes. A new connection starts writable.
+     *
+     * @return
+     */
+    public Observable<Boolean> writability() {
+        return mWritability.distinctUntilChanged();
+    }
+
+    /**
+     * @return current writability of the outbound queue, without waiting for its Observable
+     */
+    boolean isWritable() {
+        FrameWriter writer = mWriter;
+        return writer == null || writer.isWritable();
+    }
+
+    /**
+     * Set watermarks of {@link #writability()} from the next connect. Defaults are 32KB and 64KB.
+     *
+     * @param low  bytes queued at which the queue is writable again
+     * @param high bytes queued above which the queue is unwritable
+     */
+    public void setWriteWatermarks(long low, long high) {
+        if (low < 0 || high < low) {
+            throw new IllegalArgumentException("0 <= low <= high required");
+        }
+        mLowWatermark = low;
+        mHighWatermark = high;
+    }
+
+    /**
+     * Send part of raw data to WebSocketServer without copying it.
+     * The array must not be modified until the frame has been written.
+     *
+     * @param message
+     * @param offset
+     * @param length
+     */
+    public void send(byte[] message, int offset, int length) {
+        send(message, offset, length, false);
+    }
+
+    /**
+     * Send part of raw data to WebSocketServer without copying it.
+     * The array must not be modified until the frame has been written.
+     *
+     * @param message
+     * @param offset
+     * @param length
+     * @param maskInPlace if true, the range of message is masked in place and its contents are destroyed.
+     */
+    public void send(byte[] message, int offset, int length, boolean maskInPlace) {
+        HybiParser parser = mParser;
+        if (parser != null) {
+            sendFrame(parser.frame(message, offset, length, maskInPlace));
+        }
+    }
+
+    /**
+     * Send remaining bytes of buffer to WebSocketServer without copying them.
+     * The position of buffer is not changed. The buffer must not be modified until the frame has been written.
+     *
+     * @param message
+     */
+    public void send(ByteBuffer message) {
+        send(message, false);
+    }
+
+    /**
+     * Send remaining bytes of buffer to WebSocketServer without copying them.
+     * The position of buffer is not changed. The buffer must not be modified until the frame has been written.
+     *
+     * @param message
+     * @param maskInPlace if true, remaining bytes of message are masked in place and its contents are destroyed.
+     *                    A read-only buffer, such as one of a received Event, is always masked through a copy.
+     */
+    public void send(ByteBuffer message, boolean maskInPlace) {
+        HybiParser parser = mParser;
+        if (parser != null) {
+            sendFrame(parser.frame(message, maskInPlace));
+        }
+    }
+
+    /**
+     * Send stream contents to WebSocketServer as one binary message in fragments with BULK priority.
+     * The stream is read lazily on writer thread, one fragment at a time, and closed at its end.
+     * With a NioEngine it is read on the scheduler instead, so a blocking stream does not stall the event loop.
+     * Pings, pongs and close can be sent between fragments; other sends wait until the message ends.
+     *
+     * @param message
+     */
+    public void send(InputStream message) {
+        HybiParser parser = mParser;
+        if (parser != null) {
+            sendFrame(parser.stream(message, mFragmentSize, sourceScheduler()), Priority.BULK);
+        }
+    }
+
+    /**
+     * Send items of message to WebSocketServer as one binary message in fragments.
+     * message is subscribed when the writer reaches it and items are requested one at a time,
+     * so a slow writer holds the source back. The message ends when message completes; if it fails,
+     * the connection fails. With a NioEngine, message is subscribed on the scheduler instead of the event loop.
+     * Pings, pongs and close can be sent between fragments; other sends wait until the message ends.
+     * The message has BULK priority.
+     *
+     * @param message
+     */
+    public void send(Observable<byte[]> message) {
+        HybiParser parser = mParser;
+        if (parser != null) {
+            sendFrame(parser.stream(message, mFragmentSize, sourceScheduler()), Priority.BULK);
+        }
+    }
+
+    /**
+     * @return scheduler reading fragmented message sources, null to read them on writer thread
+     */
+    private Scheduler sourceScheduler() {
+        // an event loop writes for many connections and must not wait for one source
+        return (mEngine != null) ? mScheduler : null;
+    }
+
+    /**
+     * Set max payload size of fragments written by send(InputStream) and send(Observable).
+     * Default is 16KB.
+     *
+     * @param fragmentSize
+     */
+    public void setFragmentSize(int fragmentSize) {
+        if (fragmentSize <= 0) {
+            throw new IllegalArgumentException("fragmentSize must be positive");
+        }
+        mFragmentSize = fragmentSize;
+    }
+
+    /**
+     * Disconnect WebSocket, emit onNext with EventType.DISCONNECT and finally onComplete to Streaming
+     */
+    public void disconnect() {
+        disconnect(true);
+    }
+
+    private void disconnect(boolean emitt) {
+        boolean running;
+        Subscription reconnect;
+        mStreamLock.lock();
+        try {
+            running = !mStopped;
+            mStopped = true;
+            mReconnectPending = false;
+            reconnect = mReconnectSubscription;
+            mReconnectSubscription = null;
+            if (mReplay != null) {
+                mReplay.clear();
+            }
+        } finally {
+            mStreamLock.unlock();
+        }
+        if (reconnect != null) {
+            reconnect.unsubscribe();
+        }
+
+        boolean connected = mIsConnected;
+        mIsConnected = false;
+        if (emitt && running) {
+            emitterOnNext(new Event(EventType.DISCONNECT));
+            emitterOnCompleted();
+        }
+        if (connected) {
+            release();
+        }
+    }
+
+    /**
+     * Stop keepalive, then write queued frames and close socket on writer thread.
+     */
+    private void release() {
+        stopKeepAlive();
+        if (mConnection != null) {
+            final NioConnection connection = mConnection;
+            mWriter.close(new Runnable() {
+                @Override
+                public void run() {
+                    connection.close();
+                }
+            });
+        } else if (mSocket != null) {
+            final HybiParser parser = mParser;
+            final Socket socket = mSocket;
+            mWriter.close(new Runnable() {
+                @Override
+                public void run() {
+                    PerMessageDeflate deflate = parser.getDeflate();
+                    if (deflate != null) {
+                        deflate.endDeflater();
+                    }
+                    try {
+                        parser.stop();
+                        socket.close();
+                    } catch (Exception e) {
+                        // At this time, ignore any exceptions
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Called when the handshake response was validated, on the thread which read it.
+     *
+     * @param handshakeStart System.nanoTime() before connecting
+     */
+    void onHandshake(long handshakeStart) {
+        mMetrics.handshake(System.nanoTime() - handshakeStart);
+        mStreamLock.lock();
+        try {
+            if (!mStopped) {
+                mReconnectAttempt = 0;
+                if (mReplay != null) {
+                    mReplay.drainTo(mWriter, mParser.getDeflate());
+                }
+                mIsConnected = true;
+            }
+        } finally {
+            mStreamLock.unlock();
+        }
+        if (!mIsConnected) {
+            // disconnected while connecting
+            release();
+            return;
+        }
+        emitterOnNext(new Event(EventType.CONNECT));
+        startKeepAlive();
+    }
+
+    /**
+     * Called when the connection of parser ended without close frame, cleanly if cause is null.
+     * Schedules a reconnect if the policy allows it, or else ends the stream.
+     *
+     * @param parser parser of the connection
+     * @param cause
+     */
+    void connectionLost(HybiParser parser, Throwable cause) {
+        connectionEnded(parser, cause, HybiParser.CLOSE_ABNORMAL);
+    }
+
+    /**
+     * Called when the server closed the connection of parser.
+     *
+     * @param parser parser of the connection
+     * @param code   status code of the close frame, HybiParser.CLOSE_NO_STATUS if it had none
+     */
+    void connectionClosed(HybiParser parser, int code) {
+        connectionEnded(parser, null, code);
+    }
+
+    private void connectionEnded(HybiParser parser, Throwable cause, int code) {
+        if (parser != mParser || mStopped) {
+            // replaced by a newer connection, or the stream is over
+            return;
+        }
+        if (reconnectLater(parser, cause, code)) {
+            return;
+        }
+        // the stream ends here, so unsubscribing later would find nothing connected to release
+        mIsConnected = false;
+        release();
+        if (cause != null) {
+            emitterOnError(cause);
+        } else {
+            emitterOnNext(new Event(EventType.DISCONNECT));
+            emitterOnCompleted();
+        }
+    }
+
+    /**
+     * @return true if a reconnect is scheduled, or was already for this connection
+     */
+    private boolean reconnectLater(HybiParser parser, Throwable cause, int code) {
+        long delay;
+        mStreamLock.lock();
+        try {
+            ReconnectPolicy policy = mReconnect;
+            if (policy == null || mStopped) {
+                return false;
+            }
+            if (mReconnectPending || parser != mParser) {
+                return true;
+            }
+            if (!isReconnectable(cause, code)) {
+                return false;
+            }
+            delay = policy.nextDelayNanos(mReconnectAttempt, sRandom);
+            if (delay < 0) {
+                return false;
+            }
+            mReconnectAttempt++;
+            mReconnectPending = true;
+            mIsConnected = false;
+            // accepted by the lost connection but not written yet, these go out first on the next one
+            if (mReplay.requeue(mWriter.takeQueued()) > 0) {
+                mMetrics.error(new BufferOverflowException());
+            }
+        } finally {
+            mStreamLock.unlock();
+        }
+
+        if (cause != null) {
+            mMetrics.error(cause);
+        }
+        release();
+        emitterOnNext(new Event(EventType.DISCONNECT));
+
+        Subscription subscription = Observable.timer(delay, TimeUnit.NANOSECONDS, mScheduler)
+                .subscribe(new Action1<Long>() {
+                    @Override
+                    public void call(Long tick) {
+                        reconnect();
+                    }
+                });
+        mStreamLock.lock();
+        try {
+            if (mReconnectPending) {
+                mReconnectSubscription = subscription;
+                return true;
+            }
+        } finally {
+            mStreamLock.unlock();
+        }
+        // disconnected meanwhile, or already reconnecting
+        subscription.unsubscribe();
+        return true;
+    }
+
+    /**
+     * Only an abnormal loss is worth another attempt. A protocol error would happen again, and a server
+     * closing normally, for its policy or for data it could not take does not want the same client back.
+     *
+     * @param cause error which ended the connection, null if it ended without one
+     * @param code  status code of the close frame, HybiParser.CLOSE_ABNORMAL if there was none
+     */
+    private static boolean isReconnectable(Throwable cause, int code) {
+        if (cause != null) {
+            return cause instanceof IOException && !(cause instanceof HybiParser.ProtocolError);
+        }
+        switch (code) {
+            case HybiParser.CLOSE_GOING_AWAY:
+            case HybiParser.CLOSE_ABNORMAL:
+            case HybiParser.CLOSE_INTERNAL_ERROR:
+            case HybiParser.CLOSE_SERVICE_RESTART:
+            case HybiParser.CLOSE_TRY_AGAIN_LATER:
+            case HybiParser.CLOSE_BAD_GATEWAY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Replace the lost connection. Runs on an io thread, where a socket connection then blocks reading.
+     */
+    private void reconnect() {
+        mStreamLock.lock();
+        try {
+            if (mStopped || !mReconnectPending) {
+                return;
+            }
+            prepare();
+            mReconnectPending = false;
+            mReconnectSubscription = null;
+        } finally {
+            mStreamLock.unlock();
+        }
+        connectOnce();
+    }
+
+    /**
+     * create Secret specified RFC6455.
+     *
+     * @return
+     */
+    private String createSecret() {
+        byte[] nonce = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            nonce[i] = (byte) (Math.random() * 256);
+        }
+        return Base64.encode(nonce);
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.length() == 0;
+    }
+
+    /**
+     * create SecretValidation specified RFC6455
+     *
+     * @param secret
+     * @return
+     */
+    private String createSecretValidation(String secret) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update((secret + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes());
+            return Base64.encode(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Enable streaming mode from the next connect.
+     * Fragmented messages, and messages in frames larger than the read buffer (16KB), are emitted as
+     * MESSAGE_CHUNK events as they arrive instead of being gathered into one MESSAGE_STRING or MESSAGE_BINARY.
+     * Other messages are emitted as usual.
+     *
+     * @param streaming
+     */
+    public void setStreaming(boolean streaming) {
+        mStreaming = streaming;
+    }
+
+    /**
+     * Offer permessage-deflate compression (RFC 7692) from the next connect.
+     * Only send(String) and send(byte[]) are compressed, zero-copy sends and control frames are not.
+     * Compression is not offered on Android older than 4.4.
+     *
+     * @param options null to disable
+     */
+    public void setDeflateOptions(DeflateOptions options) {
+        mDeflateOptions = options;
+    }
+
+    /**
+     * Deliver MESSAGE_BINARY events from the next connect with payloads in buffers of pool.
+     * Such events are pooled (see {@link Event#isPooled()}): read the payload with {@link Event#getBuffer()}
+     * without copying and call {@link Event#release()} when done with it. Only unfragmented, uncompressed
+     * messages which fit in the read buffer are pooled, others are emitted as usual.
+     *
+     * @param pool null to disable, which is the default
+     */
+    public void setBufferPool(BufferPool pool) {
+        mBufferPool = pool;
+    }
+
+    /**
+     * Set SSL/TSL TrustedManager. Replaces the shared TlsContext, dropping its cached sessions.
+     *
+     * @param tm
+     */
+    public static void setTrustManagers(TrustManager[] tm) {
+        setSharedTlsContext(new TlsContext(tm));
+    }
+
+    /**
+     * Replace the shared TlsContext.
+     *
+     * @param context null to create a default one when next needed
+     */
+    static synchronized void setSharedTlsContext(TlsContext context) {
+        sTlsContext = context;
+    }
+
+    /**
+     * Get SSL/TSL context shared by clients without one of their own.
+     * Call {@link TlsContext#prewarm()} on it to take its initialization off the first connect.
+     *
+     * @return
+     */
+    public static synchronized TlsContext getSharedTlsContext() {
+        if (sTlsContext == null) {
+            sTlsContext = new TlsContext(null);
+        }
+        return sTlsContext;
+    }
+
+    /**
+     * Use context for wss connections of this client instead of the shared one.
+     *
+     * @param context null to use the shared one
+     */
+    public void setTlsContext(TlsContext context) {
+        mTlsContext = context;
+    }
+
+
+    /**
+     * Get SocketFactory of SSL/TSL context
+     *
+     * @return
+     * @throws NoSuchAlgorithmException
+     * @throws KeyManagementException
+     */
+    protected SSLSocketFactory getSSLSocketFactory() throws NoSuchAlgorithmException, KeyManagementException {
+        return getSSLContext().getSocketFactory();
+    }
+
+    /**
+     * Get SSL/TSL context, initialized once and kept so that reconnects resume TLS sessions.
+     * Connections of an engine create their SSLEngine from it.
+     *
+     * @return
+     * @throws NoSuchAlgorithmException
+     * @throws KeyManagementException
+     */
+    protected SSLContext getSSLContext() throws NoSuchAlgorithmException, KeyManagementException {
+        TlsContext context = mTlsContext;
+        return (context != null ? context : getSharedTlsContext()).get();
+    }
+
+    /**
+     * Reconnect automatically from the next connect when the connection is lost or closed by the server.
+     * The Observable then stays subscribed across connections, emitting DISCONNECT and CONNECT for each one,
+     * and ends only with disconnect(), unsubscribe, or a loss the policy does not retry
+     * (a protocol error, a server close other than going away, restarting or overloaded,
+     * anything but an IOException, or attempts exhausted).
+     * Messages sent while disconnected, and messages the lost connection had queued but not started
+     * writing, are written first on the next connection; pings and pongs are dropped. A message being
+     * written or not yet flushed when the connection is lost fails, as it may have reached the server.
+     *
+     * @param policy null to disable, which is the default
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
+
+    /**
+     * Run connections from the next connect on engine instead of a socket and threads of their own.
+     * Events are then emitted on the engine's threads. Pass null to go back to sockets.
+     * setWriteLinger has no effect on such connections, frames are written as soon as the socket takes them.
+     *
+     * @param engine
+     */
+    public void setEngine(NioEngine engine) {
+        mEngine = engine;
+    }
+
+    /**
+     * Create writer threads of socket connections from the next connect with threadFactory,
+     * e.g. to name them, set their priority or pool them. The factory must return unstarted threads.
+     * Engine connections use the engine's threads instead, see {@link NioEngine#NioEngine(int, ThreadFactory)}.
+     *
+     * @param threadFactory
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        if (threadFactory == null) {
+            throw new IllegalArgumentException("threadFactory must not be null");
+        }
+        mThreadFactory = threadFactory;
+    }
+
+    /**
+     * Run writer threads, reconnect attempts, keepalive pings and connects of {@link #share} on virtual threads
+     * from the next connect, see {@link VirtualThreads}. Subscribe to connect() on {@link VirtualThreads#scheduler()}
+     * to read the first connection on a virtual thread too.
+     *
+     * @throws UnsupportedOperationException if this JVM has no virtual threads
+     */
+    public void useVirtualThreads() {
+        setThreadFactory(VirtualThreads.threadFactory());
+        setScheduler(VirtualThreads.scheduler());
+    }
+
+    /**
+     * Run reconnect attempts, keepalive pings, connects of {@link #share} and, with a NioEngine, reads of
+     * fragmented message sources on scheduler instead of Schedulers.io(). A socket connection opened by a reconnect reads on the scheduler's thread until it ends.
+     *
+     * @param scheduler
+     */
+    public void setScheduler(Scheduler scheduler) {
+        if (scheduler == null) {
+            throw new IllegalArgumentException("scheduler must not be null");
+        }
+        mScheduler = scheduler;
+    }
+
+    /**
+     * send frame data to SocketStream
+     *
+     * @param frame
+     */
+    void sendFrame(byte[] frame) {
+        if (frame != null) {
+            sendFrame(OutboundFrame.of(frame));
+        }
+    }
+
+    /**
+     * send data frame to SocketStream in the lane of priority
+     *
+     * @param frame
+     * @param priority
+     */
+    void sendFrame(OutboundFrame frame, Priority priority) {
+        if (frame != null) {
+            frame.setBulk(priority == Priority.BULK);
+        }
+        sendFrame(frame);
+    }
+
+    /**
+     * send frame to SocketStream
+     *
+     * @param frame
+     */
+    void sendFrame(OutboundFrame frame) {
+        if (frame == null) {
+            return;
+        }
+        ReplayQueue replay = mReplay;
+        if (replay == null) {
+            if (!mWriter.offer(frame)) {
+                frame.discard(new IOException("Connection is closed"));
+            }
+            return;
+        }
+        if (mIsConnected && mWriter.offer(frame)) {
+            return;
+        }
+        mStreamLock.lock();
+        try {
+            if (mIsConnected && mWriter.offer(frame)) {
+                return;
+            }
+            if (frame.isControl()) {
+                // pings and pongs belong to the lost connection
+                return;
+            }
+            if (replay.offer(frame)) {
+                return;
+            }
+        } finally {
+            mStreamLock.unlock();
+        }
+        BufferOverflowException overflow = new BufferOverflowException();
+        mMetrics.error(overflow);
+        frame.discard(overflow);
+    }
+
+    /**
+     * Set max time a written frame waits for following frames before the socket is flushed.
+     * Frames sent within this time go out in one write. Default is 0, flush as soon as the queue is empty.
+     * It takes effect from the next connect.
+     *
+     * @param time
+     * @param unit
+     */
+    public void setWriteLinger(long time, TimeUnit unit) {
+        mWriteLingerNanos = unit.toNanos(time);
+    }
+
+    /**
+     * Ping the server every interval from the next connect, and fail the connection with
+     * SocketTimeoutException when maxMissedPongs pings in a row are unanswered.
+     * Round trip times are emitted by rtt(). Pass 0 as interval to disable, which is the default.
+     * <p>
+     * Caution: with BackpressureMode.PAUSE, pongs are not read while reading is paused and count as missed.
+     *
+     * @param interval
+     * @param unit
+     * @param maxMissedPongs
+     */
+    public void setKeepAlive(long interval, TimeUnit unit, int maxMissedPongs) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("interval must not be negative");
+        }
+        if (maxMissedPongs <= 0) {
+            throw new IllegalArgumentException("maxMissedPongs must be positive");
+        }
+        mKeepAliveIntervalNanos = unit.toNanos(interval);
+        mKeepAliveMaxMissed = maxMissedPongs;
+    }
+
+    /**
+     * Round trip times of keepalive pings, emitted on reader thread as each pong arrives.
+     * Subscriptions outlive connections. Nothing is emitted unless setKeepAlive is used.
+     *
+     * @return
+     */
+    public Observable<RttStats> rtt() {
+        return mRtt.onBackpressureLatest();
+    }
+
+    private void startKeepAlive() {
+        stopKeepAlive();
+        if (mKeepAliveIntervalNanos <= 0) {
+            return;
+        }
+        final KeepAlive keepAlive = new KeepAlive(mKeepAliveMaxMissed);
+        final HybiParser parser = mParser;
+        mKeepAlive = keepAlive;
+        mKeepAliveSubscription = Observable.interval(mKeepAliveIntervalNanos, TimeUnit.NANOSECONDS, mScheduler)
+                .subscribe(new Action1<Long>() {
+                    @Override
+                    public void call(Long tick) {
+                        if (mKeepAlive != keepAlive) {
+                            return;
+                        }
+                        if (!mIsConnected) {
+                            // connection ended without disconnect()
+                            stopKeepAlive();
+                            return;
+                        }
+                        byte[] payload = keepAlive.nextPing(System.nanoTime());
+                        if (payload != null) {
+                            parser.ping(payload);
+                        } else {
+                            connectionLost(parser, new SocketTimeoutException(keepAlive.getMissed() + " pings were not answered."));
+                            if (mKeepAlive == keepAlive) {
+                                // not released by a reconnect
+                                release();
+                            }
+                        }
+                    }
+                });
+    }
+
+    private void stopKeepAlive() {
+        mKeepAlive = null;
+        Subscription subscription = mKeepAliveSubscription;
+        if (subscription != null) {
+            subscription.unsubscribe();
+            mKeepAliveSubscription = null;
+        }
+    }
+
+    /**
+     * Called on reader thread for every pong frame.
+     */
+    void onPong(byte[] payload, int offset, int length) {
+        KeepAlive keepAlive = mKeepAlive;
+        if (keepAlive == null) {
+            return;
+        }
+        RttStats stats = keepAlive.onPong(payload, offset, length, System.nanoTime());
+        if (stats != null) {
+            mRtt.onNext(stats);
+        }
+    }
+
+    /**
+     * Get counters of the current connection, or of the last one if not connected.
+     *
+     * @return
+     */
+    public MetricsSnapshot getMetrics() {
+        FrameWriter writer = mWriter;
+        return mMetrics.snapshot((writer != null) ? writer.getQueueDepth() : 0);
+    }
+
+    /**
+     * Emit getMetrics() every interval, e.g. to export them to a monitoring system.
+     *
+     * @param interval
+     * @param unit
+     * @return
+     */
+    public Observable<MetricsSnapshot> metrics(long interval, TimeUnit unit) {
+        return Observable.interval(interval, unit)
+                .onBackpressureDrop()
+                .map(new Func1<Long, MetricsSnapshot>() {
+                    @Override
+                    public MetricsSnapshot call(Long tick) {
+                        return getMetrics();
+                    }
+                });
+    }
+
+    /**
+     * Get number of frames waiting to be written to socket.
+     *
+     * @return
+     */
+    public int getSendQueueDepth() {
+        return (mWriter != null) ? mWriter.getQueueDepth() : 0;
+    }
+
+    /**
+     * Emit onNext to Streaming
+     */
+    void emitterOnNext(Event event) {
+        EventType type = event.getType();
+        if (type == EventType.CONNECT) {
+            mAnnounced.set(true);
+        } else if (type == EventType.DISCONNECT && !mAnnounced.compareAndSet(true, false)) {
+            // one DISCONNECT per CONNECT, however many ways the connection ended
+            return;
+        }
+        BackpressureEmitter emitter = mEmitter;
+        if (emitter != null) {
+            emitter.onNext(event);
+        } else if (mSubscriber != null) {
+            mSubscriber.onNext(event);
+        }
+    }
+
+    /**
+     * Emit onError to Streaming
+     *
+     * @param e
+     */
+    void emitterOnError(Throwable e) {
+        mIsConnected = false;
+        mStopped = true;
+        mMetrics.error(e);
+        BackpressureEmitter emitter = mEmitter;
+        if (emitter != null) {
+            emitter.onError(e);
+        } else if (mSubscriber != null) {
+            mSubscriber.onError(e);
+        }
+    }
+
+    /**
+     * Emit onComplete to Streaming
+     */
+    void emitterOnCompleted() {
+        mIsConnected = false;
+        mStopped = true;
+        BackpressureEmitter emitter = mEmitter;
+        if (emitter != null) {
+            emitter.onCompleted();
+        } else if (mSubscriber != null) {
+            mSubscriber.onCompleted();
+        }
+    }
+
+    /**
+     * get connection status
+     *
+     * @return
+     */
+    public boolean isConnected() {
+        return mIsConnected;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,300 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * One connection shared by any number of subscribers.
+ * <p>
+ * The first subscriber opens the connection and its events are fanned out to every subscriber,
+ * each through a {@link BackpressureEmitter} of its own, so a slow subscriber queues (or drops)
+ * only its own events. Subscribers are kept in a copy-on-write array updated by CAS, so messages
+ * are delivered without a lock. CONNECT and DISCONNECT are queued under a lock which subscribers
+ * join under and delivered after unlocking, so one joining a live connection gets a CONNECT of its
+ * own first and never misses the DISCONNECT. When the last subscriber leaves, the connection is closed after a grace period
+ * unless someone subscribes again within it.
+ * <p>
+ * A pooled message is retained once per extra subscriber, so each subscriber releases it once.
+ */
+final class SharedConnection implements Observable.OnSubscribe<RxWebSocketClient.Event> {
+    private static final Member[] EMPTY = new Member[0];
+
+    private final Observable<RxWebSocketClient.Event> mSource;
+    private final RxWebSocketClient.BackpressureMode mMode;
+    private final int mCapacity;
+    private final long mGraceNanos;
+    private final Scheduler mScheduler;
+
+    private final AtomicReference<Member[]> mMembers = new AtomicReference<Member[]>(EMPTY);
+
+    /**
+     * Guards the connection lifecycle, connection events and joins
+     */
+    private final ReentrantLock mLock = new ReentrantLock();
+    private Fanout mUpstream;
+    private Subscription mGraceTimer;
+    private boolean mConnected;
+
+    /**
+     * @param source     opens a new connection on every subscribe
+     * @param mode       backpressure of each subscriber
+     * @param capacity   messages queued per subscriber
+     * @param graceNanos time the connection stays open without subscribers
+     * @param scheduler  opens the connection and runs the grace timer
+     */
+    SharedConnection(Observable<RxWebSocketClient.Event> source, RxWebSocketClient.BackpressureMode mode,
+                     int capacity, long graceNanos, Scheduler scheduler) {
+        mSource = source;
+        mMode = mode;
+        mCapacity = capacity;
+        mGraceNanos = graceNanos;
+        mScheduler = scheduler;
+    }
+
+    @Override
+    public void call(Subscriber<? super RxWebSocketClient.Event> subscriber) {
+        final Member member = new Member(new BackpressureEmitter(subscriber, mMode, mCapacity));
+        subscriber.add(Subscriptions.create(new Action0() {
+            @Override
+            public void call() {
+                leave(member);
+            }
+        }));
+        subscriber.setProducer(member.mEmitter);
+        if (subscriber.isUnsubscribed()) {
+            return;
+        }
+
+        Fanout open = null;
+        mLock.lock();
+        try {
+            if (mGraceTimer != null) {
+                mGraceTimer.unsubscribe();
+                mGraceTimer = null;
+            }
+            if (mConnected) {
+                member.mEmitter.offer(new RxWebSocketClient.Event(RxWebSocketClient.EventType.CONNECT));
+            }
+            add(member);
+            if (mUpstream == null) {
+                open = new Fanout();
+                mUpstream = open;
+            }
+        } finally {
+            mLock.unlock();
+        }
+        member.mEmitter.drain();
+        if (open != null) {
+            mSource.subscribeOn(mScheduler).subscribe(open);
+        }
+    }
+
+    /**
+     * @return number of current subscribers
+     */
+    int getSubscriberCount() {
+        return mMembers.get().length;
+    }
+
+    private void add(Member member) {
+        while (true) {
+            Member[] current = mMembers.get();
+            Member[] next = new Member[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = member;
+            if (mMembers.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return false if member was not there
+     */
+    private boolean remove(Member member) {
+        while (true) {
+            Member[] current = mMembers.get();
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == member) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return false;
+            }
+            Member[] next = EMPTY;
+            if (current.length > 1) {
+                next = new Member[current.length - 1];
+                System.arraycopy(current, 0, next, 0, index);
+                System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+            }
+            if (mMembers.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    private void leave(Member member) {
+        member.mEmitter.cancel();
+        if (!remove(member)) {
+            return;
+        }
+        mLock.lock();
+        try {
+            if (mMembers.get().length > 0 || mUpstream == null || mGraceTimer != null) {
+                return;
+            }
+            if (mGraceNanos <= 0) {
+                close();
+                return;
+            }
+            mGraceTimer = Observable.timer(mGraceNanos, TimeUnit.NANOSECONDS, mScheduler)
+                    .subscribe(new Action1<Long>() {
+                        @Override
+                        public void call(Long tick) {
+                            mLock.lock();
+                            try {
+                                mGraceTimer = null;
+                                if (mMembers.get().length == 0) {
+                                    close();
+                                }
+                            } finally {
+                                mLock.unlock();
+                            }
+                        }
+                    });
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Close the connection. Caller holds mLock.
+     */
+    private void close() {
+        Fanout upstream = mUpstream;
+        mUpstream = null;
+        mConnected = false;
+        if (upstream != null) {
+            upstream.unsubscribe();
+        }
+    }
+
+    private static final class Member {
+        final BackpressureEmitter mEmitter;
+
+        Member(BackpressureEmitter emitter) {
+            mEmitter = emitter;
+        }
+    }
+
+    /**
+     * Subscriber of the shared connection.
+     */
+    private final class Fanout extends Subscriber<RxWebSocketClient.Event> {
+        @Override
+        public void onNext(RxWebSocketClient.Event event) {
+            RxWebSocketClient.EventType type = event.getType();
+            if (type == RxWebSocketClient.EventType.CONNECT || type == RxWebSocketClient.EventType.DISCONNECT) {
+                Member[] members;
+                mLock.lock();
+                try {
+                    if (mUpstream != this) {
+                        return;
+                    }
+                    mConnected = (type == RxWebSocketClient.EventType.CONNECT);
+                    members = mMembers.get();
+                    for (Member member : members) {
+                        member.mEmitter.offer(event);
+                    }
+                } finally {
+                    mLock.unlock();
+                }
+                for (Member member : members) {
+                    member.mEmitter.drain();
+                }
+                return;
+            }
+
+            Member[] members = mMembers.get();
+            if (members.length == 0) {
+                event.release();
+                return;
+            }
+            // every subscriber gets a reference before the first one may release its own
+            for (int i = 1; i < members.length; i++) {
+                event.retain();
+            }
+            for (Member member : members) {
+                member.mEmitter.onNext(event);
+            }
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            for (Member member : end()) {
+                member.mEmitter.onError(e);
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            for (Member member : end()) {
+                member.mEmitter.onCompleted();
+            }
+        }
+
+        /**
+         * @return subscribers to terminate, none if this connection was replaced already
+         */
+        private Member[] end() {
+            mLock.lock();
+            try {
+                if (mUpstream != this) {
+                    return EMPTY;
+                }
+                mUpstream = null;
+                mConnected = false;
+                return mMembers.getAndSet(EMPTY);
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+}
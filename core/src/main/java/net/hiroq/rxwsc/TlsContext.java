@@ -0,0 +1,153 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+
+/**
+ * TLS context shared by wss connections.
+ * <p>
+ * The SSLContext is initialized once, on first use or by {@link #prewarm()}, and kept.
+ * Its client session cache then survives reconnects, so a connection to a host seen before
+ * resumes the previous session (session ID or ticket) instead of running a full handshake.
+ * Sockets and engines are always created for the host name, which also sends it as SNI.
+ */
+public class TlsContext {
+    /**
+     * Default number of sessions kept for resumption
+     */
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 16;
+
+    /**
+     * Default lifetime of a cached session, in seconds
+     */
+    public static final int DEFAULT_SESSION_TIMEOUT = 12 * 60 * 60;
+
+    /**
+     * How long prewarm waits for a TLS 1.3 session ticket, which servers send after the handshake
+     */
+    private static final int TICKET_WAIT_MILLIS = 500;
+
+    private final TrustManager[] mTrustManagers;
+    private final int mSessionCacheSize;
+    private final int mSessionTimeout;
+    private volatile SSLContext mContext;
+
+    /**
+     * @param trustManagers null for the platform default
+     */
+    public TlsContext(TrustManager[] trustManagers) {
+        this(trustManagers, DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT);
+    }
+
+    /**
+     * @param trustManagers    null for the platform default
+     * @param sessionCacheSize number of sessions kept for resumption, 0 for no limit
+     * @param sessionTimeout   lifetime of a cached session in seconds, 0 for no limit
+     */
+    public TlsContext(TrustManager[] trustManagers, int sessionCacheSize, int sessionTimeout) {
+        if (sessionCacheSize < 0 || sessionTimeout < 0) {
+            throw new IllegalArgumentException("sessionCacheSize and sessionTimeout must not be negative");
+        }
+        mTrustManagers = trustManagers;
+        mSessionCacheSize = sessionCacheSize;
+        mSessionTimeout = sessionTimeout;
+    }
+
+    /**
+     * Get SSLContext, initializing it on first call.
+     *
+     * @return
+     * @throws NoSuchAlgorithmException
+     * @throws KeyManagementException
+     */
+    public SSLContext get() throws NoSuchAlgorithmException, KeyManagementException {
+        SSLContext context = mContext;
+        if (context == null) {
+            synchronized (this) {
+                context = mContext;
+                if (context == null) {
+                    context = SSLContext.getInstance("TLS");
+                    context.init(null, mTrustManagers, null);
+                    SSLSessionContext sessions = context.getClientSessionContext();
+                    if (sessions != null) {
+                        sessions.setSessionCacheSize(mSessionCacheSize);
+                        sessions.setSessionTimeout(mSessionTimeout);
+                    }
+                    mContext = context;
+                }
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Initialize SSLContext ahead of the first connect, which takes loading the trust store
+     * and seeding the random generator off the connect path.
+     *
+     * @throws NoSuchAlgorithmException
+     * @throws KeyManagementException
+     */
+    public void prewarm() throws NoSuchAlgorithmException, KeyManagementException {
+        get();
+    }
+
+    /**
+     * Run a full handshake with host ahead of time, so that the next connect to it resumes
+     * the session. Blocks on network, do not call on the main thread.
+     *
+     * @param host
+     * @param port
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws KeyManagementException
+     */
+    public void prewarm(String host, int port) throws IOException, NoSuchAlgorithmException, KeyManagementException {
+        SSLSocket socket = (SSLSocket) get().getSocketFactory().createSocket(host, port);
+        try {
+            socket.startHandshake();
+            if ("TLSv1.3".equals(socket.getSession().getProtocol())) {
+                // the ticket comes after the handshake and is only processed by a read
+                socket.setSoTimeout(TICKET_WAIT_MILLIS);
+                try {
+                    socket.getInputStream().read();
+                } catch (SocketTimeoutException e) {
+                    // no application data expected before the request
+                }
+            }
+        } finally {
+            socket.close();
+        }
+    }
+}
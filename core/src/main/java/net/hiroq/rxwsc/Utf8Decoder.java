@@ -0,0 +1,213 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Validating UTF-8 decoder of text messages, reused for every message of a connection.
+ * <p>
+ * A fragmented message is decoded fragment by fragment as it arrives, so it is never gathered
+ * as bytes. A character split between fragments is carried over to the next one. Invalid UTF-8,
+ * including a message ending in the middle of a character, fails with a ProtocolError carrying
+ * close code 1007 as soon as it is seen. Runs of ASCII skip the CharsetDecoder.
+ * Not thread-safe, used by the reading thread only.
+ */
+final class Utf8Decoder {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Output buffer larger than this is not kept for the next message
+     */
+    private static final int MAX_RETAINED_CHARS = 16 * 1024;
+
+    private final CharsetDecoder mDecoder = UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+
+    private CharBuffer mChars = CharBuffer.allocate(256);
+
+    /**
+     * Head of a character split between fragments. A UTF-8 character has at most 4 bytes,
+     * so up to 3 are carried and up to 3 more are taken from the next fragment to complete it.
+     */
+    private final byte[] mCarry = new byte[6];
+    private int mCarryLength;
+
+    /**
+     * Decode a whole message.
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @return
+     * @throws HybiParser.ProtocolError with close code 1007 if data is not valid UTF-8
+     */
+    @SuppressWarnings("deprecation")
+    String decode(byte[] data, int offset, int length) throws HybiParser.ProtocolError {
+        if (mCarryLength == 0 && mChars.position() == 0 && isAscii(data, offset, length)) {
+            // every byte is a char, no decoder or intermediate buffer needed
+            return new String(data, 0, offset, length);
+        }
+        append(data, offset, length);
+        return finish();
+    }
+
+    /**
+     * Decode the next fragment of a message.
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @throws HybiParser.ProtocolError with close code 1007 if data is not valid UTF-8
+     */
+    void append(byte[] data, int offset, int length) throws HybiParser.ProtocolError {
+        if (mCarryLength > 0) {
+            int taken = completeCarry(data, offset, length);
+            offset += taken;
+            length -= taken;
+            if (mCarryLength > 0) {
+                return;
+            }
+        }
+        if (isAscii(data, offset, length)) {
+            ensureRemaining(length);
+            char[] chars = mChars.array();
+            int position = mChars.position();
+            for (int i = 0; i < length; i++) {
+                chars[position + i] = (char) data[offset + i];
+            }
+            mChars.position(position + length);
+            return;
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(data, offset, length);
+        decode(in);
+        mCarryLength = in.remaining();
+        in.get(mCarry, 0, mCarryLength);
+    }
+
+    /**
+     * Validate the next fragment of a message delivered as bytes, without keeping its chars.
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @throws HybiParser.ProtocolError with close code 1007 if data is not valid UTF-8
+     */
+    void validate(byte[] data, int offset, int length) throws HybiParser.ProtocolError {
+        append(data, offset, length);
+        mChars.clear();
+    }
+
+    /**
+     * End the message.
+     *
+     * @return chars of every fragment since the last message
+     * @throws HybiParser.ProtocolError with close code 1007 if the message ends in the middle of a character
+     */
+    String finish() throws HybiParser.ProtocolError {
+        if (mCarryLength > 0) {
+            reset();
+            throw invalid();
+        }
+        String string = new String(mChars.array(), 0, mChars.position());
+        reset();
+        return string;
+    }
+
+    /**
+     * Drop a partly decoded message.
+     */
+    void reset() {
+        mCarryLength = 0;
+        mDecoder.reset();
+        if (mChars.capacity() > MAX_RETAINED_CHARS) {
+            mChars = CharBuffer.allocate(MAX_RETAINED_CHARS);
+        } else {
+            mChars.clear();
+        }
+    }
+
+    /**
+     * Complete the carried character with the head of data.
+     *
+     * @return number of bytes of data used
+     */
+    private int completeCarry(byte[] data, int offset, int length) throws HybiParser.ProtocolError {
+        int carried = mCarryLength;
+        int taken = Math.min(mCarry.length - carried, length);
+        System.arraycopy(data, offset, mCarry, carried, taken);
+        ByteBuffer in = ByteBuffer.wrap(mCarry, 0, carried + taken);
+        decode(in);
+        if (in.position() < carried) {
+            // still incomplete, which only happens when data was too short
+            mCarryLength = carried + taken;
+            return taken;
+        }
+        mCarryLength = 0;
+        // bytes behind the completed character are decoded again with the rest of data
+        return in.position() - carried;
+    }
+
+    private void decode(ByteBuffer in) throws HybiParser.ProtocolError {
+        ensureRemaining(in.remaining());
+        CoderResult result = mDecoder.decode(in, mChars, false);
+        if (result.isError()) {
+            throw invalid();
+        }
+    }
+
+    private void ensureRemaining(int chars) {
+        // UTF-8 never decodes to more chars than bytes
+        if (mChars.remaining() >= chars) {
+            return;
+        }
+        int capacity = Math.max(mChars.capacity() * 2, mChars.position() + chars);
+        CharBuffer grown = CharBuffer.allocate(capacity);
+        mChars.flip();
+        grown.put(mChars);
+        mChars = grown;
+    }
+
+    private static boolean isAscii(byte[] data, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            if (data[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static HybiParser.ProtocolError invalid() {
+        return new HybiParser.ProtocolError("Invalid UTF-8 in text message", HybiParser.CLOSE_INVALID_DATA);
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+/**
+ * Virtual threads of Java 21 and later, for many connections in the blocking thread-per-connection model.
+ * <p>
+ * A socket connection blocks a reader thread and a writer thread. On virtual threads the blocked reads and
+ * writes unmount from their carrier threads, so a load generator can keep as many connections as memory
+ * allows without going through a {@link NioEngine}. The client guards its state with locks instead of
+ * monitors, which a virtual thread blocked inside would pin to its carrier before Java 24.
+ * <p>
+ * The core is built for Java 7, so the API is looked up reflectively and this class reports it as not
+ * available on older JVMs and on Android.
+ */
+public final class VirtualThreads {
+    private static final ThreadFactory FACTORY = lookupFactory();
+
+    private static Scheduler sScheduler;
+
+    private VirtualThreads() {
+    }
+
+    private static ThreadFactory lookupFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if this JVM has virtual threads
+     */
+    public static boolean isAvailable() {
+        return FACTORY != null;
+    }
+
+    /**
+     * Factory of virtual threads, e.g. for {@link RxWebSocketClient#setThreadFactory}.
+     * Selector threads of a NioEngine gain nothing from being virtual.
+     *
+     * @return
+     * @throws UnsupportedOperationException if this JVM has no virtual threads
+     */
+    public static ThreadFactory threadFactory() {
+        if (FACTORY == null) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+        }
+        return FACTORY;
+    }
+
+    /**
+     * Scheduler running every task on a virtual thread of its own. Subscribe to connect() on it to
+     * read the connection on a virtual thread, see {@link RxWebSocketClient#useVirtualThreads()}.
+     *
+     * @return
+     * @throws UnsupportedOperationException if this JVM has no virtual threads
+     */
+    public static synchronized Scheduler scheduler() {
+        if (sScheduler == null) {
+            final ThreadFactory factory = threadFactory();
+            sScheduler = Schedulers.from(new Executor() {
+                @Override
+                public void execute(Runnable task) {
+                    factory.newThread(task).start();
+                }
+            });
+        }
+        return sScheduler;
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends messages of one client while keeping at most a window of them in flight.
+ * <p>
+ * A message is in flight from send until it has been written and flushed to the socket,
+ * or dropped. {@link #send(byte[])} blocks the producer while the window is full, so it runs
+ * at the speed of the link and nothing piles up in memory; {@link #trySend(byte[])} returns
+ * false instead. A message larger than the byte window is let through alone.
+ * Messages which fail are counted and still free their place in the window; the connection
+ * reports the cause itself. Messages sent once the connection is closed are counted as failed.
+ */
+public class WindowedSender {
+    /**
+     * Default number of messages in flight
+     */
+    public static final int DEFAULT_MAX_MESSAGES = 64;
+
+    /**
+     * Default number of bytes in flight
+     */
+    public static final long DEFAULT_MAX_BYTES = 256 * 1024;
+
+    private final RxWebSocketClient mClient;
+    private final int mMaxMessages;
+    private final long mMaxBytes;
+    private final RxWebSocketClient.Priority mPriority;
+
+    /**
+     * Guards the window
+     */
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mReleased = mLock.newCondition();
+    private int mMessages;
+    private long mBytes;
+    private long mFailed;
+
+    public WindowedSender(RxWebSocketClient client) {
+        this(client, DEFAULT_MAX_MESSAGES, DEFAULT_MAX_BYTES, RxWebSocketClient.Priority.HIGH);
+    }
+
+    /**
+     * @param client
+     * @param maxMessages max number of messages in flight
+     * @param maxBytes    max number of bytes in flight, frame headers included
+     * @param priority    lane of the messages
+     */
+    public WindowedSender(RxWebSocketClient client, int maxMessages, long maxBytes, RxWebSocketClient.Priority priority) {
+        if (maxMessages <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        mClient = client;
+        mMaxMessages = maxMessages;
+        mMaxBytes = maxBytes;
+        mPriority = priority;
+    }
+
+    /**
+     * Send string data, waiting while the window is full.
+     *
+     * @param message
+     * @throws InterruptedException
+     */
+    public void send(String message) throws InterruptedException {
+        OutboundFrame frame = mClient.message(message);
+        if (frame == null) {
+            dropped();
+            return;
+        }
+        acquire(frame.size());
+        send(frame);
+    }
+
+    /**
+     * Send raw data, waiting while the window is full.
+     *
+     * @param message
+     * @throws InterruptedException
+     */
+    public void send(byte[] message) throws InterruptedException {
+        OutboundFrame frame = mClient.message(message);
+        if (frame == null) {
+            dropped();
+            return;
+        }
+        acquire(frame.size());
+        send(frame);
+    }
+
+    /**
+     * Send string data if the window has room for it.
+     *
+     * @param message
+     * @return false if the window is full and nothing was sent
+     */
+    public boolean trySend(String message) {
+        OutboundFrame frame = mClient.message(message);
+        if (frame == null) {
+            dropped();
+            return true;
+        }
+        if (!tryAcquire(frame.size())) {
+            return false;
+        }
+        send(frame);
+        return true;
+    }
+
+    /**
+     * Send raw data if the window has room for it.
+     *
+     * @param message
+     * @return false if the window is full and nothing was sent
+     */
+    public boolean trySend(byte[] message) {
+        OutboundFrame frame = mClient.message(message);
+        if (frame == null) {
+            dropped();
+            return true;
+        }
+        if (!tryAcquire(frame.size())) {
+            return false;
+        }
+        send(frame);
+        return true;
+    }
+
+    /**
+     * Wait until every message sent so far is out of flight.
+     *
+     * @throws InterruptedException
+     */
+    public void awaitIdle() throws InterruptedException {
+        mLock.lock();
+        try {
+            while (mMessages > 0) {
+                mReleased.await();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Get number of messages in flight.
+     *
+     * @return
+     */
+    public int getMessagesInFlight() {
+        mLock.lock();
+        try {
+            return mMessages;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Get number of bytes in flight.
+     *
+     * @return
+     */
+    public long getBytesInFlight() {
+        mLock.lock();
+        try {
+            return mBytes;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Get number of messages dropped or failed so far.
+     *
+     * @return
+     */
+    public long getFailed() {
+        mLock.lock();
+        try {
+            return mFailed;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void send(OutboundFrame frame) {
+        final int size = frame.size();
+        frame.setListener(new OutboundFrame.Listener() {
+            @Override
+            public void onWritten() {
+                release(size, false);
+            }
+
+            @Override
+            public void onFailed(Throwable e) {
+                release(size, true);
+            }
+        });
+        mClient.sendFrame(frame, mPriority);
+    }
+
+    private boolean fits(int size) {
+        return mMessages == 0 || (mMessages < mMaxMessages && mBytes + size <= mMaxBytes);
+    }
+
+    private void acquire(int size) throws InterruptedException {
+        mLock.lock();
+        try {
+            while (!fits(size)) {
+                mReleased.await();
+            }
+            mMessages++;
+            mBytes += size;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private boolean tryAcquire(int size) {
+        mLock.lock();
+        try {
+            if (!fits(size)) {
+                return false;
+            }
+            mMessages++;
+            mBytes += size;
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Count a message which could not be sent because the connection is closed.
+     * It never took a place in the window.
+     */
+    private void dropped() {
+        mLock.lock();
+        try {
+            mFailed++;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void release(int size, boolean failed) {
+        mLock.lock();
+        try {
+            mMessages--;
+            mBytes -= size;
+            if (failed) {
+                mFailed++;
+            }
+            mReleased.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package net.hiroq.rxwsc;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import rx.Subscriber;
+import rx.exceptions.MissingBackpressureException;
+import rx.observers.TestSubscriber;
+
+import static org.junit.Assert.*;
+
+public class BackpressureEmitterTest {
+    private static RxWebSocketClient.Event message(String text) {
+        return new RxWebSocketClient.Event(RxWebSocketClient.EventType.MESSAGE_STRING, text);
+    }
+
+    private static BackpressureEmitter emitter(TestSubscriber<RxWebSocketClient.Event> subscriber,
+                                               RxWebSocketClient.BackpressureMode mode, int capacity) {
+        BackpressureEmitter emitter = new BackpressureEmitter(subscriber, mode, capacity);
+        subscriber.setProducer(emitter);
+        return emitter;
+    }
+
+    private static String text(TestSubscriber<RxWebSocketClient.Event> subscriber, int index) {
+        return subscriber.getOnNextEvents().get(index).getString();
+    }
+
+    @Test
+    public void deliversOnlyRequestedEvents() {
+        TestSubscriber<RxWebSocketClient.Event> subscriber = TestSubscriber.create(0);
+        BackpressureEmitter emitter = emitter(subscriber, RxWebSocketClient.BackpressureMode.BUFFER, 5);
+
+        for (int i = 0; i < 5; i++) {
+            emitter.onNext(message("m" + i));
+        }
+        emitter.onCompleted();
+        subscriber.assertValueCount(0);
+
+        subscriber.requestMore(3);
+        subscriber.assertValueCount(3);
+        subscriber.assertNotCompleted();
+
+        subscriber.requestMore(2);
+        subscriber.assertValueCount(5);
+        subscriber.assertCompleted();
+    }
+
+    @Test
+    public void bufferFailsWhenFull() {
+        TestSubscriber<RxWebSocketClient.Event> subscriber = TestSubscriber.create(0);
+        BackpressureEmitter emitter = emitter(subscriber, RxWebSocketClient.BackpressureMode.BUFFER, 2);
+        BufferPool pool = new BufferPool();
+
+        emitter.onNext(new RxWebSocketClient.Event(pool, pool.acquire(1), 1));
+        emitter.onNext(new RxWebSocketClient.Event(pool, pool.acquire(1), 1));
+        subscriber.assertNoTerminalEvent();
+        emitter.onNext(new RxWebSocketClient.Event(pool, pool.acquire(1), 1));
+
+        subscriber.assertError(MissingBackpressureException.class);
+        subscriber.assertNoValues();
+        assertEquals(3, pool.getFreeCount(0));
+    }
+
+    @Test
+    public void subscriberFailureEndsEmitting() {
+        final TestSubscriber<RxWebSocketClient.Event> subscriber = TestSubscriber.create(0);
+        Subscriber<RxWebSocketClient.Event> failing = new Subscriber<RxWebSocketClient.Event>() {
+            @Override
+            public void onNext(RxWebSocketClient.Event event) {
+                throw new IllegalStateException("broken");
+            }
+
+            @Override
+            public void onCompleted() {
+                subscriber.onCompleted();
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                subscriber.onError(e);
+            }
+        };
+        BackpressureEmitter emitter = new BackpressureEmitter(failing, RxWebSocketClient.BackpressureMode.BUFFER, 4);
+        failing.setProducer(emitter);
+        emitter.onNext(message("m0"));
+        emitter.onNext(message("m1"));
+        emitter.request(2);
+
+        subscriber.assertError(IllegalStateException.class);
+        assertEquals(1, subscriber.getOnErrorEvents().size());
+        emitter.onNext(message("m2"));
+        emitter.onCompleted();
+        subscriber.assertNotCompleted();
+    }
+
+    @Test
+    public void dropDiscardsNewMessagesButKeepsConnectionEvents() {
+        TestSubscriber<RxWebSocketClient.Event> subscriber = TestSubscriber.create(0);
+        BackpressureEmitter emitter = emitter(subscriber, RxWebSocketClient.BackpressureMode.DROP, 2);
+
+        for (int i = 0; i < 5; i++) {
+            emitter.onNext(message("m" + i));
+        }
+        emitter.onNext(new RxWebSocketClient.Event(RxWebSocketClient.EventType.DISCONNECT));
+        subscriber.requestMore(10);
+
+        subscriber.assertValueCount(3);
+        assertEquals("m0", text(subscriber, 0));
+        assertEquals("m1", text(subscriber, 1));
+        assertEquals(RxWebSocketClient.EventType.DISCONNECT, subscriber.getOnNextEvents().get(2).getType());
+        assertEquals(3, emitter.getDropped());
+    }
+
+    @Test
+    public void droppedPooledMessagesAreReleased() {
+        TestSubscriber<RxWebSocketClient.Event> subscriber = TestSubscriber.create(0);
+        BackpressureEmitter emitter = emitter(subscriber, RxWebSocketClient.BackpressureMode.DROP, 1);
+        BufferPool pool = new BufferPool();
+
+        emitter.onNext(new RxWebSocketClient.Event(pool, pool.acquire(1), 1));
+        emitter.onNext(new RxWebSocketClient.Event(pool, pool.acquire(1), 1));
+        assertEquals(1, pool.getFreeCount(0));
+
+        emitter.cancel();
+        assertEquals(2, pool.getFreeCount(0));
+    }
+
+    @Test
+    public void latestKeepsNewestMessages() {
+        TestSubscriber<RxWebSocketClient.Event> subscriber = TestSubscriber.create(0);
+        BackpressureEmitter emitter = emitter(subscriber, RxWebSocketClient.BackpressureMode.LATEST, 2);
+
+        for (int i = 0; i < 5; i++) {
+            emitter.onNext(message("m" + i));
+        }
+        subscriber.requestMore(10);
+
+        subscriber.assertValueCount(2);
+        assertEquals("m3", text(subscriber, 0));
+        assertEquals("m4", text(subscriber, 1));
+    }
+
+    @Test
+    public void pauseBlocksEmitterUntilRequested() throws Exception {
+        TestSubscriber<RxWebSocketClient.Event> subscriber = TestSubscriber.create(0);
+        final BackpressureEmitter emitter = emitter(subscriber, RxWebSocketClient.BackpressureMode.PAUSE, 2);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 4; i++) {
+                    emitter.onNext(message("m" + i));
+                }
+                done.countDown();
+            }
+        });
+        reader.start();
+
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        subscriber.requestMore(2);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        subscriber.requestMore(2);
+        subscriber.assertValueCount(4);
+        assertEquals("m3", text(subscriber, 3));
+    }
+
+    @Test
+    public void cancelReleasesBlockedEmitter() throws Exception {
+        TestSubscriber<RxWebSocketClient.Event> subscriber = TestSubscriber.create(0);
+        final BackpressureEmitter emitter = emitter(subscriber, RxWebSocketClient.BackpressureMode.PAUSE, 1);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                emitter.onNext(message("m0"));
+                emitter.onNext(message("m1"));
+                done.countDown();
+            }
+        });
+        reader.start();
+
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        emitter.cancel();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        subscriber.assertValueCount(0);
+    }
+}
@@ -0,0 +1,133 @@
+package net.hiroq.rxwsc;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+    private static RxWebSocketClient.Event event(BufferPool pool, byte[] payload) {
+        BufferPool.Buffer buffer = pool.acquire(payload.length);
+        System.arraycopy(payload, 0, buffer.mArray, 0, payload.length);
+        return new RxWebSocketClient.Event(pool, buffer, payload.length);
+    }
+
+    @Test
+    public void sizeClassesArePowersOfTwo() {
+        assertEquals(0, BufferPool.sizeClass(1));
+        assertEquals(0, BufferPool.sizeClass(256));
+        assertEquals(1, BufferPool.sizeClass(257));
+        assertEquals(1, BufferPool.sizeClass(512));
+        assertEquals(8, BufferPool.sizeClass(64 * 1024));
+    }
+
+    @Test
+    public void releaseHandsBufferBackForReuse() {
+        BufferPool pool = new BufferPool();
+        BufferPool.Buffer buffer = pool.acquire(3);
+        RxWebSocketClient.Event first = new RxWebSocketClient.Event(pool, buffer, 3);
+
+        assertTrue(first.release());
+        assertEquals(1, pool.getFreeCount(0));
+        assertSame(buffer, pool.acquire(200));
+        assertEquals(0, pool.getFreeCount(0));
+        assertNotSame(buffer, pool.acquire(200));
+    }
+
+    @Test
+    public void bufferIsReadOnlyViewUntilRelease() {
+        BufferPool pool = new BufferPool();
+        RxWebSocketClient.Event event = event(pool, new byte[]{1, 2, 3});
+        assertTrue(event.isPooled());
+
+        ByteBuffer buffer = event.getBuffer();
+        assertTrue(buffer.isReadOnly());
+        assertEquals(3, buffer.remaining());
+        try {
+            buffer.put(0, (byte) 9);
+            fail();
+        } catch (ReadOnlyBufferException expected) {
+        }
+
+        byte[] copy = event.getBytes();
+        assertArrayEquals(new byte[]{1, 2, 3}, copy);
+        event.release();
+        assertSame(copy, event.getBytes());
+        try {
+            event.getBuffer();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            event.release();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void everyHolderGetsItsOwnPosition() {
+        BufferPool pool = new BufferPool();
+        RxWebSocketClient.Event event = event(pool, new byte[]{1, 2, 3});
+        ByteBuffer first = event.getBuffer();
+        first.get();
+        first.get();
+
+        ByteBuffer second = event.getBuffer();
+        assertTrue(second.isReadOnly());
+        assertEquals(0, second.position());
+        assertEquals(3, second.remaining());
+        assertEquals(1, first.remaining());
+        event.release();
+    }
+
+    @Test
+    public void retainDefersRecycle() {
+        BufferPool pool = new BufferPool();
+        RxWebSocketClient.Event event = event(pool, new byte[]{1});
+        event.retain();
+        assertFalse(event.release());
+        assertEquals(0, pool.getFreeCount(0));
+        assertTrue(event.release());
+        assertEquals(1, pool.getFreeCount(0));
+    }
+
+    @Test
+    public void oversizedPayloadsAreNotPooled() {
+        BufferPool pool = new BufferPool(1024, 4);
+        RxWebSocketClient.Event event = event(pool, new byte[2000]);
+        assertEquals(2000, event.getBuffer().remaining());
+        assertTrue(event.release());
+        for (int i = 0; i <= BufferPool.sizeClass(1024); i++) {
+            assertEquals(0, pool.getFreeCount(i));
+        }
+    }
+
+    @Test
+    public void unpooledEventsIgnoreRelease() {
+        RxWebSocketClient.Event event = new RxWebSocketClient.Event(RxWebSocketClient.EventType.MESSAGE_BINARY, new byte[]{7});
+        assertFalse(event.isPooled());
+        assertSame(event, event.retain());
+        assertFalse(event.release());
+        assertEquals(7, event.getBuffer().get(0));
+    }
+
+    @Test
+    public void reportsEventsCollectedWithoutRelease() throws Exception {
+        BufferPool pool = new BufferPool();
+        pool.setLeakDetection(true);
+        event(pool, new byte[]{1}).release();
+        event(pool, new byte[]{2});
+
+        int found = 0;
+        for (int i = 0; i < 50 && found == 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+            found = pool.reportLeaks();
+        }
+        assertEquals(1, found);
+        assertEquals(1, pool.getLeakCount());
+    }
+}
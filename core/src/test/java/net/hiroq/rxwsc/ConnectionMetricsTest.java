@@ -0,0 +1,87 @@
+package net.hiroq.rxwsc;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.hiroq.rxwsc.MetricsSnapshot.FrameType;
+
+import static org.junit.Assert.*;
+
+public class ConnectionMetricsTest {
+    @Test
+    public void countsFramesAndBytesByType() {
+        ConnectionMetrics metrics = new ConnectionMetrics();
+        metrics.frameIn(1, 10);
+        metrics.frameIn(1, 5);
+        metrics.frameIn(2, 0);
+        metrics.bytesIn(2, 100);
+        metrics.frameOut(9, 8);
+        metrics.fragmentedIn();
+        metrics.fragmentedOut();
+        metrics.fragmentedOut();
+        metrics.handshake(TimeUnit.MILLISECONDS.toNanos(30));
+
+        MetricsSnapshot snapshot = metrics.snapshot(7);
+        assertEquals(2, snapshot.getFramesReceived(FrameType.TEXT));
+        assertEquals(15, snapshot.getBytesReceived(FrameType.TEXT));
+        assertEquals(1, snapshot.getFramesReceived(FrameType.BINARY));
+        assertEquals(100, snapshot.getBytesReceived(FrameType.BINARY));
+        assertEquals(1, snapshot.getFramesSent(FrameType.PING));
+        assertEquals(8, snapshot.getBytesSent(FrameType.PING));
+        assertEquals(1, snapshot.getFragmentedMessagesReceived());
+        assertEquals(2, snapshot.getFragmentedMessagesSent());
+        assertEquals(7, snapshot.getSendQueueDepth());
+        assertEquals(30, snapshot.getHandshakeTime(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void countsErrorsByType() {
+        ConnectionMetrics metrics = new ConnectionMetrics();
+        assertEquals(-1, metrics.snapshot(0).getHandshakeTime(TimeUnit.MILLISECONDS));
+        metrics.error(new SocketTimeoutException());
+        metrics.error(new SocketTimeoutException());
+        metrics.error(new EOFException());
+
+        MetricsSnapshot snapshot = metrics.snapshot(0);
+        assertEquals(Long.valueOf(2), snapshot.getErrors().get(SocketTimeoutException.class.getName()));
+        assertEquals(Long.valueOf(1), snapshot.getErrors().get(EOFException.class.getName()));
+    }
+
+    @Test
+    public void writerCountsPayloadOfEncodedFrames() throws Exception {
+        ConnectionMetrics metrics = new ConnectionMetrics();
+        FrameWriter writer = new FrameWriter("test", new FrameWriter.Callback() {
+            @Override
+            public void onError(IOException e) {
+                fail(e.toString());
+            }
+        });
+        writer.setMetrics(metrics);
+        writer.start(new ByteArrayOutputStream());
+
+        byte[] frame = new byte[OutboundFrame.MAX_HEADER_SIZE + 300];
+        int header = HybiParser.header(frame, 2, 300, true, 42);
+        byte[] encoded = new byte[header + 300];
+        System.arraycopy(frame, 0, encoded, 0, encoded.length);
+        writer.offer(OutboundFrame.of(encoded));
+
+        final CountDownLatch closed = new CountDownLatch(1);
+        writer.close(new Runnable() {
+            @Override
+            public void run() {
+                closed.countDown();
+            }
+        });
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+
+        MetricsSnapshot snapshot = metrics.snapshot(0);
+        assertEquals(1, snapshot.getFramesSent(FrameType.BINARY));
+        assertEquals(300, snapshot.getBytesSent(FrameType.BINARY));
+    }
+}
@@ -0,0 +1,82 @@
+package net.hiroq.rxwsc;
+
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class EventLoopTest {
+    @Test
+    public void runsTasksOnLoopThread() throws Exception {
+        final EventLoop loop = new EventLoop("test-loop");
+        final CountDownLatch latch = new CountDownLatch(100);
+        final AtomicBoolean inLoop = new AtomicBoolean(true);
+        for (int i = 0; i < 100; i++) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    inLoop.compareAndSet(true, loop.inLoop());
+                    latch.countDown();
+                }
+            });
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(inLoop.get());
+        assertFalse(loop.inLoop());
+        loop.shutdown();
+    }
+
+    @Test
+    public void dispatchesReadyChannelToHandler() throws Exception {
+        final ServerSocket server = new ServerSocket(0);
+        final EventLoop loop = new EventLoop("test-loop");
+        final CountDownLatch received = new CountDownLatch(1);
+        final ByteBuffer buffer = ByteBuffer.allocate(16);
+        final SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+        channel.configureBlocking(false);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.register(loop.selector(), SelectionKey.OP_READ, new EventLoop.Handler() {
+                        @Override
+                        public void onReady(SelectionKey key) {
+                            try {
+                                channel.read(buffer);
+                            } catch (Exception e) {
+                                key.cancel();
+                            }
+                            if (buffer.position() == 4) {
+                                received.countDown();
+                            }
+                        }
+                    });
+                } catch (Exception e) {
+                    fail(e.toString());
+                }
+            }
+        });
+
+        Socket socket = server.accept();
+        OutputStream out = socket.getOutputStream();
+        out.write(new byte[]{1, 2, 3, 4});
+        out.flush();
+
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertEquals(3, buffer.get(2));
+        loop.shutdown();
+        socket.close();
+        server.close();
+    }
+}
@@ -0,0 +1,234 @@
+package net.hiroq.rxwsc;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.schedulers.Schedulers;
+import rx.subjects.PublishSubject;
+
+import static org.junit.Assert.*;
+
+public class FragmentedMessageTest {
+    private static final int FIN = 0x80;
+
+    private static final FrameWriter.Callback FAIL = new FrameWriter.Callback() {
+        @Override
+        public void onError(IOException e) {
+            fail(e.toString());
+        }
+    };
+
+    private static class Frame {
+        final int header;
+        final byte[] payload;
+
+        Frame(int header, byte[] payload) {
+            this.header = header;
+            this.payload = payload;
+        }
+    }
+
+    private static List<Frame> parse(byte[] bytes) throws IOException {
+        final List<Frame> frames = new ArrayList<Frame>();
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(bytes), new FrameReader.Callback() {
+            @Override
+            public void onFrame(int header, byte[] payload, int offset, int length) {
+                frames.add(new Frame(header, Arrays.copyOfRange(payload, offset, offset + length)));
+            }
+        });
+        try {
+            reader.run();
+        } catch (EOFException e) {
+            // end of frames
+        }
+        return frames;
+    }
+
+    private static void awaitClose(FrameWriter writer) throws InterruptedException {
+        final CountDownLatch closed = new CountDownLatch(1);
+        writer.close(new Runnable() {
+            @Override
+            public void run() {
+                closed.countDown();
+            }
+        });
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+    }
+
+    private static void awaitSize(ByteArrayOutputStream out, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (out.size() < size) {
+            assertTrue("written=" + out.size(), System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void splitsStreamIntoMaskedFragments() throws Exception {
+        final boolean[] closed = new boolean[1];
+        ByteArrayInputStream in = new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10}) {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        FrameWriter writer = new FrameWriter("test", FAIL);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.start(out);
+        writer.offer(OutboundFrame.of(new FragmentedMessage.FromStream(HybiParser.OP_BINARY, 4, true, new MaskKeyGenerator(1), in)));
+        awaitClose(writer);
+
+        List<Frame> frames = parse(out.toByteArray());
+        assertEquals(3, frames.size());
+        assertEquals(HybiParser.OP_BINARY, frames.get(0).header);
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, frames.get(0).payload);
+        assertEquals(HybiParser.OP_CONTINUATION, frames.get(1).header);
+        assertArrayEquals(new byte[]{5, 6, 7, 8}, frames.get(1).payload);
+        assertEquals(FIN | HybiParser.OP_CONTINUATION, frames.get(2).header);
+        assertArrayEquals(new byte[]{9, 10}, frames.get(2).payload);
+        assertTrue(closed[0]);
+    }
+
+    @Test
+    public void readsStreamAheadOnSchedulerWhenGiven() throws Exception {
+        final List<String> readers = new CopyOnWriteArrayList<String>();
+        ByteArrayInputStream in = new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10}) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                readers.add(Thread.currentThread().getName());
+                return super.read(b, off, len);
+            }
+        };
+        FrameWriter writer = new FrameWriter("test", FAIL);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.start(out);
+        writer.offer(OutboundFrame.of(new FragmentedMessage.FromStream(HybiParser.OP_BINARY, 4, false, null, in,
+                Schedulers.newThread())));
+        awaitSize(out, 2 + 4 + 2 + 4 + 2 + 2);
+        awaitClose(writer);
+
+        List<Frame> frames = parse(out.toByteArray());
+        assertEquals(3, frames.size());
+        assertArrayEquals(new byte[]{5, 6, 7, 8}, frames.get(1).payload);
+        assertEquals(FIN | HybiParser.OP_CONTINUATION, frames.get(2).header);
+        assertArrayEquals(new byte[]{9, 10}, frames.get(2).payload);
+        assertFalse(readers.isEmpty());
+        assertFalse(readers.contains("test"));
+    }
+
+    @Test
+    public void streamFailureReadAheadFailsConnectionAndClosesStream() throws Exception {
+        final boolean[] closed = new boolean[1];
+        InputStream in = new InputStream() {
+            private int mRead;
+
+            @Override
+            public int read() throws IOException {
+                if (mRead++ >= 4) {
+                    throw new IOException("broken");
+                }
+                return mRead;
+            }
+
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        final BlockingQueue<IOException> errors = new LinkedBlockingQueue<IOException>();
+        FrameWriter writer = new FrameWriter("test", new FrameWriter.Callback() {
+            @Override
+            public void onError(IOException e) {
+                errors.add(e);
+            }
+        });
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.start(out);
+        writer.offer(OutboundFrame.of(new FragmentedMessage.FromStream(HybiParser.OP_BINARY, 4, false, null, in,
+                Schedulers.newThread())));
+
+        IOException error = errors.poll(5, TimeUnit.SECONDS);
+        assertNotNull(error);
+        assertEquals("broken", error.getMessage());
+        awaitClose(writer);
+        assertTrue(closed[0]);
+        List<Frame> frames = parse(out.toByteArray());
+        assertEquals(1, frames.size());
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, frames.get(0).payload);
+    }
+
+    @Test
+    public void endsWithEmptyFragmentWhenStreamFillsLastFragment() throws Exception {
+        FrameWriter writer = new FrameWriter("test", FAIL);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.start(out);
+        writer.offer(OutboundFrame.of(new FragmentedMessage.FromStream(HybiParser.OP_BINARY, 4, false, null,
+                new ByteArrayInputStream(new byte[8]))));
+        awaitClose(writer);
+
+        List<Frame> frames = parse(out.toByteArray());
+        assertEquals(3, frames.size());
+        assertEquals(FIN | HybiParser.OP_CONTINUATION, frames.get(2).header);
+        assertEquals(0, frames.get(2).payload.length);
+    }
+
+    @Test
+    public void writesControlFramesBetweenFragmentsAndDefersData() throws Exception {
+        PublishSubject<byte[]> end = PublishSubject.create();
+        Observable<byte[]> source = Observable.just(new byte[]{1, 2}, new byte[]{3, 4, 5}).concatWith(end);
+
+        FrameWriter writer = new FrameWriter("test", FAIL);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.start(out);
+        writer.offer(OutboundFrame.of(new FragmentedMessage.FromObservable(HybiParser.OP_BINARY, 2, false, null, source)));
+        writer.offer(OutboundFrame.of(new byte[]{(byte) 0x82, 1, 42}));
+
+        // 2 + 2, 2 + 2, 2 + 1 bytes of fragments
+        awaitSize(out, 11);
+        writer.offer(OutboundFrame.of(new byte[]{(byte) 0x89, 0}));
+        awaitSize(out, 13);
+        end.onCompleted();
+        awaitClose(writer);
+
+        List<Frame> frames = parse(out.toByteArray());
+        assertEquals(6, frames.size());
+        assertEquals(HybiParser.OP_BINARY, frames.get(0).header);
+        assertArrayEquals(new byte[]{1, 2}, frames.get(0).payload);
+        assertArrayEquals(new byte[]{3, 4}, frames.get(1).payload);
+        assertArrayEquals(new byte[]{5}, frames.get(2).payload);
+        assertEquals(FIN | 9, frames.get(3).header);
+        assertEquals(FIN | HybiParser.OP_CONTINUATION, frames.get(4).header);
+        assertEquals(FIN | HybiParser.OP_BINARY, frames.get(5).header);
+        assertArrayEquals(new byte[]{42}, frames.get(5).payload);
+    }
+
+    @Test
+    public void cancelsWaitingSourceOnClose() throws Exception {
+        PublishSubject<byte[]> source = PublishSubject.create();
+        FrameWriter writer = new FrameWriter("test", FAIL);
+        writer.start(new ByteArrayOutputStream());
+        writer.offer(OutboundFrame.of(new FragmentedMessage.FromObservable(HybiParser.OP_BINARY, 2, false, null, source)));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!source.hasObservers()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        awaitClose(writer);
+        assertFalse(source.hasObservers());
+    }
+}
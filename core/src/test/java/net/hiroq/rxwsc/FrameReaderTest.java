@@ -0,0 +1,204 @@
+package net.hiroq.rxwsc;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameReaderTest {
+    private static class Recorder implements FrameReader.Callback {
+        List<Integer> headers = new ArrayList<Integer>();
+        List<byte[]> payloads = new ArrayList<byte[]>();
+
+        @Override
+        public void onFrame(int header, byte[] payload, int offset, int length) {
+            headers.add(header);
+            payloads.add(Arrays.copyOfRange(payload, offset, offset + length));
+        }
+    }
+
+    private static class PartRecorder extends Recorder implements FrameReader.PartialCallback {
+        ByteArrayOutputStream parts = new ByteArrayOutputStream();
+        int count;
+        boolean sawLast;
+
+        @Override
+        public void onFramePart(int header, byte[] payload, int offset, int length, boolean first, boolean last) {
+            assertEquals(count == 0, first);
+            assertFalse(sawLast);
+            parts.write(payload, offset, length);
+            count++;
+            sawLast |= last;
+        }
+    }
+
+    /**
+     * InputStream returning at most one byte per read
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        TrickleInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    private static byte[] frame(int header, byte[] payload, byte[] mask) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header);
+        int masked = mask != null ? 128 : 0;
+        if (payload.length <= 125) {
+            out.write(masked | payload.length);
+        } else if (payload.length <= 65535) {
+            out.write(masked | 126);
+            out.write(payload.length >>> 8);
+            out.write(payload.length & 255);
+        } else {
+            out.write(masked | 127);
+            for (int i = 7; i >= 0; i--) {
+                out.write((int) (((long) payload.length >>> (8 * i)) & 255));
+            }
+        }
+        if (mask != null) {
+            out.write(mask, 0, 4);
+            for (int i = 0; i < payload.length; i++) {
+                out.write(payload[i] ^ mask[i % 4]);
+            }
+        } else {
+            out.write(payload, 0, payload.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+
+    private static Recorder readAll(InputStream stream, int bufferSize) throws IOException {
+        Recorder recorder = new Recorder();
+        try {
+            new FrameReader(stream, recorder, bufferSize).run();
+            fail("EOFException expected");
+        } catch (EOFException e) {
+            // end of stream
+        }
+        return recorder;
+    }
+
+    @Test
+    public void readsManyFramesFromOneChunk() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 100; i++) {
+            out.write(frame(0x81, ("message" + i).getBytes("UTF-8"), null));
+        }
+        Recorder recorder = readAll(new ByteArrayInputStream(out.toByteArray()), FrameReader.DEFAULT_BUFFER_SIZE);
+
+        assertEquals(100, recorder.payloads.size());
+        assertEquals(0x81, (int) recorder.headers.get(0));
+        assertEquals("message99", new String(recorder.payloads.get(99), "UTF-8"));
+    }
+
+    @Test
+    public void readsFramesSplitAcrossReads() throws Exception {
+        byte[] mask = {1, 2, 3, 4};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(frame(0x82, bytes(10), mask));
+        out.write(frame(0x82, bytes(300), null));
+        out.write(frame(0x82, bytes(70000), mask));
+        Recorder recorder = readAll(new TrickleInputStream(out.toByteArray()), 128 * 1024);
+
+        assertEquals(3, recorder.payloads.size());
+        assertArrayEquals(bytes(10), recorder.payloads.get(0));
+        assertArrayEquals(bytes(300), recorder.payloads.get(1));
+        assertArrayEquals(bytes(70000), recorder.payloads.get(2));
+    }
+
+    @Test
+    public void readsPayloadLargerThanBuffer() throws Exception {
+        byte[] mask = {9, 8, 7, 6};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(frame(0x82, bytes(5000), mask));
+        out.write(frame(0x81, bytes(5), null));
+        Recorder recorder = readAll(new ByteArrayInputStream(out.toByteArray()), 1024);
+
+        assertEquals(2, recorder.payloads.size());
+        assertArrayEquals(bytes(5000), recorder.payloads.get(0));
+        assertArrayEquals(bytes(5), recorder.payloads.get(1));
+    }
+
+    @Test
+    public void streamsPayloadLargerThanBufferInParts() throws Exception {
+        byte[] mask = {9, 8, 7, 6};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(frame(0x82, bytes(5001), mask));
+        out.write(frame(0x81, bytes(5), null));
+        PartRecorder recorder = new PartRecorder();
+        try {
+            new FrameReader(new ByteArrayInputStream(out.toByteArray()), recorder, 1024).run();
+            fail("EOFException expected");
+        } catch (EOFException e) {
+            // end of stream
+        }
+
+        assertTrue(recorder.count >= 5);
+        assertTrue(recorder.sawLast);
+        assertArrayEquals(bytes(5001), recorder.parts.toByteArray());
+        assertEquals(1, recorder.payloads.size());
+        assertArrayEquals(bytes(5), recorder.payloads.get(0));
+    }
+
+    @Test
+    public void feedsFramesInPushMode() throws Exception {
+        byte[] mask = {1, 2, 3, 4};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(frame(0x81, bytes(10), mask));
+        out.write(frame(0x82, bytes(5000), mask));
+        out.write(frame(0x82, bytes(300), null));
+        byte[] data = out.toByteArray();
+
+        Recorder recorder = new Recorder();
+        FrameReader reader = new FrameReader(null, recorder, 1024);
+        for (int i = 0; i < data.length; i += 7) {
+            reader.feed(data, i, Math.min(7, data.length - i));
+        }
+
+        assertEquals(3, recorder.payloads.size());
+        assertArrayEquals(bytes(10), recorder.payloads.get(0));
+        assertArrayEquals(bytes(5000), recorder.payloads.get(1));
+        assertArrayEquals(bytes(300), recorder.payloads.get(2));
+    }
+
+    @Test
+    public void feedsPayloadLargerThanBufferInParts() throws Exception {
+        byte[] mask = {9, 8, 7, 6};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(frame(0x82, bytes(5001), mask));
+        out.write(frame(0x81, bytes(5), null));
+        byte[] data = out.toByteArray();
+
+        PartRecorder recorder = new PartRecorder();
+        FrameReader reader = new FrameReader(null, recorder, 1024);
+        reader.feed(data, 0, 600);
+        reader.feed(data, 600, data.length - 600);
+
+        assertTrue(recorder.sawLast);
+        assertArrayEquals(bytes(5001), recorder.parts.toByteArray());
+        assertEquals(1, recorder.payloads.size());
+        assertArrayEquals(bytes(5), recorder.payloads.get(0));
+    }
+}
@@ -0,0 +1,283 @@
+package net.hiroq.rxwsc;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FrameWriterTest {
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        final AtomicInteger flushes = new AtomicInteger();
+
+        @Override
+        public void flush() {
+            flushes.incrementAndGet();
+        }
+    }
+
+    private static final FrameWriter.Callback FAIL = new FrameWriter.Callback() {
+        @Override
+        public void onError(IOException e) {
+            fail(e.toString());
+        }
+    };
+
+    private static void awaitClose(FrameWriter writer) throws InterruptedException {
+        final CountDownLatch closed = new CountDownLatch(1);
+        writer.close(new Runnable() {
+            @Override
+            public void run() {
+                closed.countDown();
+            }
+        });
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void writesFramesFromManyThreadsInOrderPerThread() throws Exception {
+        final FrameWriter writer = new FrameWriter("test", FAIL);
+        CountingOutputStream out = new CountingOutputStream();
+        writer.start(out);
+
+        final int threads = 4;
+        final int frames = 1000;
+        Thread[] producers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            producers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < frames; i++) {
+                        writer.offer(OutboundFrame.of(new byte[]{(byte) id, (byte) (i >>> 8), (byte) i}));
+                    }
+                }
+            });
+            producers[t].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        awaitClose(writer);
+
+        byte[] written = out.toByteArray();
+        assertEquals(threads * frames * 3, written.length);
+        int[] next = new int[threads];
+        for (int i = 0; i < written.length; i += 3) {
+            int id = written[i];
+            int sequence = ((written[i + 1] & 0xFF) << 8) | (written[i + 2] & 0xFF);
+            assertEquals(next[id]++, sequence);
+        }
+        assertEquals(0, writer.getQueueDepth());
+    }
+
+    @Test
+    public void flushesOncePerDrainWithLinger() throws Exception {
+        FrameWriter writer = new FrameWriter("test", FAIL);
+        writer.setLinger(200, TimeUnit.MILLISECONDS);
+        CountingOutputStream out = new CountingOutputStream();
+        writer.start(out);
+
+        for (int i = 0; i < 100; i++) {
+            writer.offer(OutboundFrame.of(new byte[]{(byte) i}));
+        }
+        awaitClose(writer);
+
+        assertEquals(100, out.size());
+        assertTrue("flushes=" + out.flushes.get(), out.flushes.get() <= 2);
+    }
+
+    @Test
+    public void queuesFramesUntilStarted() throws Exception {
+        FrameWriter writer = new FrameWriter("test", FAIL);
+        writer.offer(OutboundFrame.of(new byte[]{1, 2}));
+        writer.offer(OutboundFrame.of(new byte[]{3}));
+        assertEquals(2, writer.getQueueDepth());
+
+        CountingOutputStream out = new CountingOutputStream();
+        writer.start(out);
+        awaitClose(writer);
+
+        assertArrayEquals(new byte[]{1, 2, 3}, out.toByteArray());
+        assertFalse(writer.offer(OutboundFrame.of(new byte[]{4})));
+    }
+
+    private static final Runnable NO_WAKEUP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    /**
+     * Pre-encoded two byte frame: header with opcode, then tag
+     */
+    private static OutboundFrame frame(int opcode, int tag, boolean bulk) {
+        OutboundFrame frame = OutboundFrame.of(new byte[]{(byte) (0x80 | opcode), (byte) tag});
+        frame.setBulk(bulk);
+        return frame;
+    }
+
+    private static String drain(FrameWriter writer) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (writer.writeNext(out)) {
+        }
+        byte[] written = out.toByteArray();
+        StringBuilder tags = new StringBuilder();
+        for (int i = 1; i < written.length; i += 2) {
+            tags.append((char) written[i]);
+        }
+        return tags.toString();
+    }
+
+    @Test
+    public void controlFramesGoAheadOfQueuedData() {
+        FrameWriter writer = new FrameWriter(FAIL, NO_WAKEUP);
+        writer.offer(frame(HybiParser.OP_BINARY, 'b', true));
+        writer.offer(frame(HybiParser.OP_BINARY, 'h', false));
+        writer.offer(frame(0x0A, 'p', false));
+
+        assertEquals("phb", drain(writer));
+        assertEquals(0, writer.getQueueDepth());
+    }
+
+    @Test
+    public void bulkIsLetThroughAfterBurst() {
+        FrameWriter writer = new FrameWriter(FAIL, NO_WAKEUP);
+        writer.setHighBurst(2);
+        writer.offer(frame(HybiParser.OP_BINARY, 'x', true));
+        writer.offer(frame(HybiParser.OP_BINARY, 'y', true));
+        for (int i = 0; i < 5; i++) {
+            writer.offer(frame(HybiParser.OP_BINARY, '0' + i, false));
+        }
+
+        assertEquals("01x23y4", drain(writer));
+    }
+
+    private static class RecordingListener implements OutboundFrame.Listener {
+        int written;
+        Throwable failed;
+
+        @Override
+        public void onWritten() {
+            written++;
+        }
+
+        @Override
+        public void onFailed(Throwable e) {
+            failed = e;
+        }
+    }
+
+    @Test
+    public void listenersAreToldAfterFlush() {
+        FrameWriter writer = new FrameWriter(FAIL, NO_WAKEUP);
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        OutboundFrame frame = frame(HybiParser.OP_BINARY, 'a', false);
+        frame.setListener(first);
+        writer.offer(frame);
+        frame = frame(HybiParser.OP_BINARY, 'b', false);
+        frame.setListener(second);
+        writer.offer(frame);
+
+        assertEquals("ab", drain(writer));
+        assertEquals(0, first.written);
+        writer.flushed();
+        assertEquals(1, first.written);
+        assertEquals(1, second.written);
+        writer.flushed();
+        assertEquals(1, first.written);
+    }
+
+    @Test
+    public void listenersOfDroppedFramesFail() {
+        FrameWriter writer = new FrameWriter(FAIL, NO_WAKEUP);
+        RecordingListener unflushed = new RecordingListener();
+        RecordingListener queued = new RecordingListener();
+        OutboundFrame frame = frame(HybiParser.OP_BINARY, 'a', false);
+        frame.setListener(unflushed);
+        writer.offer(frame);
+        writer.writeNext(new ByteArrayOutputStream());
+        frame = frame(HybiParser.OP_BINARY, 'b', true);
+        frame.setListener(queued);
+        writer.offer(frame);
+
+        writer.close(null);
+        writer.finish();
+        assertTrue(unflushed.failed instanceof IOException);
+        assertTrue(queued.failed instanceof IOException);
+        assertEquals(0, unflushed.written + queued.written);
+    }
+
+    @Test
+    public void frameOfferedAfterFinishIsRefused() {
+        FrameWriter writer = new FrameWriter(FAIL, NO_WAKEUP);
+        writer.finish();
+
+        assertFalse(writer.offer(frame(HybiParser.OP_BINARY, 'a', true)));
+        assertEquals(0, writer.getQueueDepth());
+        assertEquals(0, writer.getQueuedBytes());
+    }
+
+    @Test
+    public void writabilityFollowsWatermarks() {
+        FrameWriter writer = new FrameWriter(FAIL, NO_WAKEUP);
+        writer.setWatermarks(4, 6);
+        final StringBuilder changes = new StringBuilder();
+        writer.setWritabilityListener(new FrameWriter.WritabilityListener() {
+            @Override
+            public void onWritabilityChanged(boolean writable) {
+                changes.append(writable ? 'W' : 'U');
+            }
+        });
+
+        for (int i = 0; i < 4; i++) {
+            writer.offer(frame(HybiParser.OP_BINARY, 'a' + i, false));
+        }
+        assertFalse(writer.isWritable());
+        assertEquals(8, writer.getQueuedBytes());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeNext(out);
+        assertFalse(writer.isWritable());
+        writer.writeNext(out);
+        assertTrue(writer.isWritable());
+        assertEquals("UW", changes.toString());
+    }
+
+    @Test
+    public void runtimeExceptionFailsFrameAndConnection() throws Exception {
+        final AtomicInteger errors = new AtomicInteger();
+        FrameWriter writer = new FrameWriter("test", new FrameWriter.Callback() {
+            @Override
+            public void onError(IOException e) {
+                errors.incrementAndGet();
+            }
+        });
+        RecordingListener broken = new RecordingListener();
+        RecordingListener queued = new RecordingListener();
+        OutboundFrame frame = frame(HybiParser.OP_BINARY, 'a', false);
+        frame.setListener(broken);
+        writer.offer(frame);
+        frame = frame(HybiParser.OP_BINARY, 'b', false);
+        frame.setListener(queued);
+        writer.offer(frame);
+
+        writer.start(new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                throw new IllegalStateException("broken stream");
+            }
+        });
+        awaitClose(writer);
+
+        assertTrue(broken.failed instanceof IOException);
+        assertTrue(broken.failed.getCause() instanceof IllegalStateException);
+        assertTrue(queued.failed instanceof IOException);
+        assertEquals(1, errors.get());
+    }
+}
@@ -0,0 +1,136 @@
+package net.hiroq.rxwsc;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.ProtocolException;
+import java.security.MessageDigest;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class HandshakeTest {
+    private static final String ACCEPT = "s3pPLMBiTxaQ9kYGzzhZRbK+xOo=";
+    private static final String RESPONSE = "HTTP/1.1 101 Switching Protocols\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "sec-websocket-accept:  " + ACCEPT + " \r\n"
+            + "\r\n";
+
+    @Test
+    public void encodesRequest() throws Exception {
+        byte[] request = Handshake.request("example.com", "/chat?room=\u00e9", "http://example.com", "dGhlIHNhbXBsZSBub25jZQ==",
+                "permessage-deflate", null);
+
+        assertEquals("GET /chat?room=\u00e9 HTTP/1.1\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Host: example.com\r\n"
+                + "Origin: http://example.com\r\n"
+                + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                + "Sec-WebSocket-Version: 13\r\n"
+                + "Sec-WebSocket-Extensions: permessage-deflate\r\n"
+                + "\r\n", new String(request, "UTF-8"));
+    }
+
+    @Test
+    public void encodesExtraHeaders() throws Exception {
+        List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
+        headers.add(new AbstractMap.SimpleImmutableEntry<String, String>("Authorization", "Bearer token"));
+        byte[] request = Handshake.request("example.com", "/", "http://example.com", "dGhlIHNhbXBsZSBub25jZQ==",
+                null, headers);
+
+        assertTrue(new String(request, "UTF-8").endsWith("Sec-WebSocket-Version: 13\r\n"
+                + "Authorization: Bearer token\r\n"
+                + "\r\n"));
+    }
+
+    @Test
+    public void encodesKeysInBase64() throws Exception {
+        assertEquals("", Base64.encode(new byte[0]));
+        assertEquals("Zg==", Base64.encode("f".getBytes("US-ASCII")));
+        assertEquals("Zm8=", Base64.encode("fo".getBytes("US-ASCII")));
+        assertEquals("Zm9vYmFy", Base64.encode("foobar".getBytes("US-ASCII")));
+        assertEquals("dGhlIHNhbXBsZSBub25jZQ==", Base64.encode("the sample nonce".getBytes("US-ASCII")));
+
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        sha1.update("dGhlIHNhbXBsZSBub25jZQ==258EAFA5-E914-47DA-95CA-C5AB0DC85B11".getBytes("US-ASCII"));
+        assertEquals(ACCEPT, Base64.encode(sha1.digest()));
+    }
+
+    @Test
+    public void parsesResponseFedByteByByte() throws Exception {
+        byte[] data = (RESPONSE + "frames").getBytes("US-ASCII");
+        Handshake.Response response = new Handshake.Response();
+        int i = 0;
+        while (!response.isComplete()) {
+            assertEquals(1, response.feed(data, i++, 1));
+        }
+
+        assertEquals(RESPONSE.length(), i);
+        assertEquals(101, response.getStatusCode());
+        assertEquals(ACCEPT, response.getAccept());
+        assertNull(response.getExtensions());
+        assertNull(response.validate(ACCEPT, null));
+    }
+
+    @Test
+    public void leavesBytesFollowingResponse() throws Exception {
+        byte[] data = (RESPONSE + "frames").getBytes("US-ASCII");
+        InputStream rest = Handshake.readResponse(new ByteArrayInputStream(data), new Handshake.Response());
+
+        byte[] frames = new byte[6];
+        assertEquals(6, rest.read(frames));
+        assertArrayEquals("frames".getBytes("US-ASCII"), frames);
+    }
+
+    @Test
+    public void rejectsOtherStatus() throws Exception {
+        byte[] data = "HTTP/1.1 404 Not Found\r\n\r\n".getBytes("US-ASCII");
+        try {
+            new Handshake.Response().feed(data, 0, data.length);
+            fail("ProtocolException expected");
+        } catch (ProtocolException e) {
+            assertTrue(e.getMessage().contains("404"));
+        }
+    }
+
+    @Test
+    public void rejectsBadAccept() throws Exception {
+        byte[] data = RESPONSE.getBytes("US-ASCII");
+        Handshake.Response response = new Handshake.Response();
+        response.feed(data, 0, data.length);
+        try {
+            response.validate("other", null);
+            fail("ProtocolException expected");
+        } catch (ProtocolException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsOversizedResponse() throws Exception {
+        byte[] header = "HTTP/1.1 101 Switching Protocols\r\nX-Padding: ".getBytes("US-ASCII");
+        byte[] padding = new byte[Handshake.MAX_RESPONSE_SIZE];
+        Arrays.fill(padding, (byte) 'a');
+        Handshake.Response response = new Handshake.Response();
+        response.feed(header, 0, header.length);
+        try {
+            response.feed(padding, 0, padding.length);
+            fail("ProtocolException expected");
+        } catch (ProtocolException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = ConnectException.class)
+    public void failsWithoutReply() throws Exception {
+        Handshake.readResponse(new ByteArrayInputStream(new byte[0]), new Handshake.Response());
+    }
+}
@@ -0,0 +1,74 @@
+package net.hiroq.rxwsc;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class KeepAliveTest {
+    @Test
+    public void measuresRoundTripOfEchoedPing() {
+        KeepAlive keepAlive = new KeepAlive(3);
+        byte[] ping = keepAlive.nextPing(1000);
+        assertEquals(KeepAlive.PAYLOAD_LENGTH, ping.length);
+        assertEquals(1, keepAlive.getMissed());
+
+        RttStats stats = keepAlive.onPong(ping, 0, ping.length, 1500);
+        assertNotNull(stats);
+        assertEquals(500, stats.getLast(TimeUnit.NANOSECONDS));
+        assertEquals(500, stats.getMin(TimeUnit.NANOSECONDS));
+        assertEquals(1, stats.getCount());
+        assertEquals(0, keepAlive.getMissed());
+    }
+
+    @Test
+    public void pongAnswersEarlierPingsToo() {
+        KeepAlive keepAlive = new KeepAlive(3);
+        keepAlive.nextPing(100);
+        byte[] second = keepAlive.nextPing(200);
+        byte[] third = keepAlive.nextPing(300);
+
+        assertEquals(100, keepAlive.onPong(second, 0, second.length, 300).getLast(TimeUnit.NANOSECONDS));
+        assertEquals(1, keepAlive.getMissed());
+        // answered already
+        assertNull(keepAlive.onPong(second, 0, second.length, 400));
+        assertNotNull(keepAlive.onPong(third, 0, third.length, 400));
+        assertEquals(0, keepAlive.getMissed());
+    }
+
+    @Test
+    public void ignoresUnsolicitedPongs() {
+        KeepAlive keepAlive = new KeepAlive(3);
+        keepAlive.nextPing(100);
+        assertNull(keepAlive.onPong(new byte[]{1, 2, 3}, 0, 3, 200));
+        assertNull(keepAlive.onPong(new byte[8], 0, 8, 200));
+        assertEquals(1, keepAlive.getMissed());
+    }
+
+    @Test
+    public void stopsPingingAfterMaxMissed() {
+        KeepAlive keepAlive = new KeepAlive(2);
+        assertNotNull(keepAlive.nextPing(1));
+        assertNotNull(keepAlive.nextPing(2));
+        assertNull(keepAlive.nextPing(3));
+        assertEquals(2, keepAlive.getMissed());
+    }
+
+    @Test
+    public void computesWindowStats() {
+        KeepAlive keepAlive = new KeepAlive(1);
+        RttStats stats = null;
+        for (int i = 1; i <= 200; i++) {
+            long sent = i * 10000L;
+            byte[] ping = keepAlive.nextPing(sent);
+            stats = keepAlive.onPong(ping, 0, ping.length, sent + i);
+        }
+        // window holds round trips 73..200
+        assertEquals(200, stats.getLast(TimeUnit.NANOSECONDS));
+        assertEquals(1, stats.getMin(TimeUnit.NANOSECONDS));
+        assertEquals((73 + 200) / 2, stats.getAverage(TimeUnit.NANOSECONDS));
+        assertEquals(199, stats.getP99(TimeUnit.NANOSECONDS));
+        assertEquals(200, stats.getCount());
+    }
+}
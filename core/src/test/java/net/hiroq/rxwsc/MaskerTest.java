@@ -0,0 +1,81 @@
+package net.hiroq.rxwsc;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class MaskerTest {
+    private static final byte[] KEY = {(byte) 0xA1, 0x12, (byte) 0xC3, 0x74};
+    private static final int KEY_INT = 0xA112C374;
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        return bytes;
+    }
+
+    private static byte[] naive(byte[] payload, int offset, int length) {
+        byte[] result = payload.clone();
+        for (int i = 0; i < length; i++) {
+            result[offset + i] = (byte) (payload[offset + i] ^ KEY[i % 4]);
+        }
+        return result;
+    }
+
+    @Test
+    public void masksLikeByteLoop() {
+        for (int length = 0; length < 70; length++) {
+            for (int offset = 0; offset < 9; offset++) {
+                byte[] payload = bytes(offset + length + 3);
+                byte[] expected = naive(payload, offset, length);
+                Masker.mask(payload, offset, length, KEY_INT);
+                assertArrayEquals("length=" + length + " offset=" + offset, expected, payload);
+            }
+        }
+    }
+
+    @Test
+    public void rotatedKeyContinuesMasking() {
+        byte[] payload = bytes(101);
+        byte[] expected = naive(payload, 0, payload.length);
+
+        int key = Masker.mask(payload, 0, 17, KEY_INT);
+        key = Masker.mask(payload, 17, 33, key);
+        Masker.mask(payload, 50, 51, key);
+        assertArrayEquals(expected, payload);
+    }
+
+    @Test
+    public void masksDirectBufferOfEitherOrder() {
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            for (int length = 0; length < 40; length++) {
+                byte[] payload = bytes(3 + length + 2);
+                byte[] expected = naive(payload, 3, length);
+                ByteBuffer buffer = ByteBuffer.allocateDirect(payload.length).order(order);
+                buffer.put(payload);
+                buffer.position(1).limit(payload.length - 1);
+
+                Masker.mask(buffer, 3, length, KEY_INT);
+                assertEquals(1, buffer.position());
+                assertEquals(payload.length - 1, buffer.limit());
+                assertEquals(order, buffer.order());
+                byte[] masked = new byte[payload.length];
+                buffer.clear();
+                buffer.get(masked);
+                assertArrayEquals(order + " length=" + length, expected, masked);
+            }
+        }
+    }
+
+    @Test
+    public void putKeyIsBigEndian() {
+        byte[] buffer = new byte[6];
+        Masker.putKey(KEY_INT, buffer, 2);
+        assertArrayEquals(new byte[]{0, 0, KEY[0], KEY[1], KEY[2], KEY[3]}, buffer);
+    }
+}
@@ -0,0 +1,165 @@
+package net.hiroq.rxwsc;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import rx.Subscription;
+import rx.observers.TestSubscriber;
+import rx.subjects.PublishSubject;
+
+import static org.junit.Assert.*;
+
+public class MessageRouterTest {
+    private static RxWebSocketClient.Event text(String text) {
+        return new RxWebSocketClient.Event(RxWebSocketClient.EventType.MESSAGE_STRING, text);
+    }
+
+    private static RxWebSocketClient.Event binary(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return new RxWebSocketClient.Event(RxWebSocketClient.EventType.MESSAGE_BINARY, bytes);
+    }
+
+    @Test
+    public void deliversMessagesOnlyToTheirTopic() {
+        PublishSubject<RxWebSocketClient.Event> source = PublishSubject.create();
+        MessageRouter<String> router = new MessageRouter<String>(source, MessageRouter.prefix('|'));
+        TestSubscriber<RxWebSocketClient.Event> prices = TestSubscriber.create();
+        TestSubscriber<RxWebSocketClient.Event> news = TestSubscriber.create();
+        router.topic("prices").subscribe(prices);
+        router.topic("news").subscribe(news);
+        router.connect();
+
+        source.onNext(new RxWebSocketClient.Event(RxWebSocketClient.EventType.CONNECT));
+        source.onNext(text("prices|1.08"));
+        source.onNext(text("news|hello"));
+        source.onNext(text("trades|42"));
+        source.onNext(text("no delimiter"));
+
+        prices.assertValueCount(2);
+        assertEquals(RxWebSocketClient.EventType.CONNECT, prices.getOnNextEvents().get(0).getType());
+        assertEquals("prices|1.08", prices.getOnNextEvents().get(1).getString());
+        news.assertValueCount(2);
+        assertEquals(2, router.getUnrouted());
+
+        TestSubscriber<RxWebSocketClient.Event> late = TestSubscriber.create();
+        router.topic("trades").subscribe(late);
+        late.assertValueCount(1);
+        assertEquals(RxWebSocketClient.EventType.CONNECT, late.getOnNextEvents().get(0).getType());
+
+        source.onCompleted();
+        prices.assertCompleted();
+        late.assertCompleted();
+    }
+
+    @Test
+    public void subscribersRunOutsideTheRouterLock() throws Exception {
+        PublishSubject<RxWebSocketClient.Event> source = PublishSubject.create();
+        final MessageRouter<String> router = new MessageRouter<String>(source, MessageRouter.prefix('|'));
+        final TestSubscriber<RxWebSocketClient.Event> other = TestSubscriber.create();
+        final CountDownLatch joined = new CountDownLatch(1);
+        final AtomicBoolean joinedInTime = new AtomicBoolean();
+        TestSubscriber<RxWebSocketClient.Event> blocking = new TestSubscriber<RxWebSocketClient.Event>() {
+            @Override
+            public void onNext(RxWebSocketClient.Event event) {
+                super.onNext(event);
+                // another thread joins while this subscriber handles CONNECT
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        router.topic("other").subscribe(other);
+                        joined.countDown();
+                    }
+                }).start();
+                try {
+                    joinedInTime.set(joined.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        router.topic("prices").subscribe(blocking);
+        router.connect();
+
+        source.onNext(new RxWebSocketClient.Event(RxWebSocketClient.EventType.CONNECT));
+        assertTrue(joinedInTime.get());
+        other.assertValueCount(1);
+        assertEquals(RxWebSocketClient.EventType.CONNECT, other.getOnNextEvents().get(0).getType());
+    }
+
+    @Test
+    public void unsubscribedTopicIsRemoved() {
+        PublishSubject<RxWebSocketClient.Event> source = PublishSubject.create();
+        MessageRouter<Integer> router = new MessageRouter<Integer>(source, MessageRouter.byteAt(1));
+        router.connect();
+        TestSubscriber<RxWebSocketClient.Event> first = TestSubscriber.create();
+        Subscription second = router.topic(200).subscribe(TestSubscriber.<RxWebSocketClient.Event>create());
+        router.topic(200).subscribe(first);
+        assertEquals(2, router.getSubscriberCount(200));
+
+        source.onNext(binary(0, 200, 7));
+        source.onNext(binary(0, 100));
+        source.onNext(binary(0));
+        first.assertValueCount(1);
+        assertEquals(2, router.getUnrouted());
+
+        second.unsubscribe();
+        first.unsubscribe();
+        assertEquals(0, router.getSubscriberCount(200));
+    }
+
+    @Test
+    public void chunksFollowTheirFirstChunk() {
+        PublishSubject<RxWebSocketClient.Event> source = PublishSubject.create();
+        MessageRouter<String> router = new MessageRouter<String>(source, MessageRouter.prefix(':'));
+        TestSubscriber<RxWebSocketClient.Event> logs = TestSubscriber.create();
+        router.topic("log").subscribe(logs);
+        router.connect();
+
+        for (long id = 1; id <= 2; id++) {
+            String first = (id == 1) ? "log:" : "other:";
+            source.onNext(new RxWebSocketClient.Event(RxWebSocketClient.EventType.MESSAGE_STRING, id,
+                    first.getBytes(Utf8Decoder.UTF_8), false));
+            source.onNext(new RxWebSocketClient.Event(RxWebSocketClient.EventType.MESSAGE_STRING, id,
+                    "tail".getBytes(Utf8Decoder.UTF_8), true));
+        }
+
+        logs.assertValueCount(2);
+        assertTrue(logs.getOnNextEvents().get(1).isLast());
+        assertEquals(1, router.getUnrouted());
+    }
+
+    @Test
+    public void pooledMessageIsRetainedPerSubscriber() {
+        PublishSubject<RxWebSocketClient.Event> source = PublishSubject.create();
+        MessageRouter<Integer> router = new MessageRouter<Integer>(source, MessageRouter.byteAt(0));
+        TestSubscriber<RxWebSocketClient.Event> first = TestSubscriber.create();
+        TestSubscriber<RxWebSocketClient.Event> second = TestSubscriber.create();
+        router.topic(0).subscribe(first);
+        router.topic(0).subscribe(second);
+        router.connect();
+
+        BufferPool pool = new BufferPool();
+        source.onNext(new RxWebSocketClient.Event(pool, pool.acquire(1), 1));
+        first.getOnNextEvents().get(0).release();
+        assertEquals(0, pool.getFreeCount(0));
+        second.getOnNextEvents().get(0).release();
+        assertEquals(1, pool.getFreeCount(0));
+    }
+
+    @Test
+    public void jsonFieldReadsValueWithoutParsing() {
+        MessageRouter.KeyExtractor<String> channel = MessageRouter.jsonField("channel");
+        assertEquals("trades", channel.extract(text("{\"id\":1, \"channel\" : \"trades\", \"data\":{}}")));
+        assertEquals("a\"b", channel.extract(text("{\"channel\":\"a\\\"b\"}")));
+        assertEquals("7", channel.extract(text("{\"channel\":7}")));
+        assertNull(channel.extract(text("{\"channel\":null}")));
+        assertNull(channel.extract(text("{\"x\":\"channel\"}")));
+        assertNull(channel.extract(binary(1, 2)));
+    }
+}
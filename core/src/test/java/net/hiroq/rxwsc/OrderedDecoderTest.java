@@ -0,0 +1,132 @@
+package net.hiroq.rxwsc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.functions.Action1;
+import rx.observers.TestSubscriber;
+import rx.schedulers.Schedulers;
+import rx.schedulers.TestScheduler;
+
+import static org.junit.Assert.*;
+
+public class OrderedDecoderTest {
+    private static final Decoder<Integer> NUMBER = new Decoder<Integer>() {
+        @Override
+        public Integer decode(RxWebSocketClient.Event message) {
+            return Integer.valueOf(message.getString());
+        }
+    };
+
+    private static List<RxWebSocketClient.Event> messages(int count) {
+        List<RxWebSocketClient.Event> messages = new ArrayList<RxWebSocketClient.Event>();
+        for (int i = 0; i < count; i++) {
+            messages.add(new RxWebSocketClient.Event(RxWebSocketClient.EventType.MESSAGE_STRING, String.valueOf(i)));
+        }
+        return messages;
+    }
+
+    @Test
+    public void parallelDecodingKeepsMessageOrder() {
+        final Random random = new Random(7);
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        Decoder<Integer> slow = new Decoder<Integer>() {
+            @Override
+            public Integer decode(RxWebSocketClient.Event message) throws Exception {
+                threads.add(Thread.currentThread().getName());
+                Thread.sleep(random.nextInt(3));
+                return NUMBER.decode(message);
+            }
+        };
+        TestSubscriber<Integer> subscriber = TestSubscriber.create();
+        Observable.from(messages(200))
+                .compose(RxWebSocketClient.decode(slow, Schedulers.io(), 4))
+                .subscribe(subscriber);
+
+        subscriber.awaitTerminalEvent(10, TimeUnit.SECONDS);
+        subscriber.assertNoErrors();
+        subscriber.assertValueCount(200);
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i, subscriber.getOnNextEvents().get(i).intValue());
+        }
+        assertTrue(threads.size() > 1);
+    }
+
+    @Test
+    public void skipsConnectionEventsAndNullValues() {
+        Decoder<String> evenOnly = new Decoder<String>() {
+            @Override
+            public String decode(RxWebSocketClient.Event message) {
+                return (Integer.parseInt(message.getString()) % 2 == 0) ? message.getString() : null;
+            }
+        };
+        TestSubscriber<String> subscriber = TestSubscriber.create();
+        Observable.just(new RxWebSocketClient.Event(RxWebSocketClient.EventType.CONNECT))
+                .concatWith(Observable.from(messages(5)))
+                .compose(RxWebSocketClient.decode(evenOnly))
+                .subscribe(subscriber);
+
+        subscriber.assertValues("0", "2", "4");
+        subscriber.assertCompleted();
+    }
+
+    @Test
+    public void requestsOnlyWhatTheSubscriberCanTake() {
+        final List<Long> requests = new ArrayList<Long>();
+        TestSubscriber<Integer> subscriber = TestSubscriber.create(0);
+        Observable.from(messages(100))
+                .doOnRequest(new Action1<Long>() {
+                    @Override
+                    public void call(Long n) {
+                        requests.add(n);
+                    }
+                })
+                .compose(RxWebSocketClient.decode(NUMBER))
+                .subscribe(subscriber);
+
+        subscriber.assertValueCount(0);
+        subscriber.requestMore(3);
+        subscriber.assertValues(0, 1, 2);
+        long requested = 0;
+        for (long n : requests) {
+            requested += n;
+        }
+        assertEquals(4 + 3, requested);
+    }
+
+    @Test
+    public void failsInOrderAndReleasesPendingMessages() {
+        BufferPool pool = new BufferPool();
+        TestScheduler scheduler = new TestScheduler();
+        Decoder<Integer> failing = new Decoder<Integer>() {
+            @Override
+            public Integer decode(RxWebSocketClient.Event message) {
+                if (message.getBuffer().get(0) == 1) {
+                    throw new IllegalStateException("bad message");
+                }
+                return (int) message.getBuffer().get(0);
+            }
+        };
+        List<RxWebSocketClient.Event> messages = new ArrayList<RxWebSocketClient.Event>();
+        for (int i = 0; i < 3; i++) {
+            BufferPool.Buffer buffer = pool.acquire(1);
+            buffer.mArray[0] = (byte) i;
+            messages.add(new RxWebSocketClient.Event(pool, buffer, 1));
+        }
+        TestSubscriber<Integer> subscriber = TestSubscriber.create();
+        Observable.from(messages).compose(RxWebSocketClient.decode(failing, scheduler, 1)).subscribe(subscriber);
+
+        scheduler.triggerActions();
+        subscriber.assertValues(0);
+        subscriber.assertError(IllegalStateException.class);
+        assertEquals(3, pool.getFreeCount(0));
+    }
+}
@@ -0,0 +1,104 @@
+package net.hiroq.rxwsc;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class OutboundFrameTest {
+    private static final int KEY = 0x01020304;
+    private static final byte[] HEADER = {(byte) 0x82, (byte) 0xFE, 0, 0, 1, 2, 3, 4};
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 7);
+        }
+        return bytes;
+    }
+
+    private static byte[] expected(byte[] payload, int offset, int length) {
+        byte[] masked = Arrays.copyOfRange(payload, offset, offset + length);
+        Masker.mask(masked, 0, masked.length, KEY);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(HEADER, 0, HEADER.length);
+        out.write(masked, 0, masked.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] write(OutboundFrame frame) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frame.writeTo(out, new byte[64]);
+        assertEquals(frame.size(), out.size());
+        return out.toByteArray();
+    }
+
+    @Test
+    public void masksCopyOfArrayRange() throws Exception {
+        byte[] payload = bytes(300);
+        byte[] original = payload.clone();
+
+        byte[] written = write(OutboundFrame.of(HEADER, HEADER.length, payload, 10, 250, true, KEY, false));
+        assertArrayEquals(expected(original, 10, 250), written);
+        assertArrayEquals(original, payload);
+    }
+
+    @Test
+    public void masksArrayInPlaceWhenAllowed() throws Exception {
+        byte[] payload = bytes(300);
+        byte[] original = payload.clone();
+
+        byte[] written = write(OutboundFrame.of(HEADER, HEADER.length, payload, 10, 250, true, KEY, true));
+        assertArrayEquals(expected(original, 10, 250), written);
+        assertFalse(Arrays.equals(original, payload));
+    }
+
+    @Test
+    public void masksCopyOfDirectBuffer() throws Exception {
+        byte[] original = bytes(300);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(300);
+        buffer.put(original);
+        buffer.position(10);
+        buffer.limit(260);
+
+        byte[] written = write(OutboundFrame.of(HEADER, HEADER.length, buffer, true, KEY, false));
+        assertArrayEquals(expected(original, 10, 250), written);
+        assertEquals(10, buffer.position());
+        assertEquals(original[20], buffer.get(20));
+    }
+
+    @Test
+    public void masksHeapBufferInPlaceWhenAllowed() throws Exception {
+        byte[] original = bytes(300);
+        ByteBuffer buffer = ByteBuffer.wrap(original.clone(), 10, 250);
+
+        byte[] written = write(OutboundFrame.of(HEADER, HEADER.length, buffer, true, KEY, true));
+        assertArrayEquals(expected(original, 10, 250), written);
+        assertEquals(10, buffer.position());
+    }
+
+    @Test
+    public void masksDirectBufferInPlaceWhenAllowed() throws Exception {
+        byte[] original = bytes(300);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(300);
+        buffer.put(original);
+        buffer.flip();
+
+        byte[] written = write(OutboundFrame.of(HEADER, HEADER.length, buffer, true, KEY, true));
+        assertArrayEquals(expected(original, 0, 300), written);
+        assertEquals((byte) (original[0] ^ 1), buffer.get(0));
+    }
+
+    @Test
+    public void masksCopyOfReadOnlyBufferEvenWhenInPlaceAllowed() throws Exception {
+        byte[] original = bytes(300);
+        ByteBuffer buffer = ByteBuffer.wrap(original.clone()).asReadOnlyBuffer();
+
+        byte[] written = write(OutboundFrame.of(HEADER, HEADER.length, buffer, true, KEY, true));
+        assertArrayEquals(expected(original, 0, 300), written);
+        assertEquals(original[0], buffer.get(0));
+    }
+}
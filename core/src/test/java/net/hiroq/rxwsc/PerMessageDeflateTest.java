@@ -0,0 +1,100 @@
+package net.hiroq.rxwsc;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class PerMessageDeflateTest {
+    private static PerMessageDeflate negotiate(String response) throws ProtocolException {
+        return PerMessageDeflate.negotiate(new DeflateOptions().setThreshold(0), response);
+    }
+
+    @Test
+    public void inflatesRfcExample() throws Exception {
+        // RFC 7692 7.2.3.1, "Hello" compressed without the trailing empty block
+        byte[] compressed = {(byte) 0xf2, 0x48, (byte) 0xcd, (byte) 0xc9, (byte) 0xc9, 0x07, 0x00};
+        PerMessageDeflate deflate = negotiate("permessage-deflate");
+
+        assertEquals("Hello", new String(deflate.inflate(compressed, 0, compressed.length), "UTF-8"));
+        // context takeover, same message again refers to the first one
+        byte[] second = {(byte) 0xf2, 0x00, 0x11, 0x00, 0x00};
+        assertEquals("Hello", new String(deflate.inflate(second, 0, second.length), "UTF-8"));
+    }
+
+    @Test
+    public void roundTripsMessagesWithContextTakeover() throws Exception {
+        PerMessageDeflate sender = negotiate("permessage-deflate");
+        PerMessageDeflate receiver = negotiate("permessage-deflate");
+
+        for (int i = 0; i < 20; i++) {
+            StringBuilder json = new StringBuilder();
+            for (int n = 0; n < 50 + i * 20; n++) {
+                json.append("{\"id\":").append(n).append(",\"name\":\"item").append(n).append("\"},");
+            }
+            byte[] message = json.toString().getBytes("UTF-8");
+            int length = sender.deflate(message, 0, message.length);
+            byte[] compressed = Arrays.copyOf(sender.getDeflated(), length);
+
+            assertTrue(compressed.length < message.length / 3);
+            assertArrayEquals(message, receiver.inflate(compressed, 0, compressed.length));
+        }
+    }
+
+    @Test
+    public void negotiatesParameters() throws Exception {
+        PerMessageDeflate deflate = negotiate("permessage-deflate; server_no_context_takeover; client_max_window_bits=10");
+
+        assertTrue(deflate.shouldCompress(1024));
+        assertFalse(deflate.shouldCompress(1025));
+        assertTrue(negotiate("permessage-deflate; server_max_window_bits=\"12\"").shouldCompress(100000));
+    }
+
+    @Test
+    public void keepsSmallMessagesUncompressed() throws Exception {
+        PerMessageDeflate deflate = PerMessageDeflate.negotiate(new DeflateOptions().setThreshold(100), "permessage-deflate");
+
+        assertFalse(deflate.shouldCompress(99));
+        assertTrue(deflate.shouldCompress(100));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsUnknownParameter() throws Exception {
+        negotiate("permessage-deflate; foo");
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsBadWindowBits() throws Exception {
+        negotiate("permessage-deflate; client_max_window_bits=16");
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsDuplicatedParameter() throws Exception {
+        negotiate("permessage-deflate; server_no_context_takeover; server_no_context_takeover");
+    }
+
+    @Test
+    public void offersOptions() {
+        DeflateOptions options = new DeflateOptions().setServerMaxWindowBits(10).setClientNoContextTakeover(true);
+
+        assertEquals("permessage-deflate; client_no_context_takeover; server_max_window_bits=10; client_max_window_bits",
+                options.toOffer());
+    }
+
+    @Test
+    public void writesCompressedMessageWithRsv1() throws Exception {
+        PerMessageDeflate deflate = negotiate("permessage-deflate");
+        byte[] message = new byte[1000];
+        OutboundFrame frame = OutboundFrame.message(1, message, false, 0, deflate);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frame.writeTo(out, new byte[64]);
+
+        byte[] written = out.toByteArray();
+        assertEquals(0x80 | HybiParser.RSV1 | 1, written[0] & 0xFF);
+        assertEquals(written.length - 2, written[1]);
+        assertArrayEquals(new byte[1000], negotiate("permessage-deflate").inflate(written, 2, written.length - 2));
+    }
+}
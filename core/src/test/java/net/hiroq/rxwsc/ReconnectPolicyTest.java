@@ -0,0 +1,42 @@
+package net.hiroq.rxwsc;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ReconnectPolicyTest {
+    @Test
+    public void delayCeilingDoublesUpToMax() {
+        ReconnectPolicy policy = new ReconnectPolicy().setBackoff(100, 1000, TimeUnit.NANOSECONDS);
+        Random random = new Random(1);
+        long[] ceilings = {100, 200, 400, 800, 1000, 1000};
+        for (int attempt = 0; attempt < ceilings.length; attempt++) {
+            long max = 0;
+            for (int i = 0; i < 1000; i++) {
+                long delay = policy.nextDelayNanos(attempt, random);
+                assertTrue(delay >= 0 && delay <= ceilings[attempt]);
+                max = Math.max(max, delay);
+            }
+            // full jitter spreads delays over the whole range
+            assertTrue(max > ceilings[attempt] * 9 / 10);
+        }
+    }
+
+    @Test
+    public void largeAttemptsDoNotOverflow() {
+        ReconnectPolicy policy = new ReconnectPolicy().setBackoff(1, 30, TimeUnit.SECONDS);
+        long delay = policy.nextDelayNanos(200, new Random(1));
+        assertTrue(delay >= 0 && delay <= TimeUnit.SECONDS.toNanos(30));
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() {
+        ReconnectPolicy policy = new ReconnectPolicy().setMaxAttempts(2);
+        Random random = new Random(1);
+        assertTrue(policy.nextDelayNanos(1, random) >= 0);
+        assertEquals(-1, policy.nextDelayNanos(2, random));
+    }
+}
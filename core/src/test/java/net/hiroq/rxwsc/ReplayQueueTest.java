@@ -0,0 +1,109 @@
+package net.hiroq.rxwsc;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReplayQueueTest {
+    private static final Runnable NO_WAKEUP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private static FrameWriter writer() {
+        return new FrameWriter(new FrameWriter.Callback() {
+            @Override
+            public void onError(IOException e) {
+                fail(e.toString());
+            }
+        }, NO_WAKEUP);
+    }
+
+    private static OutboundFrame frame(int length) {
+        byte[] payload = new byte[length];
+        return OutboundFrame.message(HybiParser.OP_BINARY, payload, false, 0, null);
+    }
+
+    @Test
+    public void boundedByCount() {
+        ReplayQueue queue = new ReplayQueue(2, 1024);
+        assertTrue(queue.offer(frame(1)));
+        assertTrue(queue.offer(frame(1)));
+        assertFalse(queue.offer(frame(1)));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void boundedByBytes() {
+        ReplayQueue queue = new ReplayQueue(10, 100);
+        assertTrue(queue.offer(frame(60)));
+        assertFalse(queue.offer(frame(60)));
+        assertTrue(queue.offer(frame(10)));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void drainsInOrder() throws Exception {
+        ReplayQueue queue = new ReplayQueue(10, 1024);
+        queue.offer(frame(1));
+        queue.offer(frame(2));
+        queue.offer(frame(3));
+
+        FrameWriter writer = writer();
+        assertEquals(3, queue.drainTo(writer, null));
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.bytes());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (writer.writeNext(out)) {
+            // write all
+        }
+        byte[] written = out.toByteArray();
+        assertEquals(2 + 1 + 2 + 2 + 2 + 3, written.length);
+        assertEquals(1, written[1]);
+        assertEquals(2, written[4]);
+        assertEquals(3, written[8]);
+    }
+
+    @Test
+    public void keepsFramesWhenWriterIsClosing() {
+        ReplayQueue queue = new ReplayQueue(10, 1024);
+        queue.offer(frame(1));
+        FrameWriter writer = writer();
+        writer.close(null);
+        assertEquals(0, queue.drainTo(writer, null));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void requeuesUnwrittenFramesAheadAndDropsWhatDoesNotFit() throws Exception {
+        ReplayQueue queue = new ReplayQueue(3, 1024);
+        queue.offer(frame(3));
+
+        FrameWriter old = writer();
+        old.offer(frame(1));
+        old.offer(frame(2));
+        old.offer(frame(4));
+        List<OutboundFrame> unwritten = old.takeQueued();
+        assertEquals(0, old.getQueueDepth());
+        assertEquals(1, queue.requeue(unwritten));
+        assertEquals(3, queue.size());
+
+        FrameWriter writer = writer();
+        assertEquals(3, queue.drainTo(writer, null));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (writer.writeNext(out)) {
+            // write all
+        }
+        byte[] written = out.toByteArray();
+        assertEquals(2 + 1 + 2 + 2 + 2 + 3, written.length);
+        assertEquals(1, written[1]);
+        assertEquals(2, written[4]);
+        assertEquals(3, written[8]);
+    }
+}
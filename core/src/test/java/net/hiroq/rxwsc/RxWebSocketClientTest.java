@@ -0,0 +1,368 @@
+package net.hiroq.rxwsc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.schedulers.Schedulers;
+
+import static org.junit.Assert.*;
+
+/**
+ * Client against a minimal server on a loopback socket, with and without NioEngine.
+ */
+@RunWith(Parameterized.class)
+public class RxWebSocketClientTest {
+    private static final int OP_TEXT = 1;
+    private static final int OP_CLOSE = 8;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> engines() {
+        return Arrays.asList(new Object[]{"blocking"}, new Object[]{"nio"});
+    }
+
+    private final boolean mNio;
+    private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+    private ServerSocket mServer;
+    private NioEngine mEngine;
+    private RxWebSocketClient mClient;
+
+    public RxWebSocketClientTest(String engine) {
+        mNio = engine.equals("nio");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new ServerSocket(0);
+        mServer.setSoTimeout(5000);
+        mClient = new RxWebSocketClient();
+        if (mNio) {
+            mEngine = new NioEngine(1);
+            mClient.setEngine(mEngine);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mClient.disconnect();
+        if (mEngine != null) {
+            mEngine.shutdown();
+        }
+        mServer.close();
+    }
+
+    @Test
+    public void roundTripsText() throws Exception {
+        connect();
+        Peer peer = accept();
+        assertEvent("CONNECT");
+
+        mClient.send("hello");
+        Frame frame = peer.read();
+        assertEquals(OP_TEXT, frame.opcode);
+        assertEquals("hello", frame.text());
+
+        peer.write(OP_TEXT, "world".getBytes("UTF-8"));
+        assertEvent("MESSAGE_STRING world");
+
+        mClient.disconnect();
+        assertEvent("DISCONNECT");
+        assertEvent("completed");
+        assertNull("connection released", peer.read());
+        peer.close();
+    }
+
+    @Test
+    public void writingBeforeConnectFailsWithoutThrowing() throws Exception {
+        mClient.send("dropped");
+        mClient.send(new byte[]{1});
+        Throwable error = mClient.write("x").get(5, TimeUnit.SECONDS);
+        assertTrue(error instanceof IOException);
+        assertEquals("Connection is closed", error.getMessage());
+        assertNull(mClient.message("x"));
+    }
+
+    @Test
+    public void protocolErrorSendsCloseWithCodeAndEndsStream() throws Exception {
+        mClient.setReconnectPolicy(new ReconnectPolicy().setBackoff(10, 50, TimeUnit.MILLISECONDS));
+        connect();
+        Peer peer = accept();
+        assertEvent("CONNECT");
+
+        // invalid UTF-8 in a text message
+        peer.write(OP_TEXT, new byte[]{(byte) 0xC3, 0x28});
+        Frame close = peer.read();
+        assertEquals(OP_CLOSE, close.opcode);
+        assertEquals(HybiParser.CLOSE_INVALID_DATA, close.code());
+        assertNull("connection released", peer.read());
+        assertEvent("error HybiParser.ProtocolError");
+
+        // not retried, and nothing can be sent on the closed connection
+        Throwable late = mClient.write("late").get(5, TimeUnit.SECONDS);
+        assertTrue(late instanceof IOException);
+        assertEquals("Connection is closed", late.getMessage());
+        peer.close();
+    }
+
+    @Test
+    public void serverCloseIsEchoedAndNotRetried() throws Exception {
+        mClient.setReconnectPolicy(new ReconnectPolicy().setBackoff(10, 50, TimeUnit.MILLISECONDS));
+        connect();
+        Peer peer = accept();
+        assertEvent("CONNECT");
+
+        peer.write(OP_CLOSE, new byte[]{0x03, (byte) 0xE8});
+        Frame echo = peer.read();
+        assertEquals(OP_CLOSE, echo.opcode);
+        assertEquals(1000, echo.code());
+        assertNull("connection released", peer.read());
+        assertEvent("DISCONNECT");
+        assertEvent("completed");
+        peer.close();
+    }
+
+    @Test
+    public void resubscribingAfterFailureOpensNewConnection() throws Exception {
+        Observable<RxWebSocketClient.Event> events = connect();
+        Peer first = accept();
+        assertEvent("CONNECT");
+        first.close();
+        assertEvent("error java.net.ConnectException");
+
+        subscribe(events);
+        Peer second = accept();
+        assertEvent("CONNECT");
+        mClient.send("x");
+        assertEquals("x", second.read().text());
+        assertNull(mClient.write("y").get(5, TimeUnit.SECONDS));
+        assertEquals("y", second.read().text());
+
+        mClient.disconnect();
+        assertEvent("DISCONNECT");
+        assertEvent("completed");
+        assertNull("connection released", second.read());
+        second.close();
+    }
+
+    @Test
+    public void reconnectsAfterDropAndReplaysQueuedMessages() throws Exception {
+        mClient.setReconnectPolicy(new ReconnectPolicy().setBackoff(10, 50, TimeUnit.MILLISECONDS));
+        connect();
+        Peer first = accept();
+        assertEvent("CONNECT");
+        mClient.send("a");
+        assertEquals("a", first.read().text());
+
+        first.close();
+        assertEvent("DISCONNECT");
+        mClient.send("b");
+        mClient.send("c");
+
+        Peer second = accept();
+        assertEvent("CONNECT");
+        assertEquals("b", second.read().text());
+        assertEquals("c", second.read().text());
+        mClient.send("d");
+        assertEquals("d", second.read().text());
+
+        mClient.disconnect();
+        assertEvent("DISCONNECT");
+        assertEvent("completed");
+        second.close();
+    }
+
+    @Test
+    public void keepsUnwrittenMessagesOfDroppedConnection() throws Exception {
+        mClient.setReconnectPolicy(new ReconnectPolicy()
+                .setBackoff(10, 50, TimeUnit.MILLISECONDS)
+                .setReplayQueue(64, 64 * 1024 * 1024));
+        connect();
+        Peer first = accept();
+        assertEvent("CONNECT");
+
+        // far more than socket buffers hold, while the peer does not read
+        int count = 40;
+        for (int i = 0; i < count; i++) {
+            byte[] message = new byte[512 * 1024];
+            message[0] = (byte) i;
+            mClient.send(message);
+        }
+        Thread.sleep(200);
+        first.close();
+        assertEvent("DISCONNECT");
+
+        Peer second = accept();
+        assertEvent("CONNECT");
+        mClient.send("end");
+        int expected = -1;
+        int replayed = 0;
+        Frame frame;
+        while ((frame = second.read()).opcode != OP_TEXT) {
+            if (expected >= 0) {
+                assertEquals(expected, frame.payload[0]);
+            }
+            expected = frame.payload[0] + 1;
+            replayed++;
+        }
+        assertEquals(count, expected);
+        assertTrue("replayed " + replayed, replayed > 1);
+        second.close();
+    }
+
+    private Observable<RxWebSocketClient.Event> connect() {
+        Observable<RxWebSocketClient.Event> events = mClient.connect(URI.create("ws://127.0.0.1:" + mServer.getLocalPort() + "/"));
+        subscribe(events);
+        return events;
+    }
+
+    private void subscribe(Observable<RxWebSocketClient.Event> events) {
+        events.subscribeOn(Schedulers.newThread())
+                .subscribe(new Subscriber<RxWebSocketClient.Event>() {
+                    @Override
+                    public void onNext(RxWebSocketClient.Event event) {
+                        if (event.getType() == RxWebSocketClient.EventType.MESSAGE_STRING) {
+                            mEvents.add(event.getType() + " " + event.getString());
+                        } else {
+                            mEvents.add(event.getType().toString());
+                        }
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        mEvents.add("completed");
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                        mEvents.add("error " + e.getClass().getName().replace("net.hiroq.rxwsc.", "").replace('$', '.'));
+                    }
+                });
+    }
+
+    private void assertEvent(String expected) throws InterruptedException {
+        assertEquals(expected, mEvents.poll(5, TimeUnit.SECONDS));
+    }
+
+    private Peer accept() throws Exception {
+        Socket socket = mServer.accept();
+        socket.setSoTimeout(5000);
+        Peer peer = new Peer(socket);
+        peer.handshake();
+        return peer;
+    }
+
+    private static final class Frame {
+        final int opcode;
+        final byte[] payload;
+
+        Frame(int opcode, byte[] payload) {
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+
+        String text() throws IOException {
+            return new String(payload, "UTF-8");
+        }
+
+        int code() {
+            return ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+        }
+    }
+
+    /**
+     * Server end of one connection.
+     */
+    private static final class Peer {
+        private final Socket mSocket;
+        private final DataInputStream mIn;
+        private final OutputStream mOut;
+
+        Peer(Socket socket) throws IOException {
+            mSocket = socket;
+            mIn = new DataInputStream(socket.getInputStream());
+            mOut = socket.getOutputStream();
+        }
+
+        void handshake() throws Exception {
+            StringBuilder request = new StringBuilder();
+            while (request.indexOf("\r\n\r\n") < 0) {
+                request.append((char) mIn.readUnsignedByte());
+            }
+            String key = null;
+            for (String line : request.toString().split("\r\n")) {
+                if (line.toLowerCase().startsWith("sec-websocket-key:")) {
+                    key = line.substring(line.indexOf(':') + 1).trim();
+                }
+            }
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            String accept = Base64.encode(md.digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes("US-ASCII")));
+            mOut.write(("HTTP/1.1 101 Switching Protocols\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + accept + "\r\n"
+                    + "\r\n").getBytes("US-ASCII"));
+            mOut.flush();
+        }
+
+        /**
+         * @return next frame from the client, null at end of stream
+         */
+        Frame read() throws IOException {
+            int first;
+            try {
+                first = mIn.readUnsignedByte();
+            } catch (EOFException e) {
+                return null;
+            }
+            int second = mIn.readUnsignedByte();
+            long length = second & 0x7F;
+            if (length == 126) {
+                length = mIn.readUnsignedShort();
+            } else if (length == 127) {
+                length = mIn.readLong();
+            }
+            byte[] mask = new byte[4];
+            if ((second & 0x80) != 0) {
+                mIn.readFully(mask);
+            }
+            byte[] payload = new byte[(int) length];
+            mIn.readFully(payload);
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i % 4];
+            }
+            return new Frame(first & 0x0F, payload);
+        }
+
+        /**
+         * Write an unmasked final frame.
+         */
+        void write(int opcode, byte[] payload) throws IOException {
+            mOut.write(0x80 | opcode);
+            mOut.write(payload.length);
+            mOut.write(payload);
+            mOut.flush();
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package net.hiroq.rxwsc;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.Observable;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.observers.TestSubscriber;
+import rx.schedulers.Schedulers;
+import rx.subjects.PublishSubject;
+
+import static org.junit.Assert.*;
+
+public class SharedConnectionTest {
+    private final PublishSubject<RxWebSocketClient.Event> mSource = PublishSubject.create();
+    private final AtomicInteger mOpened = new AtomicInteger();
+    private final AtomicInteger mClosed = new AtomicInteger();
+
+    private Observable<RxWebSocketClient.Event> shared(long graceMillis) {
+        Observable<RxWebSocketClient.Event> source = mSource
+                .doOnSubscribe(new Action0() {
+                    @Override
+                    public void call() {
+                        mOpened.incrementAndGet();
+                    }
+                })
+                .doOnUnsubscribe(new Action0() {
+                    @Override
+                    public void call() {
+                        mClosed.incrementAndGet();
+                    }
+                });
+        return Observable.create(new SharedConnection(source, RxWebSocketClient.BackpressureMode.BUFFER, 4,
+                TimeUnit.MILLISECONDS.toNanos(graceMillis), Schedulers.io()));
+    }
+
+    private void awaitOpen() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!mSource.hasObservers()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static RxWebSocketClient.Event event(RxWebSocketClient.EventType type) {
+        return new RxWebSocketClient.Event(type);
+    }
+
+    private static RxWebSocketClient.Event message(String text) {
+        return new RxWebSocketClient.Event(RxWebSocketClient.EventType.MESSAGE_STRING, text);
+    }
+
+    @Test
+    public void subscribersShareOneConnection() throws Exception {
+        Observable<RxWebSocketClient.Event> shared = shared(0);
+        TestSubscriber<RxWebSocketClient.Event> first = TestSubscriber.create();
+        shared.subscribe(first);
+        awaitOpen();
+        mSource.onNext(event(RxWebSocketClient.EventType.CONNECT));
+        mSource.onNext(message("a"));
+
+        TestSubscriber<RxWebSocketClient.Event> second = TestSubscriber.create();
+        shared.subscribe(second);
+        mSource.onNext(message("b"));
+        mSource.onNext(event(RxWebSocketClient.EventType.DISCONNECT));
+
+        assertEquals(1, mOpened.get());
+        first.assertValueCount(4);
+        second.assertValueCount(3);
+        assertEquals(RxWebSocketClient.EventType.CONNECT, second.getOnNextEvents().get(0).getType());
+        assertEquals("b", second.getOnNextEvents().get(1).getString());
+        assertEquals(RxWebSocketClient.EventType.DISCONNECT, second.getOnNextEvents().get(2).getType());
+
+        mSource.onCompleted();
+        first.assertCompleted();
+        second.assertCompleted();
+    }
+
+    @Test
+    public void slowSubscriberQueuesOnlyItsOwnEvents() throws Exception {
+        Observable<RxWebSocketClient.Event> shared = shared(0);
+        TestSubscriber<RxWebSocketClient.Event> fast = TestSubscriber.create();
+        TestSubscriber<RxWebSocketClient.Event> slow = TestSubscriber.create(0);
+        shared.subscribe(fast);
+        shared.subscribe(slow);
+        awaitOpen();
+
+        for (int i = 0; i < 4; i++) {
+            mSource.onNext(message("m" + i));
+        }
+        fast.assertValueCount(4);
+        slow.assertValueCount(0);
+
+        slow.requestMore(4);
+        slow.assertValueCount(4);
+    }
+
+    @Test
+    public void closesAfterGracePeriodWithoutSubscribers() throws Exception {
+        Observable<RxWebSocketClient.Event> shared = shared(300);
+        Subscription first = shared.subscribe(TestSubscriber.<RxWebSocketClient.Event>create());
+        awaitOpen();
+
+        first.unsubscribe();
+        Thread.sleep(100);
+        Subscription second = shared.subscribe(TestSubscriber.<RxWebSocketClient.Event>create());
+        Thread.sleep(400);
+        assertEquals(1, mOpened.get());
+        assertEquals(0, mClosed.get());
+
+        second.unsubscribe();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mClosed.get() == 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertFalse(mSource.hasObservers());
+    }
+
+    @Test
+    public void pooledMessageIsReleasedOnceBySubscriber() throws Exception {
+        Observable<RxWebSocketClient.Event> shared = shared(0);
+        TestSubscriber<RxWebSocketClient.Event> first = TestSubscriber.create();
+        TestSubscriber<RxWebSocketClient.Event> second = TestSubscriber.create();
+        shared.subscribe(first);
+        shared.subscribe(second);
+        awaitOpen();
+
+        BufferPool pool = new BufferPool();
+        mSource.onNext(new RxWebSocketClient.Event(pool, pool.acquire(1), 1));
+
+        first.getOnNextEvents().get(0).release();
+        assertEquals(0, pool.getFreeCount(0));
+        second.getOnNextEvents().get(0).release();
+        assertEquals(1, pool.getFreeCount(0));
+    }
+}
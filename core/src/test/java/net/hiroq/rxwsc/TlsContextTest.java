@@ -0,0 +1,45 @@
+package net.hiroq.rxwsc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+
+import static org.junit.Assert.*;
+
+public class TlsContextTest {
+    private TlsContext mShared;
+
+    @Before
+    public void setUp() {
+        mShared = RxWebSocketClient.getSharedTlsContext();
+    }
+
+    @After
+    public void tearDown() {
+        RxWebSocketClient.setSharedTlsContext(mShared);
+    }
+
+    @Test
+    public void initializesContextOnce() throws Exception {
+        TlsContext context = new TlsContext(null);
+        SSLContext first = context.get();
+        assertSame(first, context.get());
+    }
+
+    @Test
+    public void configuresClientSessionCache() throws Exception {
+        SSLContext context = new TlsContext(null, 4, 60).get();
+        assertEquals(4, context.getClientSessionContext().getSessionCacheSize());
+        assertEquals(60, context.getClientSessionContext().getSessionTimeout());
+    }
+
+    @Test
+    public void trustManagersReplaceSharedContext() throws Exception {
+        TlsContext shared = RxWebSocketClient.getSharedTlsContext();
+        assertSame(shared, RxWebSocketClient.getSharedTlsContext());
+        RxWebSocketClient.setTrustManagers(null);
+        assertNotSame(shared, RxWebSocketClient.getSharedTlsContext());
+    }
+}
@@ -0,0 +1,99 @@
+package net.hiroq.rxwsc;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class Utf8DecoderTest {
+    private static final String TEXT = "a\u00e9\u20ac\ud83d\ude00z";
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    @Test
+    public void decodesAsciiAndMultibyte() throws Exception {
+        Utf8Decoder decoder = new Utf8Decoder();
+        byte[] ascii = "xxhelloxx".getBytes(Utf8Decoder.UTF_8);
+        assertEquals("hello", decoder.decode(ascii, 2, 5));
+
+        byte[] utf8 = TEXT.getBytes(Utf8Decoder.UTF_8);
+        assertEquals(TEXT, decoder.decode(utf8, 0, utf8.length));
+    }
+
+    @Test
+    public void decodesCharactersSplitAtEveryPosition() throws Exception {
+        Utf8Decoder decoder = new Utf8Decoder();
+        byte[] utf8 = TEXT.getBytes(Utf8Decoder.UTF_8);
+        for (int first = 0; first <= utf8.length; first++) {
+            for (int second = first; second <= utf8.length; second++) {
+                decoder.append(utf8, 0, first);
+                decoder.append(utf8, first, second - first);
+                decoder.append(utf8, second, utf8.length - second);
+                assertEquals(first + "," + second, TEXT, decoder.finish());
+            }
+        }
+    }
+
+    @Test
+    public void growsForLongMessages() throws Exception {
+        Utf8Decoder decoder = new Utf8Decoder();
+        char[] chars = new char[100000];
+        Arrays.fill(chars, '\u00e9');
+        String text = new String(chars);
+        byte[] utf8 = text.getBytes(Utf8Decoder.UTF_8);
+        for (int offset = 0; offset < utf8.length; offset += 1001) {
+            decoder.append(utf8, offset, Math.min(1001, utf8.length - offset));
+        }
+        assertEquals(text, decoder.finish());
+        assertEquals("ok", decoder.decode(bytes('o', 'k'), 0, 2));
+    }
+
+    @Test
+    public void rejectsInvalidSequencesWithCode1007() throws Exception {
+        byte[][] invalid = {
+                bytes(0xC0, 0xAF),              // overlong
+                bytes(0xED, 0xA0, 0x80),        // surrogate
+                bytes(0xF4, 0x90, 0x80, 0x80),  // above U+10FFFF
+                bytes('a', 0x80),               // stray continuation
+                bytes(0xE2, 0x82),              // ends in the middle of a character
+        };
+        Utf8Decoder decoder = new Utf8Decoder();
+        for (byte[] data : invalid) {
+            try {
+                decoder.decode(data, 0, data.length);
+                fail(Arrays.toString(data));
+            } catch (HybiParser.ProtocolError e) {
+                assertEquals(HybiParser.CLOSE_INVALID_DATA, e.getCode());
+            }
+            decoder.reset();
+        }
+        assertEquals("ok", decoder.decode(bytes('o', 'k'), 0, 2));
+    }
+
+    @Test
+    public void failsOnTheFragmentWithInvalidData() throws Exception {
+        Utf8Decoder decoder = new Utf8Decoder();
+        decoder.append(bytes(0xE2), 0, 1);
+        try {
+            decoder.append(bytes('a'), 0, 1);
+            fail();
+        } catch (HybiParser.ProtocolError expected) {
+        }
+    }
+
+    @Test
+    public void validateKeepsNoChars() throws Exception {
+        Utf8Decoder decoder = new Utf8Decoder();
+        byte[] utf8 = TEXT.getBytes(Utf8Decoder.UTF_8);
+        decoder.validate(utf8, 0, 3);
+        decoder.validate(utf8, 3, utf8.length - 3);
+        assertEquals("", decoder.finish());
+    }
+}
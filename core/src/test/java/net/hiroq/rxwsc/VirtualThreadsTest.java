@@ -0,0 +1,70 @@
+package net.hiroq.rxwsc;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import rx.functions.Action0;
+
+import static org.junit.Assert.*;
+
+public class VirtualThreadsTest {
+    private static boolean isVirtual(Thread thread) throws Exception {
+        return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+    }
+
+    @Test
+    public void schedulerRunsTasksOnVirtualThreads() throws Exception {
+        if (!VirtualThreads.isAvailable()) {
+            try {
+                VirtualThreads.scheduler();
+                fail();
+            } catch (UnsupportedOperationException expected) {
+            }
+            return;
+        }
+        final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+        final CountDownLatch ran = new CountDownLatch(1);
+        VirtualThreads.scheduler().createWorker().schedule(new Action0() {
+            @Override
+            public void call() {
+                thread.set(Thread.currentThread());
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(isVirtual(thread.get()));
+    }
+
+    @Test
+    public void writerRunsOnVirtualThreadOfFactory() throws Exception {
+        if (!VirtualThreads.isAvailable()) {
+            try {
+                new RxWebSocketClient().useVirtualThreads();
+                fail();
+            } catch (UnsupportedOperationException expected) {
+            }
+            return;
+        }
+        final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+        ThreadFactory factory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                thread.set(VirtualThreads.threadFactory().newThread(runnable));
+                return thread.get();
+            }
+        };
+        FrameWriter writer = new FrameWriter(factory, "writer", new FrameWriter.Callback() {
+            @Override
+            public void onError(IOException e) {
+            }
+        });
+        assertTrue(isVirtual(thread.get()));
+        assertEquals("writer", thread.get().getName());
+        writer.close(null);
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * MIT License
+ * <p>
+ * Copyright (c) 2016 Hiroki Oizumi
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package net.hiroq.rxwsc;
+
+import android.net.Uri;
+import android.util.Pair;
+
+import java.net.URI;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+
+/**
+ * RxWebSocketClient taking android.net.Uri and android.util.Pair headers.
+ * <p>
+ * The protocol engine lives in the plain Java core module, which takes java.net.URI and
+ * Map.Entry headers; this adapter only converts them, so everything else behaves and
+ * performs the same on a device and on a JVM.
+ */
+public class AndroidWebSocketClient extends RxWebSocketClient {
+    /**
+     * Connect to WebSocketServer with additional Header.
+     * See {@link RxWebSocketClient#connect(URI, List)}.
+     *
+     * @param uri
+     * @param extraHeaders
+     * @return
+     */
+    public Observable<Event> connect(Uri uri, List<Pair<String, String>> extraHeaders) {
+        return connect(toURI(uri), toHeaders(extraHeaders));
+    }
+
+    /**
+     * Connect to WebSocketServer with additional Header, emitting events only as far as requested.
+     * See {@link RxWebSocketClient#connect(URI, List, BackpressureMode, int)}.
+     *
+     * @param uri
+     * @param extraHeaders
+     * @param mode
+     * @param capacity
+     * @return
+     */
+    public Observable<Event> connect(Uri uri, List<Pair<String, String>> extraHeaders, BackpressureMode mode, int capacity) {
+        return connect(toURI(uri), toHeaders(extraHeaders), mode, capacity);
+    }
+
+    /**
+     * Connect to WebSocketServer, emitting events only as far as requested.
+     *
+     * @param uri
+     * @param mode
+     * @param capacity
+     * @return
+     */
+    public Observable<Event> connect(Uri uri, BackpressureMode mode, int capacity) {
+        return connect(toURI(uri), mode, capacity);
+    }
+
+    /**
+     * Connect to WebSocketServer.
+     *
+     * @param uri
+     * @return
+     */
+    public Observable<Event> connect(Uri uri) {
+        return connect(toURI(uri));
+    }
+
+    /**
+     * Connect to WebSocketServer once for any number of subscribers.
+     * See {@link RxWebSocketClient#share(URI, List, BackpressureMode, int, long, TimeUnit)}.
+     *
+     * @param uri
+     * @param extraHeaders
+     * @param mode
+     * @param capacity
+     * @param gracePeriod
+     * @param unit
+     * @return
+     */
+    public Observable<Event> share(Uri uri, List<Pair<String, String>> extraHeaders,
+                                   BackpressureMode mode, int capacity, long gracePeriod, TimeUnit unit) {
+        return share(toURI(uri), toHeaders(extraHeaders), mode, capacity, gracePeriod, unit);
+    }
+
+    /**
+     * Connect to WebSocketServer once for any number of subscribers.
+     *
+     * @param uri
+     * @param gracePeriod
+     * @param unit
+     * @return
+     */
+    public Observable<Event> share(Uri uri, long gracePeriod, TimeUnit unit) {
+        return share(toURI(uri), gracePeriod, unit);
+    }
+
+    static URI toURI(Uri uri) {
+        return URI.create(uri.toString());
+    }
+
+    static List<Map.Entry<String, String>> toHeaders(List<Pair<String, String>> pairs) {
+        if (pairs == null) {
+            return null;
+        }
+        List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>(pairs.size());
+        for (Pair<String, String> pair : pairs) {
+            headers.add(new AbstractMap.SimpleImmutableEntry<String, String>(pair.first, pair.second));
+        }
+        return headers;
+    }
+}
@@ -31,22 +31,19 @@ import android.support.v7.widget.RecyclerView;
 import android.view.View;
 import android.widget.TextView;
 
+import net.hiroq.rxwsc.AndroidWebSocketClient;
+import net.hiroq.rxwsc.ReconnectPolicy;
 import net.hiroq.rxwsc.RxWebSocketClient;
 
-import java.net.ConnectException;
-import java.util.concurrent.TimeUnit;
-
-import rx.Observable;
 import rx.Subscription;
 import rx.android.schedulers.AndroidSchedulers;
 import rx.functions.Action0;
 import rx.functions.Action1;
-import rx.functions.Func1;
 import rx.schedulers.Schedulers;
 
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "rxwsc/" + MainActivity.class.getSimpleName();
-    private RxWebSocketClient mSocketClient;
+    private AndroidWebSocketClient mSocketClient;
     private Subscription mSubscription;
     private RecyclerAdapter mRecyclerAdapter;
 
@@ -59,7 +56,9 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        mSocketClient = new RxWebSocketClient();
+        mSocketClient = new AndroidWebSocketClient();
+        // reconnect with backoff when the connection is lost, messages sent meanwhile are queued
+        mSocketClient.setReconnectPolicy(new ReconnectPolicy());
 
         mColorIndigo = getResources().getColor(R.color.indigo);
         mColorRed = getResources().getColor(R.color.red);
@@ -92,23 +91,6 @@ public class MainActivity extends AppCompatActivity {
             public void onClick(View view) {
                 // Emulator connect to local PC
                 mSubscription = mSocketClient.connect(Uri.parse("ws://10.0.2.2:8080"))
-                        .retryWhen(new Func1<Observable<? extends Throwable>, Observable<?>>() {
-                            @Override
-                            public Observable<?> call(final Observable<? extends Throwable> observable) {
-                                return observable.flatMap(new Func1<Throwable, Observable<?>>() {
-                                    @Override
-                                    public Observable<?> call(Throwable throwable) {
-                                        // If the exception is ConnectionException, retry after 1 seconds.
-                                        if (throwable instanceof ConnectException) {
-                                            mRecyclerAdapter.addClientMessage(mColorRed, "[CONNECTION ERROR RETRY AFTER 1sec]");
-                                            return Observable.timer(1, TimeUnit.SECONDS);
-                                        } else {
-                                            return Observable.error(throwable);
-                                        }
-                                    }
-                                });
-                            }
-                        })
                         .subscribeOn(Schedulers.newThread())
                         .observeOn(AndroidSchedulers.mainThread())
                         .subscribe(new Action1<RxWebSocketClient.Event>() {